@@ -0,0 +1,96 @@
+package com.alexgrejuc.chatbenchmarks;
+
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatserver.server.Connection;
+import com.alexgrejuc.chatserver.server.MessageRouter;
+import com.alexgrejuc.chatserver.server.OutboundQueue;
+import com.alexgrejuc.chatserver.server.SharedFrame;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing a message to every client, without the network. A broadcast iterates the registry and carries no
+ * recipient list, while a direct message to everyone names every recipient, which is what broadcasts used to cost.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int clients;
+
+    private final ArrayList<Connection> connections = new ArrayList<>();
+    private Connection sender;
+    private ChatMessage broadcast;
+    private ChatMessage directToAll;
+
+    private static class IdleConnection implements Connection {
+        private final String username;
+
+        IdleConnection(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void deliver(SharedFrame frame) {
+            frame.release();
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return null;
+        }
+
+        @Override
+        public void closeAllResources() {}
+    }
+
+    @Setup
+    public void setUp() {
+        var recipients = new ArrayList<String>();
+
+        // Registered directly, since MessageRouter.register would announce every client to every other
+        for (int i = 0; i < clients; i++) {
+            var connection = new IdleConnection("user" + i);
+            connections.add(connection);
+            MessageRouter.clients.register(connection);
+
+            if (i > 0) {
+                recipients.add(connection.getUsername());
+            }
+        }
+
+        sender = connections.get(0);
+        broadcast = new ChatMessage("Hello everyone!", sender.getUsername(), null, new ArrayList<>());
+        directToAll = new ChatMessage("Hello everyone!", sender.getUsername(), recipients, new ArrayList<>());
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (var connection : connections) {
+            MessageRouter.clients.unregister(connection);
+        }
+
+        connections.clear();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        MessageRouter.route(broadcast, sender);
+    }
+
+    @Benchmark
+    public void directToAll() {
+        MessageRouter.route(directToAll, sender);
+    }
+}
@@ -0,0 +1,221 @@
+package com.alexgrejuc.chatbenchmarks;
+
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageFrames;
+import com.alexgrejuc.chatmessage.FrameDecompressor;
+import com.alexgrejuc.chatmessage.Handshake;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts clusters of 1 up to N server processes on this machine, checks that direct, room and broadcast messages
+ * reach clients on other nodes, and then measures how many direct messages per second the cluster delivers. The
+ * clients are spread evenly over the nodes and each sends to randomly chosen others, so most messages cross a link
+ * once there is more than one node. This is not a JMH benchmark, since each measurement needs its own processes.
+ * Run it with the benchmarks jar on the classpath:
+ * java -cp target/benchmarks.jar com.alexgrejuc.chatbenchmarks.ClusterLoad [nodes] [clients] [messages per client]
+ */
+public class ClusterLoad {
+    private static final int FIRST_PORT = 7801;
+    private static final int FIRST_CLUSTER_PORT = 7901;
+
+    // The most messages sent but not yet received, so that no queue overflows and drops them
+    private static final int WINDOW_PER_CLIENT = 64;
+
+    private static final AtomicLong received = new AtomicLong();
+
+    /**
+     * @param args the most nodes (default 3), the number of clients (default 60), and the messages each client sends
+     *             (default 2000)
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int maxNodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        for (int nodes = 1; nodes <= maxNodes; nodes++) {
+            var processes = startNodes(nodes);
+
+            try {
+                run(nodes, clients, messages);
+            } finally {
+                for (var process : processes) {
+                    process.destroy();
+                    process.waitFor(5, TimeUnit.SECONDS);
+                }
+            }
+        }
+
+        System.exit(0);
+    }
+
+    private static List<Process> startNodes(int nodes) throws IOException, InterruptedException {
+        var processes = new ArrayList<Process>();
+        Path directory = Files.createTempDirectory("cluster-load");
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+
+        for (int i = 0; i < nodes; i++) {
+            var peers = new ArrayList<String>();
+
+            for (int j = 0; j < nodes; j++) {
+                if (j != i) {
+                    peers.add("localhost:" + (FIRST_CLUSTER_PORT + j));
+                }
+            }
+
+            var command = List.of(java, "-cp", System.getProperty("java.class.path"),
+                    "com.alexgrejuc.chatserver.server.Main",
+                    "--port=" + (FIRST_PORT + i),
+                    "--mode=nio",
+                    "--node=node" + i,
+                    "--cluster-port=" + (FIRST_CLUSTER_PORT + i),
+                    "--peers=" + String.join(",", peers),
+                    "--store-dir=" + directory.resolve("store" + i),
+                    "--log-dir=" + directory.resolve("log" + i),
+                    "--events-dir=" + directory.resolve("events" + i),
+                    "--events-console=off");
+
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+
+        // Give the nodes time to start and link to each other
+        Thread.sleep(2000 + 500L * nodes);
+        return processes;
+    }
+
+    /**
+     * A logged-in client and the messages it has read, other than the ones being counted.
+     */
+    private record Client(String name, DataOutputStream output, LinkedBlockingQueue<ChatMessage> inbox) {}
+
+    private static void run(int nodes, int clientCount, int messages) throws Exception {
+        var clients = new ArrayList<Client>();
+        var sockets = new ArrayList<Socket>();
+
+        for (int i = 0; i < clientCount; i++) {
+            var socket = new Socket("localhost", FIRST_PORT + i % nodes);
+            sockets.add(socket);
+            clients.add(logIn(socket, "user" + i));
+        }
+
+        // Let every node hear about every login
+        Thread.sleep(1000);
+
+        check(clients, nodes);
+
+        received.set(0);
+        var random = new Random(42);
+        long total = (long) clientCount * messages;
+        long window = (long) clientCount * WINDOW_PER_CLIENT;
+        long start = System.nanoTime();
+        long sent = 0;
+
+        // One thread sends for every client in turn, which keeps the load the same however many nodes there are
+        for (int m = 0; m < messages; m++) {
+            for (int i = 0; i < clientCount; i++) {
+                while (sent - received.get() >= window) {
+                    Thread.onSpinWait();
+                }
+
+                int recipient = (i + 1 + random.nextInt(clientCount - 1)) % clientCount;
+                var recipients = new ArrayList<>(List.of(clients.get(recipient).name()));
+                var client = clients.get(i);
+                ChatMessageFrames.write(client.output(), new ChatMessage("load", client.name(), recipients, new ArrayList<>()));
+                client.output().flush();
+                sent++;
+            }
+        }
+
+        while (received.get() < total) {
+            Thread.sleep(1);
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("nodes=%d clients=%d messages=%d %.0f messages/s%n", nodes, clientCount, total, total / seconds);
+
+        for (var socket : sockets) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Checks that a direct message, a room message and a broadcast from a client on the first node reach a client on
+     * the last.
+     */
+    private static void check(List<Client> clients, int nodes) throws Exception {
+        var from = clients.get(0);
+        var to = clients.get(Math.max(1, nodes - 1));
+
+        send(from, "direct check", new ArrayList<>(List.of(to.name())), null);
+        expect(to, "direct check");
+
+        send(to, ":join checks", null, null);
+        send(from, ":join checks", null, null);
+        Thread.sleep(500);
+        send(from, "room check", null, "checks");
+        expect(to, "room check");
+
+        send(from, "broadcast check", null, null);
+        expect(to, "broadcast check");
+    }
+
+    private static void send(Client client, String text, ArrayList<String> recipients, String room) throws IOException {
+        ChatMessageFrames.write(client.output(), new ChatMessage(text, client.name(), recipients, new ArrayList<>(), room));
+        client.output().flush();
+    }
+
+    private static void expect(Client client, String text) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (System.nanoTime() < deadline) {
+            var message = client.inbox().poll(100, TimeUnit.MILLISECONDS);
+
+            if (message != null && text.equals(message.message())) {
+                return;
+            }
+        }
+
+        throw new IllegalStateException(client.name() + " did not receive \"" + text + "\"");
+    }
+
+    private static Client logIn(Socket socket, String username) throws IOException {
+        var input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        var output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Handshake.connect(input, output);
+        ChatMessageFrames.write(output, new ChatMessage(null, username, null, new ArrayList<>()));
+        output.flush();
+
+        var client = new Client(username, output, new LinkedBlockingQueue<>());
+        Thread.ofVirtual().start(() -> read(input, client));
+        return client;
+    }
+
+    private static void read(DataInputStream input, Client client) {
+        var decompressor = new FrameDecompressor();
+
+        try {
+            while (true) {
+                if (ChatMessageFrames.read(input, decompressor) instanceof ChatMessage message) {
+                    if ("load".equals(message.message())) {
+                        received.incrementAndGet();
+                    }
+                    else if (!"SERVER".equals(message.senderName())) {
+                        client.inbox().add(message);
+                    }
+                }
+            }
+        } catch (IOException closed) {
+            // The run is over
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.alexgrejuc.chatbenchmarks;
+
+import com.alexgrejuc.chatmessage.Attachment;
+import com.alexgrejuc.chatmessage.AttachmentChunk;
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageCodec;
+import com.alexgrejuc.chatmessage.Frame;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding frames. Messages only describe their attachments, so the attachments' contents are measured
+ * as the chunks that carry them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+    // The number of attachments the message describes
+    @Param({"0", "1", "10"})
+    public int attachments;
+
+    // The size of the chunk of attachment data
+    @Param({"1024", "65536"})
+    public int chunkSize;
+
+    private ChatMessage message;
+    private AttachmentChunk chunk;
+    private ByteBuffer encodeBuffer;
+    private ByteBuffer encodedMessage;
+    private ByteBuffer encodedChunk;
+
+    @Setup
+    public void setUp() {
+        var descriptors = new ArrayList<Attachment>();
+
+        for (int i = 0; i < attachments; i++) {
+            descriptors.add(new Attachment("%064x".formatted(i), "photo-" + i + ".png", 2_500_000L));
+        }
+
+        message = new ChatMessage("Here are the photos from the weekend, let me know which ones you like!", "Alice",
+                new ArrayList<>(Arrays.asList("Bob", "Carol")), descriptors);
+        chunk = new AttachmentChunk("%064x".formatted(0), 7, false, new byte[chunkSize]);
+
+        encodeBuffer = ByteBuffer.allocate(ChatMessageCodec.encodedSize(chunk) + ChatMessageCodec.encodedSize(message));
+        encodedMessage = encode(message);
+        encodedChunk = encode(chunk);
+    }
+
+    private static ByteBuffer encode(Frame frame) {
+        var buffer = ByteBuffer.allocate(ChatMessageCodec.encodedSize(frame));
+        ChatMessageCodec.encode(frame, buffer);
+        return buffer.flip();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeMessage() {
+        encodeBuffer.clear();
+        ChatMessageCodec.encode(message, encodeBuffer);
+        return encodeBuffer;
+    }
+
+    @Benchmark
+    public Frame decodeMessage() throws IOException {
+        return ChatMessageCodec.decode(encodedMessage.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer encodeChunk() {
+        encodeBuffer.clear();
+        ChatMessageCodec.encode(chunk, encodeBuffer);
+        return encodeBuffer;
+    }
+
+    @Benchmark
+    public Frame decodeChunk() throws IOException {
+        return ChatMessageCodec.decode(encodedChunk.duplicate());
+    }
+}
@@ -0,0 +1,154 @@
+package com.alexgrejuc.chatbenchmarks;
+
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageFrames;
+import com.alexgrejuc.chatmessage.FrameDecompressor;
+import com.alexgrejuc.chatmessage.Handshake;
+import com.alexgrejuc.chatserver.server.MessageRouter;
+import com.alexgrejuc.chatserver.server.NioServer;
+import com.alexgrejuc.chatserver.server.Server;
+import com.alexgrejuc.chatserver.server.ServerOptions;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A broadcast from one client to N others through a real server on the loopback interface, measured from sending
+ * the message until every other client has read it. Run with metrics on and off to see what recording them costs.
+ * A burst sends several messages at once, which the server can write to each client together, and lingerMicros
+ * sets how long a blocking writer waits for more frames before writing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanoutBenchmark {
+    @Param({"blocking", "nio"})
+    public String mode;
+
+    @Param({"10", "100", "1000"})
+    public int clients;
+
+    @Param({"on", "off"})
+    public String metrics;
+
+    @Param({"1", "16"})
+    public int burst;
+
+    @Param({"0"})
+    public int lingerMicros;
+
+    private static final String SENDER = "sender";
+    private static final String TEXT = "Hello everyone, the build is green again!";
+
+    private final ArrayList<Socket> sockets = new ArrayList<>();
+    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    private NioServer nioServer;
+    private DataOutputStream senderOutput;
+    private volatile CountDownLatch received;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        var options = new ServerOptions();
+        options.storeDirectory = Files.createTempDirectory("fanout-attachments").toString();
+        options.metricsEnabled = metrics.equals("on");
+        options.flushLingerMicros = lingerMicros;
+        int port = startServer(options);
+
+        for (int i = 0; i < clients; i++) {
+            var socket = new Socket("localhost", port);
+            var input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            logIn(socket, input, "client" + i);
+            sockets.add(socket);
+            Thread.ofVirtual().start(() -> readBroadcasts(input));
+        }
+
+        var socket = new Socket("localhost", port);
+        logIn(socket, new DataInputStream(new BufferedInputStream(socket.getInputStream())), SENDER);
+        senderOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        sockets.add(socket);
+
+        // Let the server finish announcing everyone before measuring
+        Thread.sleep(500);
+    }
+
+    private int startServer(ServerOptions options) throws IOException {
+        if (mode.equals("nio")) {
+            serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+            options.eventLoops = 2;
+            nioServer = new NioServer(serverChannel, options);
+            Thread.ofPlatform().daemon().start(nioServer::startServer);
+            return serverChannel.socket().getLocalPort();
+        }
+
+        serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0)).socket();
+        var server = new Server(serverSocket, Executors.newVirtualThreadPerTaskExecutor(), options);
+        Thread.ofPlatform().daemon().start(server::startServer);
+        return serverSocket.getLocalPort();
+    }
+
+    private static void logIn(Socket socket, DataInputStream input, String username) throws IOException {
+        var output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Handshake.connect(input, output);
+        ChatMessageFrames.write(output, new ChatMessage(null, username, null, new ArrayList<>()));
+        output.flush();
+    }
+
+    private void readBroadcasts(DataInputStream input) {
+        var decompressor = new FrameDecompressor();
+
+        try {
+            while (true) {
+                // Server notices about other clients logging in are skipped
+                if (ChatMessageFrames.read(input, decompressor) instanceof ChatMessage message && SENDER.equals(message.senderName())) {
+                    received.countDown();
+                }
+            }
+        } catch (IOException closed) {
+            // The benchmark is over
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        for (var socket : sockets) {
+            socket.close();
+        }
+
+        // The registry is static, so the next trial's clients would be rejected if these were still logged in
+        for (int i = 0; i < 500 && MessageRouter.clients.size() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        if (nioServer != null) {
+            nioServer.stopServer();
+        }
+        else {
+            serverSocket.close();
+        }
+    }
+
+    @Benchmark
+    public void broadcast() throws IOException, InterruptedException {
+        received = new CountDownLatch(clients * burst);
+
+        for (int i = 0; i < burst; i++) {
+            ChatMessageFrames.write(senderOutput, new ChatMessage(TEXT, SENDER, null, new ArrayList<>()));
+        }
+
+        senderOutput.flush();
+        received.await();
+    }
+}
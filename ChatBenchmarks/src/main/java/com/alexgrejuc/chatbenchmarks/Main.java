@@ -0,0 +1,33 @@
+package com.alexgrejuc.chatbenchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class Main {
+    /**
+     * Runs the benchmarks and writes the results as JSON, so that runs from different releases can be compared.
+     *
+     * @param args the usual JMH options, e.g. a regex to select benchmarks, -p to choose parameters, or
+     *             -rff=FILE to write the results somewhere other than jmh-result.json
+     * @throws CommandLineOptionException
+     * @throws RunnerException
+     */
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        var commandLine = new CommandLineOptions(args);
+        var options = new OptionsBuilder().parent(commandLine);
+
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+
+        if (!commandLine.getResult().hasValue()) {
+            options.result("jmh-result.json");
+        }
+
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,60 @@
+package com.alexgrejuc.chatbenchmarks;
+
+import com.alexgrejuc.chatserver.server.MessageLog;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * What logging a message adds to routing it. The log is kept small with short segments and retention, so that the
+ * measurement includes rolling over and deleting segments at the rate a busy server would.
+ * The ALWAYS policy waits for the disk, so it is measured in microseconds per message rather than nanoseconds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageLogBenchmark {
+    @Param({"OS", "INTERVAL", "ALWAYS"})
+    public MessageLog.FsyncPolicy fsync;
+
+    // The size of the encoded message
+    @Param({"128", "4096"})
+    public int frameSize;
+
+    private Path directory;
+    private MessageLog log;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("message-log-benchmark");
+        log = new MessageLog(directory, 16 * 1024 * 1024, fsync, 100, 64L * 1024 * 1024, Duration.ofDays(1));
+        frame = ByteBuffer.wrap(new byte[frameSize]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        return log.append(frame);
+    }
+}
@@ -0,0 +1,61 @@
+package com.alexgrejuc.chatbenchmarks;
+
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Parsing user input into a message, which every client does for every message it sends.
+ * The regex benchmark is the parser as it was before it was replaced by a scanner, for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+    @Param({"broadcast", "one-recipient", "many-recipients"})
+    public String input;
+
+    private String text;
+    private final ChatMessageParser.Spans spans = new ChatMessageParser.Spans();
+
+    @Setup
+    public void setUp() {
+        text = switch (input) {
+            case "broadcast" -> "Hello everyone, is anyone around to review my pull request this afternoon?";
+            case "one-recipient" -> "@Bob Hello Bob, are you around to review my pull request this afternoon?";
+            case "many-recipients" -> "@Bob @Carol @Dave @Erin @Frank @Grace @Heidi @Ivan Hello all, review time?";
+            default -> throw new IllegalArgumentException(input);
+        };
+    }
+
+    @Benchmark
+    public ChatMessage parse() {
+        return ChatMessageParser.parse(text, "Alice", new ArrayList<>());
+    }
+
+    @Benchmark
+    public ChatMessageParser.Spans scan() {
+        return ChatMessageParser.scan(text, spans);
+    }
+
+    @Benchmark
+    public ChatMessage regex() {
+        var matcher = Pattern.compile("(@\\w+\\s)").matcher(text);
+        var recipients = new ArrayList<String>();
+        int end = -1;
+
+        while (matcher.find()) {
+            recipients.add(matcher.group().replace("@", "").stripTrailing());
+            end = matcher.end();
+        }
+
+        return new ChatMessage(text.substring(Math.max(end, 0)), "Alice", recipients.isEmpty() ? null : recipients, new ArrayList<>());
+    }
+}
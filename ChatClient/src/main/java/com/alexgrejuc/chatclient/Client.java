@@ -1,36 +1,146 @@
 package com.alexgrejuc.chatclient;
 
-import com.alexgrejuc.chatmessage.Attachment;
-import com.alexgrejuc.chatmessage.ChatMessage;
-import com.alexgrejuc.chatmessage.ChatMessageParser;
-import javafx.scene.layout.VBox;
+import com.alexgrejuc.chatmessage.*;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A client that sends and receives text messages to and from a chat server.
  */
 public class Client {
     private Socket socket;
-    private ObjectInputStream messageInput;
-    private ObjectOutputStream messageOutput;
+    private DataInputStream messageInput;
+    private DataOutputStream messageOutput;
+
+    // Restores frames the server sent compressed, if the server supports compression. Only used by the listener.
+    private FrameDecompressor decompressor;
+
+    // Uploads send chunks from their own threads, so each frame is written under this lock. Text messages can
+    // still be sent between the chunks of a large upload.
+    private final ReentrantLock outputLock = new ReentrantLock();
+
+    // Messages with attachments are sent once their files have been hashed. A single thread keeps them in order
+    // with the messages typed after them.
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "message-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private String username;
-    private File storagePath;
 
-    public Client(Socket socket, String username) {
+    // Where the client keeps its files: received attachments, and the last message each user received
+    private final File storagePath;
+
+    // Received attachments, stored under their hashes so a file that arrives again is never downloaded twice. They
+    // are written here chunk by chunk as they arrive and displayed from here, so no attachment is held in memory.
+    private final File attachmentCache;
+
+    // Files this client has attached, by hash, in case the server asks for their contents
+    private final ConcurrentHashMap<String, File> sentFiles = new ConcurrentHashMap<>();
+
+    /**
+     * An attachment that is being received. Chunks are written with the file's channel, without an extra copy
+     * through a stream buffer, and the contents are checked against the hash before the file is used.
+     */
+    private static class Download {
+        final String hash;
+        final File partFile;
+        final FileChannel output;
+        final MessageDigest digest = Attachment.newDigest();
+        int nextSequence;
+
+        // How many received messages are waiting to display the attachment
+        int displays = 1;
+
+        Download(String hash, File partFile) throws IOException {
+            this.hash = hash;
+            this.partFile = partFile;
+            this.output = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void write(byte[] data) throws IOException {
+            var buffer = ByteBuffer.wrap(data);
+
+            while (buffer.hasRemaining()) {
+                output.write(buffer);
+            }
+
+            digest.update(data);
+        }
+    }
+
+    // Only accessed by the listening thread
+    private final HashMap<String, Download> downloads = new HashMap<>();
+
+    // The sequence of the last message received, which is saved when the client closes so that the next login is
+    // sent the messages that were missed in between
+    private volatile long acknowledged = ChatMessage.NO_SEQUENCE;
+
+    // The state of a replay of missed messages, only accessed by the listening thread: whether one is in progress,
+    // where it ends once the server has said so, the newest live message received during it, and every sequence
+    // received during it, since a message sent just as the client logged in can arrive both live and replayed
+    private boolean replaying;
+    private long replayEnd = ChatMessage.NO_SEQUENCE;
+    private long newestLiveSequence = ChatMessage.NO_SEQUENCE;
+    private final HashSet<Long> receivedDuringReplay = new HashSet<>();
+
+    // How many older messages are asked for at a time as the user scrolls back through the history
+    private static final int HISTORY_PAGE_SIZE = 50;
+
+    // The sequence of the oldest message displayed, which the next page of history ends before, whether a page has
+    // been asked for and not received yet, and whether the start of the history has been reached
+    private volatile long oldestSequence = Long.MAX_VALUE;
+    private final AtomicBoolean loadingHistory = new AtomicBoolean();
+    private volatile boolean historyComplete;
+
+    // For each room or direct conversation paged back through with ":history", the sequence its next page ends before
+    private final ConcurrentHashMap<String, Long> conversationOldest = new ConcurrentHashMap<>();
+
+    /**
+     * @param socket
+     * @param username
+     * @param storagePath the directory for the client's files, created if it does not exist
+     */
+    public Client(Socket socket, String username, File storagePath) {
+        this.storagePath = storagePath;
+        this.attachmentCache = new File(storagePath, "attachments");
+
         try {
             this.socket = socket;
             this.username = username;
-            // Note: this order matters due blocking on the stream header
-            // See constructor docs for more info
-            this.messageOutput = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-            messageOutput.flush();
-            this.messageInput = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
-            storagePath = new File("./");
+
+            // Each message is flushed as soon as it is typed, so Nagle's algorithm would only delay it
+            socket.setTcpNoDelay(true);
+            this.messageOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.messageInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int version = Handshake.connect(messageInput, messageOutput);
+
+            if (version >= ChatMessageCodec.COMPRESSION_VERSION) {
+                decompressor = new FrameDecompressor();
+            }
+
+            Files.createDirectories(attachmentCache.toPath());
         } catch (IOException ioe) {
             System.err.println("Error creating client:");
             ioe.printStackTrace();
@@ -44,8 +154,7 @@ public class Client {
      */
     public void sendMessage(ChatMessage message) {
         try {
-            messageOutput.writeObject(message);
-            messageOutput.flush();
+            sendFrame(message);
         } catch (IOException ioe) {
             System.err.println("Cannot send message because the server is offline:");
             ioe.printStackTrace();
@@ -53,60 +162,444 @@ public class Client {
         }
     }
 
+    private void sendFrame(Frame frame) throws IOException {
+        sendFrames(List.of(frame));
+    }
+
+    /**
+     * Writes frames together and flushes once, so that they share a system call and usually a TCP segment.
+     * @param frames
+     * @throws IOException
+     */
+    private void sendFrames(List<? extends Frame> frames) throws IOException {
+        outputLock.lock();
+
+        try {
+            for (var frame : frames) {
+                ChatMessageFrames.write(messageOutput, frame);
+            }
+
+            messageOutput.flush();
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
     /**
      * Parses user input and sends it as a message from this client to the intended recipients.
+     * Attached files are hashed in the background before the message is sent, and their contents are only uploaded
+     * if the server asks for them.
      * @param input
+     * @param files files to attach to the message
+     */
+    public void sendMessageFromInput(String input, List<File> files) {
+        // ":history #room" and ":history @name" page back through one conversation rather than being sent
+        if (input.startsWith(":history ")) {
+            loadConversationHistory(input.substring(":history ".length()).trim());
+            return;
+        }
+
+        var attachedFiles = List.copyOf(files);
+
+        boolean submitted = runOnSender(() -> {
+            var attachments = new ArrayList<Attachment>();
+
+            try {
+                for (var f : attachedFiles) {
+                    String hash = Attachment.hash(f.toPath());
+                    sentFiles.put(hash, f);
+                    attachments.add(new Attachment(hash, f.getName(), f.length()));
+                }
+            } catch (IOException ioe) {
+                System.err.println("Error reading attachment, the message was not sent:");
+                ioe.printStackTrace();
+                return;
+            }
+
+            sendMessage(ChatMessageParser.parse(input, username, attachments));
+        });
+
+        if (!submitted) {
+            System.err.println("Cannot send message because the server is offline.");
+        }
+    }
+
+    /**
+     * Runs a task on the sender thread, unless the client has been closed, e.g. by the server going offline.
+     * @param task
+     * @return false if the client has been closed and the task will not run
      */
-    public void sendMessageFromInput(String input, ArrayList<Attachment> attachments) {
-        ChatMessage message = ChatMessageParser.parse(input, username, attachments);
-        sendMessage(message);
+    private boolean runOnSender(Runnable task) {
+        try {
+            sender.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
     }
 
     /**
-     * Displays attachments in the chat window and downloads them.
+     * Sends the contents of an attached file as a stream of chunks. The data goes straight from the file to the
+     * socket with transferTo, so files are never read into the Java heap.
+     * @param hash
+     */
+    private void uploadAttachment(String hash) {
+        var attached = sentFiles.get(hash);
+
+        if (attached == null) {
+            return;
+        }
+
+        try (var file = FileChannel.open(attached.toPath(), StandardOpenOption.READ)) {
+            long size = file.size();
+            long position = 0;
+            int sequence = 0;
+            boolean last;
+
+            // An empty file is still sent as a single, empty, last chunk
+            do {
+                int length = (int) Math.min(size - position, AttachmentChunk.DEFAULT_SIZE);
+                last = position + length >= size;
+                sendChunk(hash, sequence++, last, file, position, length);
+                position += length;
+            } while (!last);
+        } catch (IOException ioe) {
+            System.err.println("Error uploading attachment " + attached.getName() + ":");
+            ioe.printStackTrace();
+        }
+    }
+
+    private void sendChunk(String hash, int sequence, boolean last, FileChannel file, long position, int length) throws IOException {
+        outputLock.lock();
+
+        try {
+            ChatMessageFrames.writeChunk(messageOutput, socket.getChannel(), hash, sequence, last, file, position, length);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Displays the attachments of a received message that are already in the cache, and asks the server for the
+     * others.
      * @param attachments
+     * @param display
+     * @throws IOException if the cache cannot be written or the request cannot be sent
+     */
+    private void showAttachments(ArrayList<Attachment> attachments, MessageDisplay display) throws IOException {
+        if (attachments == null) {
+            return;
+        }
+
+        var requests = new ArrayList<AttachmentRequest>();
+
+        for (var a : attachments) {
+            // The hash is used as a file name, so anything else is rejected
+            if (a.hash() == null || !a.hash().matches("[0-9a-f]{64}")) {
+                continue;
+            }
+
+            var cached = new File(attachmentCache, a.hash());
+
+            if (cached.exists()) {
+                ClientController.attachReceivedFile(cached, display);
+                continue;
+            }
+
+            var download = downloads.get(a.hash());
+
+            if (download != null) {
+                download.displays++;
+                continue;
+            }
+
+            downloads.put(a.hash(), new Download(a.hash(), new File(attachmentCache, a.hash() + ".part")));
+            requests.add(new AttachmentRequest(a.hash()));
+        }
+
+        if (!requests.isEmpty()) {
+            sendFrames(requests);
+        }
+    }
+
+    /**
+     * Appends a chunk to its download. Once it is complete and matches its hash, it is moved into the cache and
+     * displayed.
+     * @param chunk
+     * @param display
      */
-    public void handleAttachments(ArrayList<Attachment> attachments) {
-        for (var a: attachments) {
-            var file = new File(a.name());
+    private void receiveChunk(AttachmentChunk chunk, MessageDisplay display) {
+        var download = downloads.get(chunk.hash());
 
-            try (var fos = new BufferedOutputStream(new FileOutputStream(file))) {
-                fos.write(a.contents());
-            } catch (IOException io) {
-                System.err.println("Error saving attachment: ");
-                io.printStackTrace();
+        if (download == null) {
+            return;
+        }
+
+        try {
+            if (chunk.sequence() != download.nextSequence++) {
+                throw new IOException("Missing part of attachment " + download.hash + ", the download was abandoned");
+            }
+
+            download.write(chunk.data());
+
+            if (chunk.last()) {
+                downloads.remove(chunk.hash());
+                download.output.close();
+
+                if (!Attachment.toHash(download.digest).equals(download.hash)) {
+                    throw new IOException("Attachment " + download.hash + " does not match its hash");
+                }
+
+                var cached = new File(attachmentCache, download.hash);
+                Files.move(download.partFile.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+                for (int i = 0; i < download.displays; i++) {
+                    ClientController.attachReceivedFile(cached, display);
+                }
+            }
+        } catch (IOException io) {
+            System.err.println("Error saving attachment: ");
+            io.printStackTrace();
+            downloads.remove(chunk.hash());
+
+            try {
+                download.output.close();
+                Files.deleteIfExists(download.partFile.toPath());
+            } catch (IOException ignored) {
             }
         }
     }
 
     /**
-     * Logs in to the chat room by sending the client's senderName.
+     * Logs in to the chat room by sending the client's senderName, along with the sequence of the last message it
+     * received if it has logged in before.
      */
     public void logIn() {
-        sendMessage(new ChatMessage(null, username, null, new ArrayList<>()));
+        acknowledged = loadSequence();
+        replaying = acknowledged != ChatMessage.NO_SEQUENCE;
+        sendMessage(new ChatMessage(null, username, null, new ArrayList<>(), null, acknowledged));
+    }
+
+    private File sequenceFile() {
+        return new File(storagePath, "sequences.properties");
+    }
+
+    /**
+     * @return the sequence saved by this user's last session, or NO_SEQUENCE
+     */
+    private long loadSequence() {
+        var sequences = new Properties();
+
+        try (var input = new FileInputStream(sequenceFile())) {
+            sequences.load(input);
+            return Long.parseLong(sequences.getProperty(username, String.valueOf(ChatMessage.NO_SEQUENCE)));
+        } catch (FileNotFoundException | NumberFormatException e) {
+            return ChatMessage.NO_SEQUENCE;
+        } catch (IOException ioe) {
+            System.err.println("Error reading the last received message:");
+            ioe.printStackTrace();
+            return ChatMessage.NO_SEQUENCE;
+        }
+    }
+
+    private void saveSequence() {
+        if (acknowledged == ChatMessage.NO_SEQUENCE) {
+            return;
+        }
+
+        var sequences = new Properties();
+
+        try {
+            if (sequenceFile().exists()) {
+                try (var input = new FileInputStream(sequenceFile())) {
+                    sequences.load(input);
+                }
+            }
+
+            sequences.setProperty(username, String.valueOf(acknowledged));
+
+            try (var output = new FileOutputStream(sequenceFile())) {
+                sequences.store(output, "The last message each user received");
+            }
+        } catch (IOException ioe) {
+            System.err.println("Error saving the last received message:");
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Records that a message was received. During a replay, only replayed messages are acknowledged until the
+     * replay is over, so that a replay that is cut short is resumed at the next login.
+     * @param message
+     * @return false if the message should not be displayed, because it marks the start or end of a replay or is a
+     * duplicate
+     */
+    private boolean acknowledge(ChatMessage message) {
+        long sequence = message.sequence();
+
+        if (sequence == ChatMessage.NO_SEQUENCE) {
+            return true;
+        }
+
+        // The replay markers are server messages without text
+        if (message.message() == null && "SERVER".equals(message.senderName())) {
+            if (replayEnd == ChatMessage.NO_SEQUENCE) {
+                replayEnd = sequence;
+            }
+            else {
+                replaying = false;
+                acknowledged = Math.max(acknowledged, newestLiveSequence);
+                receivedDuringReplay.clear();
+            }
+
+            return false;
+        }
+
+        if (!replaying) {
+            acknowledged = Math.max(acknowledged, sequence);
+            return true;
+        }
+
+        if (!receivedDuringReplay.add(sequence)) {
+            return false;
+        }
+
+        if (replayEnd != ChatMessage.NO_SEQUENCE && sequence < replayEnd) {
+            acknowledged = Math.max(acknowledged, sequence);
+        }
+        else {
+            newestLiveSequence = Math.max(newestLiveSequence, sequence);
+        }
+
+        return true;
+    }
+
+    /**
+     * Asks the server for the page of messages before the oldest one displayed. Does nothing if a page is already
+     * on its way or there is nothing older.
+     */
+    public void loadOlderMessages() {
+        if (historyComplete || socket.isClosed() || !loadingHistory.compareAndSet(false, true)) {
+            return;
+        }
+
+        // Sent by the sender thread so that it is not written in the middle of a message
+        boolean submitted = runOnSender(() -> {
+            try {
+                sendFrame(new HistoryRequest(null, oldestSequence, HISTORY_PAGE_SIZE));
+            } catch (IOException ioe) {
+                System.err.println("Error asking for older messages:");
+                ioe.printStackTrace();
+                loadingHistory.set(false);
+            }
+        });
+
+        if (!submitted) {
+            loadingHistory.set(false);
+        }
+    }
+
+    /**
+     * Asks the server for the page of a room's or a direct conversation's messages before the oldest one already
+     * shown for it, starting with the newest page.
+     * @param conversation "#room" or "@name"
+     */
+    public void loadConversationHistory(String conversation) {
+        if (conversation.length() < 2 || "#@".indexOf(conversation.charAt(0)) < 0
+                || !ChatMessageParser.isName(conversation.substring(1))) {
+            System.err.println("Cannot load the history of " + conversation + ", use :history #room or :history @name");
+            return;
+        }
+
+        long before = conversationOldest.getOrDefault(conversation, Long.MAX_VALUE);
+
+        boolean submitted = runOnSender(() -> {
+            try {
+                sendFrame(new HistoryRequest(conversation, before, HISTORY_PAGE_SIZE));
+            } catch (IOException ioe) {
+                System.err.println("Error asking for the history of " + conversation + ":");
+                ioe.printStackTrace();
+            }
+        });
+
+        if (!submitted) {
+            System.err.println("Cannot load the history of " + conversation + " because the server is offline.");
+        }
+    }
+
+    /**
+     * Displays a page of older messages above the ones already displayed, or a page of one conversation's history
+     * below them. Only an empty page ends the history, since the server may send fewer messages than were asked for,
+     * e.g. if it caps the page size or retention has deleted some of them.
+     * @param page
+     * @param display
+     */
+    private void receiveHistory(HistoryPage page, MessageDisplay display) {
+        if (page.conversation() != null) {
+            if (!page.messages().isEmpty()) {
+                conversationOldest.merge(page.conversation(), page.messages().get(0).sequence(), Math::min);
+            }
+
+            ClientController.attachConversationHistory(page.conversation(), page.messages(), username, display);
+            return;
+        }
+
+        if (page.messages().isEmpty()) {
+            historyComplete = true;
+        }
+
+        if (!page.messages().isEmpty()) {
+            oldestSequence = Math.min(oldestSequence, page.messages().get(0).sequence());
+            ClientController.attachHistory(page.messages(), username, display);
+        }
+
+        loadingHistory.set(false);
     }
 
     /**
      * Logs out of the chat room and closes this client's resources.
      */
     public void logOut() {
-        sendMessageFromInput(":quit", new ArrayList<>());
-        closeAllResources();
+        sendMessageFromInput(":quit", List.of());
+
+        // If the server went offline, the resources have already been closed
+        runOnSender(this::closeAllResources);
     }
 
     /**
      * Listens for messages from other clients and displays them to this client.
      * Since this is a blocking operation, it executes in its own thread.
      */
-    public void listenForMessages(VBox vbox_messages) {
+    public void listenForMessages(MessageDisplay display) {
         new Thread(new Runnable() {
             @Override
             public void run() {
                 while (!socket.isClosed()) {
                     try {
-                        ChatMessage message = (ChatMessage) messageInput.readObject();
-                        ClientController.attachReceivedMessage(message, vbox_messages);
-                        handleAttachments(message.attachments());
+                        var frame = ChatMessageFrames.read(messageInput, decompressor);
+
+                        if (frame instanceof ChatMessage message) {
+                            if (!acknowledge(message)) {
+                                continue;
+                            }
+
+                            if (message.sequence() != ChatMessage.NO_SEQUENCE) {
+                                oldestSequence = Math.min(oldestSequence, message.sequence());
+                            }
+
+                            ClientController.attachReceivedMessage(message, display);
+                            showAttachments(message.attachments(), display);
+                        }
+                        else if (frame instanceof AttachmentChunk chunk) {
+                            receiveChunk(chunk, display);
+                        }
+                        else if (frame instanceof HistoryPage page) {
+                            receiveHistory(page, display);
+                        }
+                        else if (frame instanceof AttachmentRequest request) {
+                            // The server does not have one of this client's attachments yet
+                            new Thread(() -> uploadAttachment(request.hash())).start();
+                        }
                     } catch (EOFException eof) {
                         System.out.println("Cannot receive messages because the server is offline.");
                         closeAllResources();
@@ -116,17 +609,23 @@ public class Client {
                         // The next loop will see the socket is closed and this thread will stop.
                         System.out.println("Goodbye, " + username);
                     }
-                    catch (IOException | ClassNotFoundException e) {
+                    catch (IOException e) {
                         System.err.println("Error listening for messages:");
                         e.printStackTrace();
                         closeAllResources();
                     }
                 }
+
+                if (decompressor != null) {
+                    decompressor.close();
+                }
             }
         }).start();
     }
 
     public void closeAllResources() {
+        sender.shutdown();
+        saveSequence();
         Closeable[] resources = new Closeable[]{messageInput, messageOutput, socket};
 
         try {
@@ -1,29 +1,26 @@
 package com.alexgrejuc.chatclient;
 
-import com.alexgrejuc.chatmessage.Attachment;
 import com.alexgrejuc.chatmessage.ChatMessage;
-import javafx.application.Platform;
-import javafx.beans.value.ChangeListener;
-import javafx.beans.value.ObservableValue;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.Button;
-import javafx.scene.control.ScrollPane;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.ResourceBundle;
 
 import static com.alexgrejuc.chatclient.Displayer.*;
@@ -35,16 +32,22 @@ public class ClientController implements Initializable {
     @FXML
     private TextField tf_message;
     @FXML
-    private VBox vbox_messages;
-    @FXML
-    private ScrollPane sp_main;
+    private ListView<MessageItem> lv_messages;
 
     private Client client;
+    private MessageDisplay display;
+
+    // Thumbnails of displayed images are limited to this many bytes of decoded pixels
+    private static final long THUMBNAIL_CACHE_BYTES = 64L * 1024 * 1024;
+    private final ThumbnailCache thumbnails = new ThumbnailCache(THUMBNAIL_WIDTH, THUMBNAIL_CACHE_BYTES);
 
     private Stage stage;
 
+    // Where the client keeps received attachments and other files
+    private File storagePath = new File(".");
+
     private FileChooser fileChooser;
-    private ArrayList<Attachment> attachments;
+    private ArrayList<File> attachments;
 
     /**
      * Initializes the event handlers for signing in, sending, receiving, and updating the display.
@@ -62,11 +65,14 @@ public class ClientController implements Initializable {
 
         tf_message.setText("Enter a username:");
 
-        // Scroll to bottom when messages are sent.
-        vbox_messages.heightProperty().addListener(new ChangeListener<Number>() {
-            @Override
-            public void changed(ObservableValue<? extends Number> observableValue, Number oldValue, Number newValue) {
-                sp_main.setVvalue((Double) newValue);
+        // Only the visible rows have cells, and older messages are loaded when the first row comes into view, or when
+        // the user tries to scroll up when there is nothing to scroll
+        lv_messages.setCellFactory(listView -> new MessageCell(thumbnails, this::loadOlderMessages));
+        display = new MessageDisplay(lv_messages);
+
+        lv_messages.setOnScroll(scrollEvent -> {
+            if (scrollEvent.getDeltaY() > 0 && display.isEmpty()) {
+                loadOlderMessages();
             }
         });
 
@@ -88,8 +94,9 @@ public class ClientController implements Initializable {
 
                     // Try to connect to the server with the given senderName.
                     try {
-                        Socket socket = new Socket("localhost", 7777);
-                        client = new Client(socket, username);
+                        // Opened through a channel so that attachments can be sent with transferTo
+                        Socket socket = SocketChannel.open(new InetSocketAddress("localhost", 7777)).socket();
+                        client = new Client(socket, username, storagePath);
                         client.logIn();
                     } catch (IOException ioe) {
                         System.out.println("Error connecting to the server. Perhaps it is offline or your configuration is incorrect.");
@@ -97,7 +104,7 @@ public class ClientController implements Initializable {
 
                     // This is a one-time action for getting a senderName. The handler has fired, so remove it.
                     tf_message.removeEventHandler(KeyEvent.KEY_PRESSED, this);
-                    client.listenForMessages(vbox_messages);
+                    client.listenForMessages(display);
                     tf_message.setOnKeyPressed(ke -> handleTextFieldEnterKey(ke));
                 }
             }
@@ -115,23 +122,27 @@ public class ClientController implements Initializable {
         button_choose.setOnMouseClicked(e -> chooseFile());
     }
 
+    /**
+     * Sets the directory the client keeps its files in. Must be called before logging in.
+     * @param storagePath
+     */
+    public void setStoragePath(File storagePath) {
+        this.storagePath = storagePath;
+    }
+
     /**
      * Allows user to choose a file and adds it to the list of attachments.
+     * The file is not read until the message is sent, when it is streamed to the server in chunks.
      */
     private void chooseFile() {
         File chosenFile = fileChooser.showOpenDialog(stage);
 
         if (chosenFile != null) {
-            try {
-                var fis = new BufferedInputStream(new FileInputStream(chosenFile));
-                var attachment = new Attachment(chosenFile.getName(), fis.readAllBytes());
-                attachments.add(attachment);
-            } catch (FileNotFoundException fnf) {
-                System.err.println("Could not find the selected file: ");
-                fnf.printStackTrace();
-            } catch (IOException io) {
-                System.err.println("Could not read file contents: ");
-                io.printStackTrace();
+            if (chosenFile.canRead()) {
+                attachments.add(chosenFile);
+            }
+            else {
+                System.err.println("Could not read the selected file: " + chosenFile);
             }
         }
     }
@@ -154,14 +165,12 @@ public class ClientController implements Initializable {
 
         if (!userInputMessage.isEmpty()) {
             // Display the message text
-            HBox messageBox = createSentMessageBox(userInputMessage);
-            vbox_messages.getChildren().add(messageBox);
+            display.append(MessageItem.text(userInputMessage, true));
 
             // Display the images
             // TODO: handle other attachment types
             for (var a: attachments) {
-                HBox attachmentBox = createSentImageBox(a.contents());
-                vbox_messages.getChildren().add(attachmentBox);
+                display.append(MessageItem.image(a, true));
             }
 
             client.sendMessageFromInput(userInputMessage, attachments);
@@ -179,31 +188,96 @@ public class ClientController implements Initializable {
 
     /**
      * Attaches a received message to the bottom of the message display.
+     * Its attachments are displayed once they have finished downloading.
      * @param message
-     * @param vbox
+     * @param display
      */
-    public static void attachReceivedMessage(ChatMessage message, VBox vbox) {
-        HBox messageBox = createReceivedMessageBox(message.senderName() + ": " + message.message());
+    public static void attachReceivedMessage(ChatMessage message, MessageDisplay display) {
+        display.append(MessageItem.text(describe(message), false));
+    }
 
-        // Create the attachment boxes.
-        ArrayList<HBox> attachmentBoxes = new ArrayList<>();
+    private void loadOlderMessages() {
+        if (client != null) {
+            client.loadOlderMessages();
+        }
+    }
 
-        // TODO: handle other attachment types.
-        for (var a : message.attachments()) {
-            attachmentBoxes.add(createReceivedImageBox(a.contents()));
+    /**
+     * Attaches a page of older messages to the top of the message display, keeping the rows that were at the top in
+     * view. The client's own messages are displayed as sent, and attachments are listed by name rather than
+     * downloaded.
+     * @param messages the messages, oldest first
+     * @param username the client's name
+     * @param display
+     */
+    public static void attachHistory(List<ChatMessage> messages, String username, MessageDisplay display) {
+        display.prepend(historyItems(messages, username));
+    }
+
+    /**
+     * Attaches a page of one conversation's history to the bottom of the message display, under a heading.
+     * @param conversation "#room" or "@name"
+     * @param messages the messages, oldest first, or none if there are no older ones
+     * @param username the client's name
+     * @param display
+     */
+    public static void attachConversationHistory(String conversation, List<ChatMessage> messages, String username,
+                                                 MessageDisplay display) {
+        if (messages.isEmpty()) {
+            display.append(MessageItem.text("No earlier messages in " + conversation + ".", false));
+            return;
         }
 
-        // Update the display with the message text and the attachments.
-        Platform.runLater(new Runnable() {
-            @Override
-            public void run() {
-                vbox.getChildren().add(messageBox);
+        display.append(MessageItem.text("Earlier in " + conversation + ":", false));
 
-                for (var box : attachmentBoxes) {
-                    vbox.getChildren().add(box);
+        for (var item : historyItems(messages, username)) {
+            display.append(item);
+        }
+    }
+
+    /**
+     * @param messages
+     * @param username the client's name
+     * @return the rows for messages from the history, with the client's own messages displayed as sent and
+     * attachments listed by name rather than downloaded
+     */
+    private static List<MessageItem> historyItems(List<ChatMessage> messages, String username) {
+        var items = new ArrayList<MessageItem>();
+
+        for (var message : messages) {
+            boolean sent = username.equals(message.senderName());
+
+            if (message.message() != null) {
+                items.add(MessageItem.text(sent ? message.message() : describe(message), sent));
+            }
+
+            if (message.attachments() != null) {
+                for (var a : message.attachments()) {
+                    items.add(MessageItem.text("[" + a.name() + "]", sent));
                 }
             }
-        });
+        }
+
+        return items;
+    }
+
+    /**
+     * @param message
+     * @return the text of a received message, after its sender and room
+     */
+    private static String describe(ChatMessage message) {
+        String sender = message.room() == null ? message.senderName() : "#" + message.room() + " " + message.senderName();
+        return sender + ": " + message.message();
+    }
+
+    /**
+     * Attaches a received file to the bottom of the message display.
+     * @param file a downloaded image
+     * @param display
+     */
+    public static void attachReceivedFile(File file, MessageDisplay display) {
+        // TODO: handle other attachment types.
+        display.append(MessageItem.image(file, false));
     }
 
     /**
@@ -2,105 +2,133 @@ package com.alexgrejuc.chatclient;
 
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.scene.Cursor;
+import javafx.scene.Scene;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ScrollPane;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Text;
 import javafx.scene.text.TextFlow;
+import javafx.stage.Stage;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 
 /**
  * Methods for creating display elements.
  */
 public class Displayer {
+    public static final int THUMBNAIL_WIDTH = 350;
 
-    public static HBox createSentBox() {
-        HBox hBox = new HBox();
-        hBox.setAlignment(Pos.CENTER_RIGHT);
-        hBox.setPadding(new Insets(5, 5, 5, 10));
-        return hBox;
-    }
+    private static final String SENT_STYLE = "-fx-color: rgb(239, 242, 255);" +
+            " -fx-background-color: rgb(15, 125, 242);" +
+            " -fx-background-radius: 20px;";
+    private static final String RECEIVED_STYLE = "-fx-background-color: rgb(233, 233, 235);" +
+            " -fx-background-radius: 20px;";
+    private static final Color SENT_TEXT = Color.color(0.934, 0.945, 0.996);
 
     /**
-     * Creates a blue right-aligned box for displaying a message sent by the client.
-     * @param message
-     * @return
+     * A row of the message display. The list only creates enough cells to fill the visible rows, and each cell
+     * reuses the same nodes for whichever row it is given, so the number of nodes does not grow with the number of
+     * messages. Sent rows are blue and right-aligned, and received rows are gray and left-aligned.
+     * Images are shown as thumbnails from the cache, with a placeholder until they have been decoded, and clicking
+     * one opens it at full resolution.
      */
-    public static HBox createSentMessageBox(String message) {
-        HBox hBox = createSentBox();
+    public static class MessageCell extends ListCell<MessageItem> {
+        private final HBox hBox = new HBox();
+        private final Text text = new Text();
+        private final TextFlow textFlow = new TextFlow(text);
+        private final ImageView imageView = new ImageView();
+        private final ThumbnailCache thumbnails;
+        private final Runnable onFirstRow;
 
-        Text text = new Text(message);
-        TextFlow textFlow = new TextFlow(text);
-        textFlow.setStyle("-fx-color: rgb(239, 242, 255);" +
-                " -fx-background-color: rgb(15, 125, 242);" +
-                " -fx-background-radius: 20px;");
+        /**
+         * @param thumbnails
+         * @param onFirstRow called when the first row is displayed, e.g. to load older messages
+         */
+        public MessageCell(ThumbnailCache thumbnails, Runnable onFirstRow) {
+            this.thumbnails = thumbnails;
+            this.onFirstRow = onFirstRow;
+            hBox.setPadding(new Insets(5, 5, 5, 10));
+            textFlow.setPadding(new Insets(5, 10, 5, 10));
+            setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
 
-        textFlow.setPadding((new Insets(5, 10, 5, 10)));
-        text.setFill(Color.color(0.934, 0.945, 0.996));
+            imageView.setCursor(Cursor.HAND);
+            imageView.setOnMouseClicked(mouseEvent -> {
+                if (getItem() != null && getItem().image() != null) {
+                    showFullImage(getItem().image());
+                }
+            });
+        }
 
-        hBox.getChildren().add(textFlow);
-        return hBox;
-    }
+        @Override
+        protected void updateItem(MessageItem item, boolean empty) {
+            super.updateItem(item, empty);
 
-    /**
-     * Creates a blue right-aligned box for displaying an image that the client received.
-     * @param imageBytes
-     */
-    public static HBox createSentImageBox(byte[] imageBytes) {
-        var v = createImageView(imageBytes);
-        HBox hBox = createSentBox();
-        hBox.getChildren().add(v);
-        return hBox;
-    }
+            if (empty || item == null) {
+                imageView.setImage(null);
+                setGraphic(null);
+                return;
+            }
 
-    /**
-     * Creates a left-aligned, padded box without any contents.
-     * @return An empty, stylized box.
-     */
-    public static HBox createReceivedBox() {
-        HBox hBox = new HBox();
-        hBox.setAlignment(Pos.CENTER_LEFT);
-        hBox.setPadding(new Insets(5, 5, 5, 10));
-        return hBox;
-    }
+            hBox.setAlignment(item.sent() ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
 
-    /**
-     * Creates a gray left-aligned box for displaying text contents of a message that the client received.
-     * @param message
-     * @return A box containing the message text.
-     */
-    public static HBox createReceivedMessageBox(String message) {
-        HBox hBox = createReceivedBox();
+            if (item.image() != null) {
+                showText("Loading " + item.image().getName() + "...", item.sent());
 
-        Text text = new Text(message);
-        TextFlow textFlow = new TextFlow(text);
-        textFlow.setStyle("-fx-background-color: rgb(233, 233, 235);" +
-                " -fx-background-radius: 20px;");
-        textFlow.setPadding(new Insets(5, 10, 5, 10));
+                // The cell may have been given another row by the time the image is decoded
+                thumbnails.load(item.image(), thumbnail -> {
+                    if (getItem() == item) {
+                        showImage(thumbnail, item);
+                    }
+                });
+            }
+            else {
+                showText(item.text(), item.sent());
+            }
 
-        hBox.getChildren().add(textFlow);
-        return hBox;
-    }
+            setGraphic(hBox);
 
-    /**
-     * Creates a stylized ImageView.
-     * @param imageBytes
-     */
-    public static ImageView createImageView(byte[] imageBytes) {
-        Image i = new Image(new ByteArrayInputStream(imageBytes), 350, 0, true, false);
-        return new ImageView(i);
+            if (getIndex() == 0) {
+                onFirstRow.run();
+            }
+        }
+
+        private void showText(String message, boolean sent) {
+            imageView.setImage(null);
+            text.setText(message);
+            text.setFill(sent ? SENT_TEXT : Color.BLACK);
+            textFlow.setStyle(sent ? SENT_STYLE : RECEIVED_STYLE);
+            hBox.getChildren().setAll(textFlow);
+        }
+
+        private void showImage(Image thumbnail, MessageItem item) {
+            if (thumbnail.isError()) {
+                showText("Could not display " + item.image().getName(), item.sent());
+                return;
+            }
+
+            imageView.setImage(thumbnail);
+            hBox.getChildren().setAll(imageView);
+        }
     }
 
     /**
-     * Creates a gray left-aligned box for displaying an image that the client received.
-     * @param imageBytes
+     * Opens an image at full resolution in its own window. The image is loaded in the background, and is only
+     * kept while the window is open.
+     * @param imageFile
      */
-    public static HBox createReceivedImageBox(byte[] imageBytes) {
-        var v = createImageView(imageBytes);
-        HBox hBox = createReceivedBox();
-        hBox.getChildren().add(v);
-        return hBox;
+    public static void showFullImage(File imageFile) {
+        var imageView = new ImageView(new Image(imageFile.toURI().toString(), true));
+        var scrollPane = new ScrollPane(imageView);
+        scrollPane.setPannable(true);
+
+        var stage = new Stage();
+        stage.setTitle(imageFile.getName());
+        stage.setScene(new Scene(scrollPane, 800, 600));
+        stage.show();
     }
 }
@@ -6,6 +6,7 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
 
+import java.io.File;
 import java.io.IOException;
 
 public class Main extends Application {
@@ -21,10 +22,13 @@ public class Main extends Application {
         ClientController controller = loader.getController();
         controller.setStage(stage);
 
+        // e.g. --storage=/home/alice/chat keeps received attachments in /home/alice/chat/attachments
+        controller.setStoragePath(new File(getParameters().getNamed().getOrDefault("storage", ".")));
+
         stage.show();
     }
 
     public static void main(String[] args) {
-        launch();
+        launch(args);
     }
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+package com.alexgrejuc.chatclient;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.control.ListView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The rows of the message display. Rows can be added from any thread: they are queued, and an AnimationTimer adds
+ * whatever has been queued once per frame, in bulk, and scrolls once. A burst of messages therefore costs one list
+ * change and one layout per frame, rather than a separate FX task, change and layout for each of them.
+ */
+public class MessageDisplay {
+    private final ListView<MessageItem> listView;
+
+    // Rows for the bottom of the display, in order, and pages of older rows for the top, each older than the last
+    private final ConcurrentLinkedQueue<MessageItem> newer = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<List<MessageItem>> older = new ConcurrentLinkedQueue<>();
+
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            update();
+        }
+    };
+
+    /**
+     * Starts updating the display. Must be called on the FX thread.
+     * @param listView
+     */
+    public MessageDisplay(ListView<MessageItem> listView) {
+        this.listView = listView;
+        timer.start();
+    }
+
+    /**
+     * Adds a row to the bottom of the display, which is scrolled to it.
+     * @param item
+     */
+    public void append(MessageItem item) {
+        newer.offer(item);
+    }
+
+    /**
+     * Adds rows to the top of the display, keeping the rows that were at the top in view.
+     * @param items older rows, oldest first
+     */
+    public void prepend(List<MessageItem> items) {
+        older.offer(items);
+    }
+
+    /**
+     * @return true if the display has no rows, and none are waiting to be added
+     */
+    public boolean isEmpty() {
+        return listView.getItems().isEmpty() && newer.isEmpty() && older.isEmpty();
+    }
+
+    /**
+     * Adds the rows that were queued since the last frame.
+     */
+    private void update() {
+        var top = new ArrayList<MessageItem>();
+        List<MessageItem> page;
+
+        while ((page = older.poll()) != null) {
+            top.addAll(0, page);
+        }
+
+        var bottom = new ArrayList<MessageItem>();
+        MessageItem item;
+
+        while ((item = newer.poll()) != null) {
+            bottom.add(item);
+        }
+
+        var items = listView.getItems();
+
+        if (!top.isEmpty()) {
+            items.addAll(0, top);
+        }
+
+        if (!bottom.isEmpty()) {
+            items.addAll(bottom);
+            listView.scrollTo(items.size() - 1);
+        }
+        else if (!top.isEmpty()) {
+            listView.scrollTo(top.size());
+        }
+    }
+}
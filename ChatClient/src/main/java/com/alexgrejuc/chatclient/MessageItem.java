@@ -0,0 +1,31 @@
+package com.alexgrejuc.chatclient;
+
+import java.io.File;
+
+/**
+ * A row of the message display: the text of a message, or one of its images.
+ * Rows are kept apart from the nodes that display them, which are only created for the visible rows.
+ * @param sent true if this client sent the message
+ * @param text the text to display, or null for an image
+ * @param image the image to display, or null for text
+ */
+public record MessageItem(boolean sent, String text, File image) {
+
+    /**
+     * @param text
+     * @param sent
+     * @return a row that displays text
+     */
+    public static MessageItem text(String text, boolean sent) {
+        return new MessageItem(sent, text, null);
+    }
+
+    /**
+     * @param image
+     * @param sent
+     * @return a row that displays an image
+     */
+    public static MessageItem image(File image, boolean sent) {
+        return new MessageItem(sent, null, image);
+    }
+}
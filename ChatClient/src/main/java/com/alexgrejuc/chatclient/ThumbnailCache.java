@@ -0,0 +1,114 @@
+package com.alexgrejuc.chatclient;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Scaled-down images for the message display, decoded on background threads and kept in a least recently used
+ * cache. The cache is limited by the bytes of the decoded pixels rather than the number of images, since that is what
+ * they cost the heap. Only accessed from the FX thread.
+ */
+public class ThumbnailCache {
+    private final int width;
+    private final long maxBytes;
+    private long bytes;
+
+    private final LinkedHashMap<File, Image> thumbnails = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Callers waiting for an image that is being decoded, so that each image is only decoded once at a time
+    private final HashMap<File, List<Consumer<Image>>> pending = new HashMap<>();
+
+    private final ExecutorService decoder = Executors.newFixedThreadPool(2, runnable -> {
+        var thread = new Thread(runnable, "thumbnail-decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param width the width images are scaled to, keeping their aspect ratio
+     * @param maxBytes the most decoded pixel bytes to keep
+     */
+    public ThumbnailCache(int width, long maxBytes) {
+        this.width = width;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Passes the thumbnail of an image to the callback, immediately if it is cached and otherwise once it has been
+     * decoded. Images that cannot be decoded are passed as an Image whose isError() is true.
+     * @param file
+     * @param callback called on the FX thread
+     */
+    public void load(File file, Consumer<Image> callback) {
+        var thumbnail = thumbnails.get(file);
+
+        if (thumbnail != null) {
+            callback.accept(thumbnail);
+            return;
+        }
+
+        var waiting = pending.get(file);
+
+        if (waiting != null) {
+            waiting.add(callback);
+            return;
+        }
+
+        waiting = new ArrayList<>();
+        waiting.add(callback);
+        pending.put(file, waiting);
+
+        decoder.execute(() -> {
+            // Loaded synchronously, since this is already off the FX thread
+            var decoded = new Image(file.toURI().toString(), width, 0, true, true, false);
+            Platform.runLater(() -> loaded(file, decoded));
+        });
+    }
+
+    private void loaded(File file, Image thumbnail) {
+        if (!thumbnail.isError()) {
+            put(file, thumbnail);
+        }
+
+        for (var callback : pending.remove(file)) {
+            callback.accept(thumbnail);
+        }
+    }
+
+    private void put(File file, Image thumbnail) {
+        var replaced = thumbnails.put(file, thumbnail);
+
+        if (replaced != null) {
+            bytes -= pixelBytes(replaced);
+        }
+
+        bytes += pixelBytes(thumbnail);
+
+        // Evict the least recently used, but always keep the newest so that a single large image is still shown
+        Iterator<Map.Entry<File, Image>> eldest = thumbnails.entrySet().iterator();
+
+        while (bytes > maxBytes && thumbnails.size() > 1) {
+            bytes -= pixelBytes(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @param image
+     * @return the size of the image's decoded pixels, at four bytes per pixel
+     */
+    private static long pixelBytes(Image image) {
+        return 4L * (long) image.getWidth() * (long) image.getHeight();
+    }
+}
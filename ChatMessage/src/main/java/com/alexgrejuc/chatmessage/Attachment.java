@@ -1,13 +1,64 @@
 package com.alexgrejuc.chatmessage;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 
 /**
- * The name of a file and its contents.
- * @param name
- * @param contents
+ * Describes a file attached to a message. Attachments are content-addressed: a message only carries the hash of
+ * the file, and the contents are fetched from the server as a stream of AttachmentChunks by clients that do not
+ * already have them.
+ * @param hash The SHA-256 hash of the file's contents, as lowercase hex.
+ * @param name The name of the file.
+ * @param size The total size of the file in bytes.
  */
 public record Attachment(
+        String hash,
         String name,
-        byte[] contents
-) implements Serializable {}
+        long size
+) implements Serializable {
+    /**
+     * @return a digest for computing attachment hashes
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @param digest
+     * @return the digest's hash, in the form used by attachments
+     */
+    public static String toHash(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Hashes a file without reading it into memory whole.
+     * @param file
+     * @return the file's hash
+     * @throws IOException
+     */
+    public static String hash(Path file) throws IOException {
+        var digest = newDigest();
+        var buffer = ByteBuffer.allocate(AttachmentChunk.DEFAULT_SIZE);
+
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                digest.update(buffer.flip());
+                buffer.clear();
+            }
+        }
+
+        return toHash(digest);
+    }
+}
@@ -0,0 +1,18 @@
+package com.alexgrejuc.chatmessage;
+
+/**
+ * A piece of an attachment's contents. Chunks of one attachment are sent in order, but other frames may be sent
+ * between them so that a large transfer does not hold up chat on the same connection.
+ * @param hash The hash of the attachment this chunk belongs to.
+ * @param sequence The position of this chunk within the attachment, starting at 0.
+ * @param last Whether this is the final chunk of the attachment.
+ * @param data The contents of this chunk.
+ */
+public record AttachmentChunk(
+        String hash,
+        int sequence,
+        boolean last,
+        byte[] data
+) implements Frame {
+    public static final int DEFAULT_SIZE = 64 * 1024;
+}
@@ -0,0 +1,11 @@
+package com.alexgrejuc.chatmessage;
+
+/**
+ * Asks the other side of a connection to send an attachment's contents as AttachmentChunks.
+ * A client sends one to fetch an attachment it does not have, and the server sends one to a client to ask it to
+ * upload an attachment the server has not stored yet.
+ * @param hash The hash of the attachment.
+ */
+public record AttachmentRequest(
+        String hash
+) implements Frame {}
@@ -9,12 +9,36 @@ import java.util.Set;
  *
  * @param message The message as typed by the user, excluding recipient names.
  * @param senderName The name of the sender.
- * @param recipientNames The names of the intended recipients. An empty list indicates a broadcast to all other clients.
- * @param attachments Files attached to this message.
+ * @param recipientNames The names of the intended recipients. Null indicates a broadcast to all other clients, while an
+ *                       empty list is a message to no one.
+ * @param attachments Files attached to this message. Their contents follow the message as AttachmentChunks.
+ * @param room The room the message was sent to, in which case it goes to the room's members instead of to
+ *             recipientNames. Null for messages outside of rooms.
+ * @param sequence The message's position in the server's message log, which clients acknowledge so that they can be
+ *                 sent what they missed when they reconnect. In a login message, the last sequence the client
+ *                 received. NO_SEQUENCE if there is none.
  */
 public record ChatMessage(
         String message,
         String senderName,
         ArrayList<String> recipientNames,
-        ArrayList<Attachment> attachments
-) implements Serializable {}
+        ArrayList<Attachment> attachments,
+        String room,
+        long sequence
+) implements Frame, Serializable {
+    public static final long NO_SEQUENCE = -1;
+
+    /**
+     * Creates a message that does not have a sequence number yet.
+     */
+    public ChatMessage(String message, String senderName, ArrayList<String> recipientNames, ArrayList<Attachment> attachments, String room) {
+        this(message, senderName, recipientNames, attachments, room, NO_SEQUENCE);
+    }
+
+    /**
+     * Creates a message that is not sent to a room.
+     */
+    public ChatMessage(String message, String senderName, ArrayList<String> recipientNames, ArrayList<Attachment> attachments) {
+        this(message, senderName, recipientNames, attachments, null);
+    }
+}
@@ -0,0 +1,598 @@
+package com.alexgrejuc.chatmessage;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * A compact binary encoding for ChatMessages and the other Frames.
+ * A frame is a varint payload length followed by the payload. The payload starts with a frame type byte, followed
+ * by the frame's fields. Strings are UTF-8 and every length is a varint. Nullable strings and lists store their
+ * length plus one so that zero can mean null.
+ * A message without recipients is a broadcast, which has its own frame type and no recipient field at all, so that
+ * a message to everyone is no larger than a message to no one.
+ * A message's sequence number is a fixed-width long right after the frame type, so that the server can number a
+ * message in its log after encoding it once.
+ * A history page holds its messages as complete frames, so that the server can copy them out of its log as they are.
+ * From version 8, a frame may be compressed: its payload is then the compressed frame type, the length of the original
+ * payload, and the original payload compressed with DEFLATE. See FrameCompressor and FrameDecompressor.
+ * Every change to the layout raises the version, since a peer that decodes an older layout would misread the frames:
+ *     1 messages, 2 attachment chunks, 3 attachments by hash and attachment requests, 4 rooms, 5 broadcast frames,
+ *     6 sequence numbers, 7 history requests and pages, 8 compressed frames
+ * Only the current layout is encoded, so a peer must support at least OLDEST_VERSION.
+ */
+public class ChatMessageCodec {
+    public static final int VERSION = 8;
+
+    // The oldest version with the current layout, which is every version but for compression
+    public static final int OLDEST_VERSION = 7;
+
+    // The first version in which frames may be compressed
+    public static final int COMPRESSION_VERSION = 8;
+
+    // Attachments travel as chunks, so no frame needs to be much larger than one, and a peer cannot make the other
+    // side buffer more than this for a frame
+    public static final int MAX_PAYLOAD_LENGTH = 256 * 1024;
+
+    public static final byte MESSAGE = 1;
+    public static final byte ATTACHMENT_CHUNK = 2;
+    public static final byte ATTACHMENT_REQUEST = 3;
+    public static final byte BROADCAST = 4;
+    public static final byte HISTORY_REQUEST = 5;
+    public static final byte HISTORY_PAGE = 6;
+    public static final byte COMPRESSED = 7;
+
+    /**
+     * @param frame
+     * @return the number of bytes encode() will write for this frame, including the length prefix
+     */
+    public static int encodedSize(Frame frame) {
+        int payloadLength = payloadLength(frame);
+        return varintLength(payloadLength) + payloadLength;
+    }
+
+    /**
+     * Writes a complete frame at the buffer's position.
+     * @param frame
+     * @param buffer a buffer with at least encodedSize(frame) bytes remaining
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public static void encode(Frame frame, ByteBuffer buffer) {
+        putVarint(buffer, payloadLength(frame));
+
+        if (frame instanceof ChatMessage message) {
+            encodeMessage(message, buffer);
+        }
+        else if (frame instanceof AttachmentChunk chunk) {
+            encodeChunk(chunk, buffer);
+        }
+        else if (frame instanceof AttachmentRequest request) {
+            buffer.put(ATTACHMENT_REQUEST);
+            putNullableString(buffer, request.hash());
+        }
+        else if (frame instanceof HistoryRequest request) {
+            buffer.put(HISTORY_REQUEST);
+            putNullableString(buffer, request.conversation());
+            putVarlong(buffer, request.before());
+            putVarint(buffer, request.limit());
+        }
+        else if (frame instanceof HistoryPage page) {
+            putHistoryPageFields(buffer, page.conversation(), page.before(), page.messages().size());
+
+            for (var m : page.messages()) {
+                encode(m, buffer);
+            }
+        }
+    }
+
+    /**
+     * @param conversation
+     * @param before
+     * @param count the number of messages in the page
+     * @param framesLength the total size of the messages' frames
+     * @return the number of bytes encodeHistoryPageHeader() will write, including the length prefix
+     */
+    public static int historyPageHeaderSize(String conversation, long before, int count, int framesLength) {
+        int payloadLength = historyPagePayloadLength(conversation, before, count, framesLength);
+        return varintLength(payloadLength) + payloadLength - framesLength;
+    }
+
+    /**
+     * Writes everything in a history page's frame except its messages, so that encoded messages can be copied after
+     * it. The header followed by the messages' frames is the same frame that encode() writes for the page.
+     * @param conversation
+     * @param before
+     * @param count the number of messages in the page
+     * @param framesLength the total size of the messages' frames
+     * @param buffer a buffer with at least historyPageHeaderSize(conversation, before, count, framesLength) bytes
+     *               remaining
+     */
+    public static void encodeHistoryPageHeader(String conversation, long before, int count, int framesLength, ByteBuffer buffer) {
+        putVarint(buffer, historyPagePayloadLength(conversation, before, count, framesLength));
+        putHistoryPageFields(buffer, conversation, before, count);
+    }
+
+    private static void putHistoryPageFields(ByteBuffer buffer, String conversation, long before, int count) {
+        buffer.put(HISTORY_PAGE);
+        putNullableString(buffer, conversation);
+        putVarlong(buffer, before);
+        putVarint(buffer, count);
+    }
+
+    private static int historyPagePayloadLength(String conversation, long before, int count, int framesLength) {
+        return 1 + nullableStringLength(conversation) + varlongLength(before) + varintLength(count) + framesLength;
+    }
+
+    private static void encodeChunk(AttachmentChunk chunk, ByteBuffer buffer) {
+        putChunkFields(buffer, chunk.hash(), chunk.sequence(), chunk.last(), chunk.data().length);
+        buffer.put(chunk.data());
+    }
+
+    /**
+     * @param hash
+     * @param sequence
+     * @param dataLength
+     * @return the number of bytes encodeChunkHeader() will write, including the length prefix
+     */
+    public static int chunkHeaderSize(String hash, int sequence, int dataLength) {
+        int payloadLength = chunkPayloadLength(hash, sequence, dataLength);
+        return varintLength(payloadLength) + payloadLength - dataLength;
+    }
+
+    /**
+     * Writes everything in a chunk's frame except its data, so the data can be sent straight from a file.
+     * The header followed by dataLength bytes of data is the same frame that encode() writes for the chunk.
+     * @param hash
+     * @param sequence
+     * @param last
+     * @param dataLength
+     * @param buffer a buffer with at least chunkHeaderSize(hash, sequence, dataLength) bytes remaining
+     */
+    public static void encodeChunkHeader(String hash, int sequence, boolean last, int dataLength, ByteBuffer buffer) {
+        putVarint(buffer, chunkPayloadLength(hash, sequence, dataLength));
+        putChunkFields(buffer, hash, sequence, last, dataLength);
+    }
+
+    private static void putChunkFields(ByteBuffer buffer, String hash, int sequence, boolean last, int dataLength) {
+        buffer.put(ATTACHMENT_CHUNK);
+        putNullableString(buffer, hash);
+        putVarint(buffer, sequence);
+        buffer.put((byte) (last ? 1 : 0));
+        putVarint(buffer, dataLength);
+    }
+
+    private static int chunkPayloadLength(String hash, int sequence, int dataLength) {
+        return 1 + nullableStringLength(hash) + varintLength(sequence) + 1 + varintLength(dataLength) + dataLength;
+    }
+
+    private static void encodeMessage(ChatMessage message, ByteBuffer buffer) {
+        var recipients = message.recipientNames();
+
+        buffer.put(recipients == null ? BROADCAST : MESSAGE);
+        buffer.putLong(message.sequence());
+        putNullableString(buffer, message.message());
+        putNullableString(buffer, message.senderName());
+        putNullableString(buffer, message.room());
+
+        if (recipients != null) {
+            putVarint(buffer, recipients.size());
+
+            for (var r : recipients) {
+                putNullableString(buffer, r);
+            }
+        }
+
+        var attachments = message.attachments();
+        putVarint(buffer, attachments == null ? 0 : attachments.size() + 1);
+
+        if (attachments != null) {
+            for (var a : attachments) {
+                putNullableString(buffer, a.hash());
+                putNullableString(buffer, a.name());
+                putVarlong(buffer, a.size());
+            }
+        }
+    }
+
+    /**
+     * Sets the sequence number of an encoded message in place.
+     * @param frame a buffer holding an encoded message frame, starting at its position
+     * @param sequence
+     */
+    public static void putSequence(ByteBuffer frame, long sequence) {
+        int prefixLength = 1;
+
+        while (frame.get(frame.position() + prefixLength - 1) < 0) {
+            prefixLength++;
+        }
+
+        // The sequence follows the frame type
+        frame.putLong(frame.position() + prefixLength + 1, sequence);
+    }
+
+    /**
+     * Decodes the frame at the buffer's position if it has fully arrived.
+     * @param buffer a buffer in read mode
+     * @return the decoded frame, or null if the frame is incomplete, in which case the position is unchanged
+     * @throws IOException if the frame is malformed
+     */
+    public static Frame decode(ByteBuffer buffer) throws IOException {
+        int size = frameSize(buffer);
+
+        if (size < 0 || buffer.remaining() < size) {
+            return null;
+        }
+
+        int payloadLength = getVarint(buffer);
+        ByteBuffer payload = buffer.slice(buffer.position(), payloadLength);
+        buffer.position(buffer.position() + payloadLength);
+        return decodePayload(payload);
+    }
+
+    /**
+     * Decodes a payload without its length prefix.
+     * @param payload a buffer holding exactly one payload
+     * @return the decoded frame
+     * @throws IOException if the payload is malformed
+     */
+    public static Frame decodePayload(ByteBuffer payload) throws IOException {
+        try {
+            byte type = payload.get();
+
+            return switch (type) {
+                case MESSAGE -> decodeMessage(payload, false);
+                case BROADCAST -> decodeMessage(payload, true);
+                case ATTACHMENT_CHUNK -> decodeChunk(payload);
+                case ATTACHMENT_REQUEST -> new AttachmentRequest(getNullableString(payload));
+                case HISTORY_REQUEST -> new HistoryRequest(getNullableString(payload), getVarlong(payload), getVarint(payload));
+                case HISTORY_PAGE -> decodeHistoryPage(payload);
+                case COMPRESSED -> throw new StreamCorruptedException("Compressed frame on a connection without compression");
+                default -> throw new StreamCorruptedException("Unknown frame type: " + type);
+            };
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new StreamCorruptedException("Truncated or malformed payload");
+        }
+    }
+
+    private static HistoryPage decodeHistoryPage(ByteBuffer payload) throws IOException {
+        String conversation = getNullableString(payload);
+        long before = getVarlong(payload);
+        int count = getVarint(payload);
+
+        // Every message takes at least a byte, which bounds the list even if the count is corrupt
+        var messages = new ArrayList<ChatMessage>(Math.min(count, payload.remaining()));
+
+        for (int i = 0; i < count; i++) {
+            int length = checkLength(getVarint(payload));
+            var message = decodePayload(payload.slice(payload.position(), length));
+            payload.position(payload.position() + length);
+
+            if (!(message instanceof ChatMessage chatMessage)) {
+                throw new StreamCorruptedException("History page contains a " + message.getClass().getSimpleName());
+            }
+
+            messages.add(chatMessage);
+        }
+
+        return new HistoryPage(conversation, before, messages);
+    }
+
+    private static AttachmentChunk decodeChunk(ByteBuffer payload) {
+        String hash = getNullableString(payload);
+        int sequence = getVarint(payload);
+        boolean last = payload.get() != 0;
+        byte[] data = new byte[getVarint(payload)];
+        payload.get(data);
+        return new AttachmentChunk(hash, sequence, last, data);
+    }
+
+    private static ChatMessage decodeMessage(ByteBuffer payload, boolean broadcast) throws StreamCorruptedException {
+        long sequence = payload.getLong();
+        String message = getNullableString(payload);
+        String senderName = getNullableString(payload);
+        String room = getNullableString(payload);
+
+        if (senderName == null) {
+            throw new StreamCorruptedException("Message without a sender");
+        }
+
+        ArrayList<String> recipients = null;
+
+        if (!broadcast) {
+            int recipientCount = getVarint(payload);
+
+            // Every recipient takes at least a byte, which bounds the list even if the count is corrupt
+            recipients = new ArrayList<>(Math.min(recipientCount, payload.remaining()));
+
+            for (int i = 0; i < recipientCount; i++) {
+                String recipient = getNullableString(payload);
+
+                if (recipient == null) {
+                    throw new StreamCorruptedException("Message with a null recipient");
+                }
+
+                recipients.add(recipient);
+            }
+        }
+
+        ArrayList<Attachment> attachments = null;
+        int attachmentCount = getVarint(payload) - 1;
+
+        if (attachmentCount >= 0) {
+            attachments = new ArrayList<>(Math.min(attachmentCount, payload.remaining()));
+
+            for (int i = 0; i < attachmentCount; i++) {
+                String hash = getNullableString(payload);
+                String name = getNullableString(payload);
+                attachments.add(new Attachment(hash, name, getVarlong(payload)));
+            }
+        }
+
+        return new ChatMessage(message, senderName, recipients, attachments, room, sequence);
+    }
+
+    /**
+     * Gives the total size of the frame at the buffer's position, if its length prefix has arrived.
+     * @param buffer a buffer in read mode
+     * @return the prefix length plus the payload length, or -1 if the prefix is incomplete
+     * @throws IOException if the announced length is invalid
+     */
+    public static int frameSize(ByteBuffer buffer) throws IOException {
+        int length = 0;
+
+        for (int i = 0, shift = 0; i < 5; i++, shift += 7) {
+            if (buffer.remaining() <= i) {
+                return -1;
+            }
+
+            byte b = buffer.get(buffer.position() + i);
+            length |= (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return i + 1 + checkLength(length);
+            }
+        }
+
+        throw new StreamCorruptedException("Invalid frame length prefix");
+    }
+
+    /**
+     * Checks a payload length announced by a peer.
+     * @param length
+     * @return the length
+     * @throws IOException if the length is negative or larger than MAX_PAYLOAD_LENGTH
+     */
+    public static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+
+        return length;
+    }
+
+    private static int payloadLength(Frame frame) {
+        if (frame instanceof AttachmentChunk chunk) {
+            return chunkPayloadLength(chunk.hash(), chunk.sequence(), chunk.data().length);
+        }
+
+        if (frame instanceof AttachmentRequest request) {
+            return 1 + nullableStringLength(request.hash());
+        }
+
+        if (frame instanceof HistoryRequest request) {
+            return 1 + nullableStringLength(request.conversation()) + varlongLength(request.before())
+                    + varintLength(request.limit());
+        }
+
+        if (frame instanceof HistoryPage page) {
+            int framesLength = 0;
+
+            for (var m : page.messages()) {
+                framesLength += encodedSize(m);
+            }
+
+            return historyPagePayloadLength(page.conversation(), page.before(), page.messages().size(), framesLength);
+        }
+
+        var message = (ChatMessage) frame;
+        int length = 1 + Long.BYTES + nullableStringLength(message.message()) + nullableStringLength(message.senderName())
+                + nullableStringLength(message.room());
+
+        var recipients = message.recipientNames();
+
+        if (recipients != null) {
+            length += varintLength(recipients.size());
+
+            for (var r : recipients) {
+                length += nullableStringLength(r);
+            }
+        }
+
+        var attachments = message.attachments();
+        length += varintLength(attachments == null ? 0 : attachments.size() + 1);
+
+        if (attachments != null) {
+            for (var a : attachments) {
+                length += nullableStringLength(a.hash()) + nullableStringLength(a.name()) + varlongLength(a.size());
+            }
+        }
+
+        return length;
+    }
+
+    public static int varintLength(int value) {
+        int length = 1;
+
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+
+        return length;
+    }
+
+    public static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.put((byte) value);
+    }
+
+    public static int varlongLength(long value) {
+        int length = 1;
+
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+
+        return length;
+    }
+
+    public static void putVarlong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.put((byte) value);
+    }
+
+    public static long getVarlong(ByteBuffer buffer) {
+        long value = 0;
+
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException("Varlong is too long");
+    }
+
+    public static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException("Varint is too long");
+    }
+
+    private static int nullableStringLength(String s) {
+        if (s == null) {
+            return 1;
+        }
+
+        int length = utf8Length(s);
+        return varintLength(length + 1) + length;
+    }
+
+    private static void putNullableString(ByteBuffer buffer, String s) {
+        if (s == null) {
+            putVarint(buffer, 0);
+            return;
+        }
+
+        putVarint(buffer, utf8Length(s) + 1);
+        putUtf8(buffer, s);
+    }
+
+    private static String getNullableString(ByteBuffer buffer) {
+        int length = getVarint(buffer) - 1;
+
+        if (length < 0) {
+            return null;
+        }
+
+        String s;
+
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return s;
+    }
+
+    /**
+     * Counts the UTF-8 bytes of a string without encoding it.
+     */
+    private static int utf8Length(String s) {
+        int length = 0;
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80) {
+                length += 1;
+            }
+            else if (c < 0x800) {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c)) {
+                length += 1;
+            }
+            else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes a string as UTF-8 without an intermediate byte array. Unpaired surrogates become '?', as in String.getBytes.
+     */
+    private static void putUtf8(ByteBuffer buffer, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            }
+            else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            }
+            else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            }
+            else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.alexgrejuc.chatmessage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads and writes ChatMessages and other frames on blocking streams and in buffers.
+ * The frame layout itself is defined by ChatMessageCodec.
+ */
+public class ChatMessageFrames {
+    /**
+     * Encodes a message or chunk into a complete frame, including its length prefix.
+     * @param frame
+     * @return the frame bytes
+     */
+    public static byte[] toFrame(Frame frame) {
+        byte[] bytes = new byte[ChatMessageCodec.encodedSize(frame)];
+        ChatMessageCodec.encode(frame, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Writes a single frame to the stream. The caller is responsible for flushing.
+     * @param output
+     * @param frame
+     * @throws IOException
+     */
+    public static void write(DataOutputStream output, Frame frame) throws IOException {
+        output.write(toFrame(frame));
+    }
+
+    /**
+     * Writes a chunk whose data is a region of a file. The data goes from the file to the socket with
+     * FileChannel.transferTo, which lets the operating system copy it without passing it through the Java heap.
+     * The caller is responsible for serializing writes to the connection.
+     * @param output the connection's stream, used for the header
+     * @param channel the connection's channel, or null to copy the data through the stream instead
+     * @param hash
+     * @param sequence
+     * @param last
+     * @param file
+     * @param position where the chunk's data starts in the file
+     * @param length the length of the chunk's data
+     * @throws IOException if the file is shorter than expected or the connection fails
+     */
+    public static void writeChunk(DataOutputStream output, WritableByteChannel channel, String hash, int sequence,
+                                  boolean last, FileChannel file, long position, int length) throws IOException {
+        var header = ByteBuffer.allocate(ChatMessageCodec.chunkHeaderSize(hash, sequence, length));
+        ChatMessageCodec.encodeChunkHeader(hash, sequence, last, length, header);
+        output.write(header.array());
+        output.flush();
+
+        transferFully(file, position, length, channel != null ? channel : Channels.newChannel(output));
+        output.flush();
+    }
+
+    /**
+     * Transfers a region of a file to a channel, however many calls to transferTo it takes.
+     * @param file
+     * @param position
+     * @param length
+     * @param channel a blocking channel
+     * @throws IOException if the file ends before the region does
+     */
+    public static void transferFully(FileChannel file, long position, long length, WritableByteChannel channel) throws IOException {
+        while (length > 0) {
+            long transferred = file.transferTo(position, length, channel);
+
+            if (transferred <= 0 && position >= file.size()) {
+                throw new EOFException("The file ended before all of its data was sent");
+            }
+
+            position += transferred;
+            length -= transferred;
+        }
+    }
+
+    /**
+     * Blocks until a complete frame has been read from the stream.
+     * @param input
+     * @return the decoded frame
+     * @throws IOException if the stream ends or the frame is malformed
+     */
+    public static Frame read(DataInputStream input) throws IOException {
+        int length = ChatMessageCodec.checkLength(readVarint(input));
+        byte[] payload = new byte[length];
+        input.readFully(payload);
+        return ChatMessageCodec.decodePayload(ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Blocks until a complete frame has been read, and restores it if it is compressed.
+     * @param input
+     * @param decompressor the connection's decompressor, or null if it did not negotiate compression
+     * @return the decoded frame
+     * @throws IOException if the stream ends or the frame is malformed
+     */
+    public static Frame read(DataInputStream input, FrameDecompressor decompressor) throws IOException {
+        int length = ChatMessageCodec.checkLength(readVarint(input));
+        byte[] payload = new byte[length];
+        input.readFully(payload);
+
+        if (decompressor != null && length > 0 && payload[0] == ChatMessageCodec.COMPRESSED) {
+            return ChatMessageCodec.decodePayload(decompressor.decompress(ByteBuffer.wrap(payload)));
+        }
+
+        return ChatMessageCodec.decodePayload(ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Gives the total size of the frame at the buffer's position, if its length prefix has arrived.
+     * @param buffer a buffer in read mode
+     * @return the prefix length plus the payload length, or -1 if the prefix is incomplete
+     * @throws IOException if the announced length is invalid
+     */
+    public static int frameSize(ByteBuffer buffer) throws IOException {
+        return ChatMessageCodec.frameSize(buffer);
+    }
+
+    /**
+     * Decodes the frame at the buffer's position if it has fully arrived.
+     * @param buffer a buffer in read mode
+     * @return the decoded frame, or null if the frame is incomplete, in which case the position is unchanged
+     * @throws IOException if the frame is malformed
+     */
+    public static Frame decode(ByteBuffer buffer) throws IOException {
+        return ChatMessageCodec.decode(buffer);
+    }
+
+    private static int readVarint(DataInputStream input) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = input.readByte();
+            value |= (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new StreamCorruptedException("Invalid frame length prefix");
+    }
+}
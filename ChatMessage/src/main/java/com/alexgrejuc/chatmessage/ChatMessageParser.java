@@ -1,11 +1,134 @@
 package com.alexgrejuc.chatmessage;
 
-import java.io.File;
 import java.util.ArrayList;
-import java.util.Optional;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
 public class ChatMessageParser {
+    /**
+     * Where the recipients and the body of a user's input are, found without creating any strings.
+     * A recipient is an '@' followed by one or more word characters (letters, digits or '_') and a whitespace
+     * character, anywhere in the input. An input that starts with '#' followed by a room name and a whitespace
+     * character is sent to that room. The body is everything after the room and the last recipient.
+     * Spans can be reused for many inputs to avoid allocating.
+     */
+    public static class Spans {
+        // The start and end of each recipient's name, in pairs
+        private int[] bounds = new int[8];
+        private int recipientCount;
+        private int roomStart;
+        private int roomEnd;
+        private int bodyStart;
+
+        /**
+         * @return true if the input starts with a room
+         */
+        public boolean hasRoom() {
+            return roomEnd > roomStart;
+        }
+
+        /**
+         * @return the index of the first character of the room's name, after the '#'
+         */
+        public int roomStart() {
+            return roomStart;
+        }
+
+        /**
+         * @return the index just past the last character of the room's name
+         */
+        public int roomEnd() {
+            return roomEnd;
+        }
+
+        /**
+         * @return the number of recipients found
+         */
+        public int recipientCount() {
+            return recipientCount;
+        }
+
+        /**
+         * @param i
+         * @return the index of the first character of the i-th recipient's name, after the '@'
+         */
+        public int recipientStart(int i) {
+            return bounds[2 * i];
+        }
+
+        /**
+         * @param i
+         * @return the index just past the last character of the i-th recipient's name
+         */
+        public int recipientEnd(int i) {
+            return bounds[2 * i + 1];
+        }
+
+        /**
+         * @return the index where the body of the message starts
+         */
+        public int bodyStart() {
+            return bodyStart;
+        }
+
+        private void add(int start, int end) {
+            if (2 * recipientCount + 2 > bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+
+            bounds[2 * recipientCount] = start;
+            bounds[2 * recipientCount + 1] = end;
+            recipientCount++;
+        }
+    }
+
+    /**
+     * Finds the recipients and the body of a user's input in a single pass.
+     * @param input Everything the user has typed. Must not be null.
+     * @param spans where to put the result, which is cleared first
+     * @return spans
+     */
+    public static Spans scan(CharSequence input, Spans spans) {
+        spans.recipientCount = 0;
+        spans.roomStart = 0;
+        spans.roomEnd = 0;
+        spans.bodyStart = 0;
+
+        int length = input.length();
+        int i = 0;
+
+        if (length > 0 && input.charAt(0) == '#') {
+            int roomEnd = nameEnd(input, 1);
+
+            if (roomEnd > 1 && roomEnd < length && isWhitespace(input.charAt(roomEnd))) {
+                spans.roomStart = 1;
+                spans.roomEnd = roomEnd;
+                spans.bodyStart = roomEnd + 1;
+                i = roomEnd + 1;
+            }
+        }
+
+        while (i < length) {
+            if (input.charAt(i) != '@') {
+                i++;
+                continue;
+            }
+
+            int nameEnd = nameEnd(input, i + 1);
+
+            // A recipient's name is ended by whitespace. Otherwise, the '@' is part of the body.
+            if (nameEnd > i + 1 && nameEnd < length && isWhitespace(input.charAt(nameEnd))) {
+                spans.add(i + 1, nameEnd);
+                spans.bodyStart = nameEnd + 1;
+                i = nameEnd + 1;
+            }
+            else {
+                i++;
+            }
+        }
+
+        return spans;
+    }
+
     /**
      * Parses a user's input string and combines that with additional information to make a ChatMessage.
      * @param inputString Everything the user has typed, including recipientNames. Must not be null.
@@ -14,25 +137,64 @@ public class ChatMessageParser {
      * @return the parsed message information
      */
     public static ChatMessage parse(String inputString, String senderName, ArrayList<Attachment> attachments) {
-        var recipientPattern = Pattern.compile("(@\\w+\\s)");
-        var matcher = recipientPattern.matcher(inputString);
+        return parse((CharSequence) inputString, senderName, attachments);
+    }
+
+    /**
+     * Parses a user's input and combines that with additional information to make a ChatMessage.
+     * Only the recipients' names and the body are copied out of the input.
+     * @param input Everything the user has typed, including recipientNames. Must not be null.
+     * @param senderName The name of the sender.
+     * @param attachments Attachments associated with this message.
+     * @return the parsed message information
+     */
+    public static ChatMessage parse(CharSequence input, String senderName, ArrayList<Attachment> attachments) {
+        var spans = scan(input, new Spans());
+
+        // No recipients specified means it is a message to all other clients, which is sent without a recipient list
+        ArrayList<String> recipients = null;
 
-        var recipients = new ArrayList<String>();
-        int end = -1;
+        if (spans.recipientCount() > 0) {
+            recipients = new ArrayList<>(spans.recipientCount());
 
-        // Find all the recipientNames, if any
-        while (matcher.find()) {
-            recipients.add(matcher.group().replace("@", "").stripTrailing());
-            end = matcher.end();
+            for (int i = 0; i < spans.recipientCount(); i++) {
+                recipients.add(input.subSequence(spans.recipientStart(i), spans.recipientEnd(i)).toString());
+            }
         }
 
+        String room = spans.hasRoom() ? input.subSequence(spans.roomStart(), spans.roomEnd()).toString() : null;
+
         // The message is any text that comes after the last recipient
-        var message = inputString.substring(Math.max(end, 0));
+        var message = input.subSequence(spans.bodyStart(), input.length()).toString();
+
+        return new ChatMessage(message, senderName, recipients, attachments, room);
+    }
+
+    /**
+     * @param name
+     * @return true if the whole string could be a recipient or room name
+     */
+    public static boolean isName(CharSequence name) {
+        return name.length() > 0 && nameEnd(name, 0) == name.length();
+    }
 
-        // No recipients specified means it is a message to all other clients.
-        // In this case, the server will populate the recipients
-        recipients = recipients.isEmpty() ? null : recipients;
+    private static int nameEnd(CharSequence input, int start) {
+        int end = start;
+
+        while (end < input.length() && isWordCharacter(input.charAt(end))) {
+            end++;
+        }
+
+        return end;
+    }
+
+    // The same characters as \w in a regular expression
+    private static boolean isWordCharacter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
 
-        return new ChatMessage(message, senderName, recipients, attachments);
+    // The same characters as \s in a regular expression
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
     }
 }
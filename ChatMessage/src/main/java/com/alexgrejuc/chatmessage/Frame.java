@@ -0,0 +1,6 @@
+package com.alexgrejuc.chatmessage;
+
+/**
+ * Anything that can be sent in a frame over a chat connection.
+ */
+public sealed interface Frame permits ChatMessage, AttachmentChunk, AttachmentRequest, HistoryRequest, HistoryPage {}
@@ -0,0 +1,94 @@
+package com.alexgrejuc.chatmessage;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses encoded frames for a connection that negotiated compression, reusing one Deflater for all of them.
+ * Frames smaller than a threshold are not compressed, since DEFLATE gains little on a short message and costs the
+ * same fixed overhead, and neither are frames that do not shrink by at least an eighth.
+ * Not thread-safe: each connection uses its own from a single thread.
+ */
+public class FrameCompressor {
+    private final Deflater deflater;
+    private final int minBytes;
+    private byte[] output = new byte[0];
+
+    /**
+     * @param level the DEFLATE level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+     * @param minBytes the smallest frame that is compressed
+     */
+    public FrameCompressor(int level, int minBytes) {
+        this.deflater = new Deflater(level);
+        this.minBytes = minBytes;
+    }
+
+    /**
+     * @param frameSize
+     * @return true if a frame of the size is large enough to be worth compressing
+     */
+    public boolean accepts(int frameSize) {
+        return frameSize >= minBytes;
+    }
+
+    /**
+     * Compresses a complete frame, whose bytes may be split across several buffers, e.g. a chunk's header and data.
+     * The buffers' positions are not changed.
+     * @param parts the frame from its length prefix onwards
+     * @return the compressed frame, including its own length prefix, or null if compressing does not save enough
+     */
+    public byte[] compress(ByteBuffer... parts) {
+        var first = parts[0].duplicate();
+        int payloadLength = ChatMessageCodec.getVarint(first);
+
+        // Anything that does not save an eighth is sent as it is
+        int limit = payloadLength - payloadLength / 8;
+
+        if (output.length < limit) {
+            output = new byte[limit];
+        }
+
+        int written = 0;
+
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                deflater.setInput(i == 0 ? first : parts[i].duplicate());
+
+                while (!deflater.needsInput()) {
+                    if (written == limit) {
+                        return null;
+                    }
+
+                    written += deflater.deflate(output, written, limit - written);
+                }
+            }
+
+            deflater.finish();
+
+            while (!deflater.finished()) {
+                if (written == limit) {
+                    return null;
+                }
+
+                written += deflater.deflate(output, written, limit - written);
+            }
+        } finally {
+            deflater.reset();
+        }
+
+        int compressedPayloadLength = 1 + ChatMessageCodec.varintLength(payloadLength) + written;
+        var frame = ByteBuffer.allocate(ChatMessageCodec.varintLength(compressedPayloadLength) + compressedPayloadLength);
+        ChatMessageCodec.putVarint(frame, compressedPayloadLength);
+        frame.put(ChatMessageCodec.COMPRESSED);
+        ChatMessageCodec.putVarint(frame, payloadLength);
+        frame.put(output, 0, written);
+        return frame.array();
+    }
+
+    /**
+     * Frees the Deflater's native memory. The compressor must not be used afterwards.
+     */
+    public void close() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,65 @@
+package com.alexgrejuc.chatmessage;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Restores the payloads of compressed frames for a connection that negotiated compression, reusing one Inflater for
+ * all of them. Not thread-safe: each connection uses its own from the thread that reads from it.
+ */
+public class FrameDecompressor {
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * @param payload a compressed frame's payload, starting with its frame type
+     * @return the original payload
+     * @throws IOException if the payload is malformed or does not restore to the announced length
+     */
+    public ByteBuffer decompress(ByteBuffer payload) throws IOException {
+        try {
+            if (payload.get() != ChatMessageCodec.COMPRESSED) {
+                throw new StreamCorruptedException("Not a compressed frame");
+            }
+
+            int length = ChatMessageCodec.checkLength(ChatMessageCodec.getVarint(payload));
+
+            // A byte to spare, so that the end of the stream is reached and a payload that restores to more than
+            // announced is caught
+            byte[] original = new byte[length + 1];
+            inflater.setInput(payload);
+            int restored = 0;
+
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(original, restored, original.length - restored);
+                restored += inflated;
+
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary() || restored == original.length)) {
+                    break;
+                }
+            }
+
+            if (restored != length || !inflater.finished()) {
+                throw new StreamCorruptedException("Compressed frame does not restore to its announced length");
+            }
+
+            return ByteBuffer.wrap(original, 0, length);
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Malformed compressed frame: " + e.getMessage());
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new StreamCorruptedException("Truncated or malformed payload");
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Frees the Inflater's native memory. The decompressor must not be used afterwards.
+     */
+    public void close() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,131 @@
+package com.alexgrejuc.chatmessage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The exchange that opens every connection, before any frames are sent.
+ * The client sends a hello with the newest codec version it supports and the server answers with the version both
+ * sides will use, or with 0 if it supports none of the client's versions, which is the case for a client older than
+ * ChatMessageCodec.OLDEST_VERSION. A hello is the ASCII magic "CHAT"
+ * followed by a single version byte.
+ */
+public class Handshake {
+    public static final int MAGIC = 0x43484154;
+    public static final int LENGTH = Integer.BYTES + 1;
+    public static final int REJECTED = 0;
+
+    /**
+     * @param version
+     * @return the bytes of a hello carrying the version
+     */
+    public static byte[] hello(int version) {
+        return ByteBuffer.allocate(LENGTH).putInt(MAGIC).put((byte) version).array();
+    }
+
+    /**
+     * Chooses the version to use for a client's offer.
+     * @param offeredVersion the newest version the client supports
+     * @return the newest version both sides support, or REJECTED
+     */
+    public static int negotiate(int offeredVersion) {
+        return negotiate(offeredVersion, ChatMessageCodec.VERSION);
+    }
+
+    /**
+     * Chooses the version to use for a client's offer, going no higher than a given version.
+     * @param offeredVersion the newest version the client supports
+     * @param newestVersion the newest version to use, e.g. one below COMPRESSION_VERSION to turn compression off
+     * @return the newest version both sides support, or REJECTED
+     */
+    public static int negotiate(int offeredVersion, int newestVersion) {
+        if (offeredVersion < ChatMessageCodec.OLDEST_VERSION) {
+            return REJECTED;
+        }
+
+        return Math.min(offeredVersion, Math.min(newestVersion, ChatMessageCodec.VERSION));
+    }
+
+    /**
+     * Blocks until a hello has been read from the stream.
+     * @param input
+     * @return the version in the hello
+     * @throws IOException if the peer does not speak this protocol
+     */
+    public static int read(DataInputStream input) throws IOException {
+        checkMagic(input.readInt());
+        return input.readUnsignedByte();
+    }
+
+    /**
+     * Reads the hello at the buffer's position if it has fully arrived.
+     * @param buffer a buffer in read mode
+     * @return the version in the hello, or -1 if it is incomplete, in which case the position is unchanged
+     * @throws IOException if the peer does not speak this protocol
+     */
+    public static int read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < LENGTH) {
+            return -1;
+        }
+
+        checkMagic(buffer.getInt());
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * Performs the client side of the handshake.
+     * @param input
+     * @param output
+     * @return the agreed version
+     * @throws IOException if the server rejects every version the client supports
+     */
+    public static int connect(DataInputStream input, DataOutputStream output) throws IOException {
+        output.write(hello(ChatMessageCodec.VERSION));
+        output.flush();
+
+        int version = read(input);
+
+        if (version == REJECTED) {
+            throw new IOException("The server does not support protocol version " + ChatMessageCodec.VERSION);
+        }
+
+        return version;
+    }
+
+    /**
+     * Performs the server side of the handshake.
+     * @param input
+     * @param output
+     * @return the agreed version
+     * @throws IOException if the client supports no version this server does
+     */
+    public static int accept(DataInputStream input, DataOutputStream output) throws IOException {
+        return accept(input, output, ChatMessageCodec.VERSION);
+    }
+
+    /**
+     * Performs the server side of the handshake, going no higher than a given version.
+     * @param input
+     * @param output
+     * @param newestVersion
+     * @return the agreed version
+     * @throws IOException if the client supports no version this server does
+     */
+    public static int accept(DataInputStream input, DataOutputStream output, int newestVersion) throws IOException {
+        int version = negotiate(read(input), newestVersion);
+        output.write(hello(version));
+        output.flush();
+
+        if (version == REJECTED) {
+            throw new IOException("The client does not support any protocol version this server does");
+        }
+
+        return version;
+    }
+
+    private static void checkMagic(int magic) throws IOException {
+        if (magic != MAGIC) {
+            throw new StreamCorruptedException("Not a chat protocol hello: " + Integer.toHexString(magic));
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.alexgrejuc.chatmessage;
+
+import java.util.ArrayList;
+
+/**
+ * The server's answer to a HistoryRequest.
+ * @param conversation The conversation that was requested.
+ * @param before The sequence number the page was requested before.
+ * @param messages The messages, oldest first, or none if there are no older messages. There may be fewer than the
+ *                 requested limit even if there are, since the server caps the limit and skips deleted messages.
+ */
+public record HistoryPage(
+        String conversation,
+        long before,
+        ArrayList<ChatMessage> messages
+) implements Frame {}
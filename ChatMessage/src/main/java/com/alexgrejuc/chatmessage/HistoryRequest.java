@@ -0,0 +1,14 @@
+package com.alexgrejuc.chatmessage;
+
+/**
+ * Asks the server for a page of older messages.
+ * @param conversation "#room" for a room, "@name" for the direct messages between the client and another user, or
+ *                     null for everything the client sees: broadcasts, its direct messages and its rooms' messages.
+ * @param before The page ends with the message just before this sequence number. Long.MAX_VALUE for the newest page.
+ * @param limit The most messages to send.
+ */
+public record HistoryRequest(
+        String conversation,
+        long before,
+        int limit
+) implements Frame {}
@@ -0,0 +1,323 @@
+package com.alexgrejuc.chatmessage;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatMessageCodecTest {
+
+    private static Frame roundTrip(Frame frame) throws IOException {
+        var buffer = ByteBuffer.allocate(ChatMessageCodec.encodedSize(frame));
+        ChatMessageCodec.encode(frame, buffer);
+        assertFalse(buffer.hasRemaining());
+
+        buffer.flip();
+        var decoded = ChatMessageCodec.decode(buffer);
+        assertFalse(buffer.hasRemaining());
+        return decoded;
+    }
+
+    @Test
+    void textMessage() throws IOException {
+        var recipients = new ArrayList<>(Arrays.asList("Bob", "Zoë"));
+        var message = new ChatMessage("Hi, Bob and Zoë! 👋", "Alice", recipients, new ArrayList<>());
+
+        assertEquals(message, roundTrip(message));
+    }
+
+    @Test
+    void nullFields() throws IOException {
+        // A login message has no text, and a broadcast has no recipients
+        var message = new ChatMessage(null, "Alice", null, null);
+
+        assertEquals(message, roundTrip(message));
+    }
+
+    @Test
+    void messagesWithoutSenderOrWithNullRecipientsAreRejected() {
+        byte[] noSender = ChatMessageFrames.toFrame(new ChatMessage("Hi", null, null, null));
+        assertThrows(StreamCorruptedException.class, () -> ChatMessageCodec.decode(ByteBuffer.wrap(noSender)));
+
+        var recipients = new ArrayList<String>();
+        recipients.add(null);
+        byte[] nullRecipient = ChatMessageFrames.toFrame(new ChatMessage("Hi", "Alice", recipients, null));
+        assertThrows(StreamCorruptedException.class, () -> ChatMessageCodec.decode(ByteBuffer.wrap(nullRecipient)));
+    }
+
+    @Test
+    void broadcastHasNoRecipientField() throws IOException {
+        var broadcast = new ChatMessage("Hello, world!", "Alice", null, new ArrayList<>());
+        var direct = new ChatMessage("Hello, world!", "Alice", new ArrayList<>(), new ArrayList<>());
+
+        assertEquals(broadcast, roundTrip(broadcast));
+        assertEquals(direct, roundTrip(direct));
+        assertEquals(ChatMessageCodec.encodedSize(direct) - 1, ChatMessageCodec.encodedSize(broadcast));
+        assertEquals(ChatMessageCodec.BROADCAST, ChatMessageFrames.toFrame(broadcast)[1]);
+    }
+
+    @Test
+    void roomMessage() throws IOException {
+        var message = new ChatMessage("Standup in 5", "Alice", null, new ArrayList<>(), "dev");
+
+        assertEquals(message, roundTrip(message));
+    }
+
+    @Test
+    void sequenceIsSetInPlace() throws IOException {
+        // A message long enough for a multi-byte length prefix
+        var message = new ChatMessage("x".repeat(300), "Alice", null, new ArrayList<>());
+        assertEquals(ChatMessage.NO_SEQUENCE, ((ChatMessage) roundTrip(message)).sequence());
+
+        var buffer = ByteBuffer.wrap(ChatMessageFrames.toFrame(message));
+        ChatMessageCodec.putSequence(buffer, 1234567890123L);
+
+        var numbered = new ChatMessage(message.message(), "Alice", null, new ArrayList<>(), null, 1234567890123L);
+        assertEquals(numbered, ChatMessageCodec.decode(buffer));
+    }
+
+    @Test
+    void historyRequest() throws IOException {
+        var newest = new HistoryRequest(null, Long.MAX_VALUE, 50);
+        var room = new HistoryRequest("#dev", 1234, 50);
+
+        assertEquals(newest, roundTrip(newest));
+        assertEquals(room, roundTrip(room));
+    }
+
+    @Test
+    void historyPageFromEncodedMessages() throws IOException {
+        var messages = new ArrayList<>(Arrays.asList(
+                new ChatMessage("first", "Alice", null, new ArrayList<>(), null, 7),
+                new ChatMessage("second", "Bob", new ArrayList<>(Arrays.asList("Alice")), new ArrayList<>(), null, 9)));
+        var page = new HistoryPage("@Bob", 10, messages);
+
+        assertEquals(page, roundTrip(page));
+
+        // A page assembled from a header and already-encoded messages is the same frame
+        var frames = new ByteArrayOutputStream();
+
+        for (var m : messages) {
+            frames.write(ChatMessageFrames.toFrame(m));
+        }
+
+        var buffer = ByteBuffer.allocate(ChatMessageCodec.historyPageHeaderSize("@Bob", 10, 2, frames.size()) + frames.size());
+        ChatMessageCodec.encodeHistoryPageHeader("@Bob", 10, 2, frames.size(), buffer);
+        buffer.put(frames.toByteArray());
+
+        assertArrayEquals(ChatMessageFrames.toFrame(page), buffer.array());
+    }
+
+    @Test
+    void attachments() throws IOException {
+        var attachments = new ArrayList<>(Arrays.asList(new Attachment("ab12", "cat.png", 5_000_000_000L)));
+        var message = new ChatMessage("look", "Alice", null, attachments);
+
+        assertEquals(message, roundTrip(message));
+    }
+
+    @Test
+    void attachmentChunk() throws IOException {
+        byte[] data = new byte[1000];
+        Arrays.fill(data, (byte) 7);
+        var chunk = new AttachmentChunk("ab12", 3, true, data);
+
+        var decoded = (AttachmentChunk) roundTrip(chunk);
+
+        assertEquals(chunk.hash(), decoded.hash());
+        assertEquals(3, decoded.sequence());
+        assertTrue(decoded.last());
+        assertArrayEquals(data, decoded.data());
+    }
+
+    @Test
+    void chunkFromFile() throws IOException {
+        byte[] contents = new byte[300];
+        Arrays.fill(contents, (byte) 9);
+        Path path = Files.createTempFile("chunk", ".bin");
+
+        try (var file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+            file.write(ByteBuffer.wrap(contents));
+
+            // The header followed by the file region is the same frame as an encoded chunk
+            var bytes = new ByteArrayOutputStream();
+            ChatMessageFrames.writeChunk(new DataOutputStream(bytes), null, "ab12", 1, false, file, 100, 200);
+
+            var decoded = (AttachmentChunk) ChatMessageFrames.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            assertEquals("ab12", decoded.hash());
+            assertEquals(1, decoded.sequence());
+            assertFalse(decoded.last());
+            assertArrayEquals(Arrays.copyOfRange(contents, 100, 300), decoded.data());
+        }
+    }
+
+    @Test
+    void attachmentRequest() throws IOException {
+        var request = new AttachmentRequest("ab12");
+
+        assertEquals(request, roundTrip(request));
+    }
+
+    @Test
+    void hash() throws IOException {
+        Path path = Files.createTempFile("hash", ".txt");
+
+        try {
+            Files.writeString(path, "abc");
+            assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", Attachment.hash(path));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void incompleteFrame() throws IOException {
+        var message = new ChatMessage("Hello, world!", "Alice", null, new ArrayList<>());
+        byte[] frame = ChatMessageFrames.toFrame(message);
+
+        // Every prefix of a frame is incomplete and must leave the buffer untouched
+        for (int i = 0; i < frame.length; i++) {
+            var partial = ByteBuffer.wrap(frame, 0, i);
+            assertNull(ChatMessageCodec.decode(partial));
+            assertEquals(0, partial.position());
+        }
+
+        assertEquals(message, ChatMessageCodec.decode(ByteBuffer.wrap(frame)));
+    }
+
+    @Test
+    void oversizedFramesAreRejectedFromTheirPrefix() throws IOException {
+        var prefix = ByteBuffer.allocate(5);
+        ChatMessageCodec.putVarint(prefix, ChatMessageCodec.MAX_PAYLOAD_LENGTH);
+        prefix.flip();
+        assertTrue(ChatMessageCodec.frameSize(prefix) > ChatMessageCodec.MAX_PAYLOAD_LENGTH);
+
+        // Rejected before any of the payload has arrived, so a peer cannot make the other side buffer it
+        var tooLong = ByteBuffer.allocate(5);
+        ChatMessageCodec.putVarint(tooLong, ChatMessageCodec.MAX_PAYLOAD_LENGTH + 1);
+        tooLong.flip();
+        assertThrows(StreamCorruptedException.class, () -> ChatMessageCodec.frameSize(tooLong));
+    }
+
+    @Test
+    void streamRoundTrip() throws IOException {
+        var first = new ChatMessage("one", "Alice", null, new ArrayList<>());
+        var second = new ChatMessage("two", "Bob", new ArrayList<>(Arrays.asList("Alice")), new ArrayList<>());
+
+        var bytes = new ByteArrayOutputStream();
+        var output = new DataOutputStream(bytes);
+        ChatMessageFrames.write(output, first);
+        ChatMessageFrames.write(output, second);
+
+        var input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(first, ChatMessageFrames.read(input));
+        assertEquals(second, ChatMessageFrames.read(input));
+    }
+
+    @Test
+    void smallerThanJavaSerialization() throws IOException {
+        var message = new ChatMessage("Hello, world!", "Alice", new ArrayList<>(Arrays.asList("Bob")), new ArrayList<>());
+
+        var serialized = new ByteArrayOutputStream();
+        try (var objectOutput = new ObjectOutputStream(serialized)) {
+            objectOutput.writeObject(message);
+        }
+
+        assertTrue(ChatMessageCodec.encodedSize(message) * 5 < serialized.size());
+    }
+
+    @Test
+    void handshake() throws IOException {
+        assertEquals(ChatMessageCodec.VERSION, Handshake.negotiate(ChatMessageCodec.VERSION));
+        assertEquals(ChatMessageCodec.VERSION, Handshake.negotiate(ChatMessageCodec.VERSION + 1));
+        assertEquals(Handshake.REJECTED, Handshake.negotiate(0));
+
+        // A client that only knows an older layout would misread the frames
+        assertEquals(Handshake.REJECTED, Handshake.negotiate(ChatMessageCodec.OLDEST_VERSION - 1));
+        assertEquals(ChatMessageCodec.OLDEST_VERSION, Handshake.negotiate(ChatMessageCodec.OLDEST_VERSION));
+
+        var hello = ByteBuffer.wrap(Handshake.hello(ChatMessageCodec.VERSION));
+        assertEquals(ChatMessageCodec.VERSION, Handshake.read(hello));
+        assertThrows(StreamCorruptedException.class, () -> Handshake.read(ByteBuffer.wrap(new byte[Handshake.LENGTH])));
+
+        // A server with compression turned off answers with the version before it
+        assertEquals(ChatMessageCodec.COMPRESSION_VERSION - 1,
+                Handshake.negotiate(ChatMessageCodec.VERSION, ChatMessageCodec.COMPRESSION_VERSION - 1));
+    }
+
+    @Test
+    void compressedFramesRoundTrip() throws IOException {
+        var recipients = new ArrayList<String>();
+
+        for (int i = 0; i < 200; i++) {
+            recipients.add("recipient" + i);
+        }
+
+        var message = new ChatMessage("Hello, everyone on the list!", "Alice", recipients, new ArrayList<>());
+        byte[] frame = ChatMessageFrames.toFrame(message);
+
+        var compressor = new FrameCompressor(Deflater.BEST_SPEED, 512);
+        assertTrue(compressor.accepts(frame.length));
+        byte[] compressed = compressor.compress(ByteBuffer.wrap(frame));
+        assertNotNull(compressed);
+        assertTrue(compressed.length * 3 < frame.length, compressed.length + " of " + frame.length);
+
+        // The same compressor and decompressor are reused for every frame
+        var stream = new ByteArrayOutputStream();
+        stream.write(compressed);
+        stream.write(compressor.compress(ByteBuffer.wrap(frame, 0, 100), ByteBuffer.wrap(frame, 100, frame.length - 100)));
+        stream.write(ChatMessageFrames.toFrame(new ChatMessage("short", "Bob", null, new ArrayList<>())));
+
+        var input = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+        var decompressor = new FrameDecompressor();
+        assertEquals(message, ChatMessageFrames.read(input, decompressor));
+        assertEquals(message, ChatMessageFrames.read(input, decompressor));
+        assertEquals("short", ((ChatMessage) ChatMessageFrames.read(input, decompressor)).message());
+
+        // Without compression negotiated, a compressed frame is an error
+        assertThrows(StreamCorruptedException.class,
+                () -> ChatMessageFrames.read(new DataInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    void smallAndIncompressibleFramesAreNotCompressed() {
+        var compressor = new FrameCompressor(Deflater.BEST_SPEED, 512);
+        assertFalse(compressor.accepts(100));
+
+        byte[] data = new byte[4096];
+        new Random(1).nextBytes(data);
+        byte[] frame = ChatMessageFrames.toFrame(new AttachmentChunk("hash", 0, true, data));
+        assertNull(compressor.compress(ByteBuffer.wrap(frame)));
+    }
+
+    @Test
+    void corruptCompressedFramesAreRejected() {
+        byte[] frame = ChatMessageFrames.toFrame(new ChatMessage("x".repeat(2000), "Alice", null, new ArrayList<>()));
+        byte[] compressed = new FrameCompressor(Deflater.BEST_SPEED, 512).compress(ByteBuffer.wrap(frame));
+
+        // Announce one byte more than the payload restores to
+        var payload = ByteBuffer.wrap(compressed);
+        ChatMessageCodec.getVarint(payload);
+        var wrongLength = ByteBuffer.allocate(payload.remaining() + 1);
+        wrongLength.put(ChatMessageCodec.COMPRESSED);
+        payload.get();
+        ChatMessageCodec.putVarint(wrongLength, ChatMessageCodec.getVarint(payload) + 1);
+        wrongLength.put(payload).flip();
+        assertThrows(StreamCorruptedException.class, () -> new FrameDecompressor().decompress(wrongLength));
+
+        compressed[compressed.length - 3] ^= 0x55;
+        var corrupt = ByteBuffer.wrap(compressed);
+        ChatMessageCodec.getVarint(corrupt);
+        assertThrows(StreamCorruptedException.class, () -> new FrameDecompressor().decompress(corrupt));
+    }
+}
@@ -5,6 +5,7 @@ import org.junit.jupiter.api.Test;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.regex.Pattern;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -58,4 +59,64 @@ class ChatMessageParserTest {
 
         assertEquals(expectedChatMessage, parsedInfo);
     }
-}
\ No newline at end of file
+
+    @Test
+    void charSequenceInput() {
+        var input = new StringBuilder("@Bob @Carol Hi!");
+
+        var expectedChatMessage = new ChatMessage("Hi!", "Alice", new ArrayList<>(Arrays.asList("Bob", "Carol")), noAttachments);
+
+        assertEquals(expectedChatMessage, ChatMessageParser.parse(input, "Alice", noAttachments));
+    }
+
+    @Test
+    void scanReusesSpans() {
+        var spans = new ChatMessageParser.Spans();
+
+        ChatMessageParser.scan("@A @B @C @D @E @F @G @H @I x", spans);
+        assertEquals(9, spans.recipientCount());
+
+        ChatMessageParser.scan("@Bob hi", spans);
+        assertEquals(1, spans.recipientCount());
+        assertEquals(1, spans.recipientStart(0));
+        assertEquals(4, spans.recipientEnd(0));
+        assertEquals(5, spans.bodyStart());
+    }
+
+    @Test
+    void messageRoom() {
+        var expectedChatMessage = new ChatMessage("Standup in 5", "Alice", null, noAttachments, "dev_team");
+
+        assertEquals(expectedChatMessage, ChatMessageParser.parse("#dev_team Standup in 5", "Alice", noAttachments));
+
+        // A '#' that does not start the input is part of the message
+        assertEquals(new ChatMessage("Try #dev_team ", "Alice", null, noAttachments), ChatMessageParser.parse("Try #dev_team ", "Alice", noAttachments));
+    }
+
+    // The regular expression the parser used to be based on, which the scanner must agree with
+    private static ChatMessage parseWithRegex(String inputString) {
+        var matcher = Pattern.compile("(@\\w+\\s)").matcher(inputString);
+        var recipients = new ArrayList<String>();
+        int end = -1;
+
+        while (matcher.find()) {
+            recipients.add(matcher.group().replace("@", "").stripTrailing());
+            end = matcher.end();
+        }
+
+        return new ChatMessage(inputString.substring(Math.max(end, 0)), "Alice", recipients.isEmpty() ? null : recipients, new ArrayList<>());
+    }
+
+    @Test
+    void agreesWithRegex() {
+        String[] inputs = {
+                "", "@", "@ ", "@Bob", "@Bob ", "@Bob\tHi", "@Bob\nHi", "@@Bob hi", "a@Bob hi", "@Bob,@Carol hi",
+                "hi @Bob there @Carol", "@Bob @Carol", "@Zoë hi", "@b_1 @2 x", "email me at bob@example.com ",
+                "@Bob  two spaces", "trailing @", "@Bob\u00a0nbsp", "@Bob\u000bvt @Carol\fff @Dave\rcr"
+        };
+
+        for (String input : inputs) {
+            assertEquals(parseWithRegex(input), ChatMessageParser.parse(input, "Alice", noAttachments), input);
+        }
+    }
+}
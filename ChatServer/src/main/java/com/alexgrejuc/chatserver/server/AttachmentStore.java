@@ -0,0 +1,262 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.Attachment;
+import com.alexgrejuc.chatmessage.AttachmentChunk;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Stores attachments on disk under the SHA-256 hash of their contents, so that each distinct file is uploaded and
+ * stored once however many messages and recipients refer to it.
+ * The store is bounded in bytes and evicts the least recently used attachments first. Attachments that are already
+ * in the directory when the server starts are kept, oldest first.
+ */
+public class AttachmentStore {
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // Hash to size, in least recently used order
+    private final LinkedHashMap<String, Long> attachments = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * @param directory created if it does not exist
+     * @param maxBytes the size the store is kept under, except that the most recent attachment is always kept
+     * @throws IOException
+     */
+    public AttachmentStore(Path directory, long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+
+        try (Stream<Path> files = Files.list(directory)) {
+            var existing = files.sorted(Comparator.comparing(AttachmentStore::lastModified)).toList();
+
+            for (Path path : existing) {
+                String name = path.getFileName().toString();
+
+                if (isHash(name)) {
+                    add(name, Files.size(path));
+                }
+                else if (name.endsWith(".part")) {
+                    // Left behind by an upload that was interrupted by a restart
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a hash is well-formed before it is used as a file name.
+     * @param hash
+     * @return true if the hash is 64 lowercase hex digits
+     */
+    public static boolean isHash(String hash) {
+        return hash != null && HASH.matcher(hash).matches();
+    }
+
+    /**
+     * @param size an attachment's announced size
+     * @return true if an attachment of the size can be uploaded, which rules out anything larger than the whole store
+     */
+    public boolean fits(long size) {
+        return size >= 0 && size <= maxBytes;
+    }
+
+    /**
+     * @param hash
+     * @return true if the attachment is stored, which counts as a use of it
+     */
+    public synchronized boolean contains(String hash) {
+        return attachments.get(hash) != null;
+    }
+
+    /**
+     * @param hash
+     * @return the attachment's size in bytes, or -1 if it is not stored
+     */
+    public synchronized long size(String hash) {
+        Long size = attachments.get(hash);
+        return size == null ? -1 : size;
+    }
+
+    /**
+     * @return the total size of the stored attachments in bytes
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Opens a stored attachment for sending.
+     * @param hash
+     * @return the open file, owned by the caller, or null if the attachment is not stored
+     * @throws IOException
+     */
+    public SharedFile open(String hash) throws IOException {
+        if (!contains(hash)) {
+            return null;
+        }
+
+        try {
+            return new SharedFile(directory.resolve(hash));
+        } catch (NoSuchFileException e) {
+            // Evicted in the meantime
+            return null;
+        }
+    }
+
+    /**
+     * Starts receiving an attachment. It is written to a temporary file and only becomes part of the store once it
+     * is complete and its contents match its hash.
+     * @param hash a hash that isHash() accepts
+     * @param size the size the sender announced, which fits() accepts, and which the upload may not grow past
+     * @return the upload
+     * @throws IOException
+     */
+    public Upload beginUpload(String hash, long size) throws IOException {
+        if (!isHash(hash)) {
+            throw new IllegalArgumentException("Invalid attachment hash: " + hash);
+        }
+
+        if (!fits(size)) {
+            throw new IllegalArgumentException("Attachment of " + size + " bytes does not fit in the store");
+        }
+
+        return new Upload(hash, size, Files.createTempFile(directory, hash, ".part"));
+    }
+
+    /**
+     * An attachment that is being received chunk by chunk.
+     */
+    public class Upload {
+        private final String hash;
+        private final long announcedSize;
+        private final Path path;
+        private final FileChannel channel;
+        private final MessageDigest digest = Attachment.newDigest();
+        private long size;
+        private int nextSequence;
+
+        private Upload(String hash, long announcedSize, Path path) throws IOException {
+            this.hash = hash;
+            this.announcedSize = announcedSize;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        }
+
+        public String hash() {
+            return hash;
+        }
+
+        /**
+         * Writes the next chunk to the temporary file.
+         * @param chunk
+         * @throws IOException if the chunk is out of order or cannot be written
+         * @throws StreamCorruptedException if the chunk would make the attachment larger than announced, in which case
+         * the partial file is deleted
+         */
+        public void append(AttachmentChunk chunk) throws IOException {
+            if (chunk.sequence() != nextSequence) {
+                throw new StreamCorruptedException("Expected chunk " + nextSequence + " of " + hash + " but got " + chunk.sequence());
+            }
+
+            // The announced size fits in the store, so a sender cannot fill the disk by sending more than it announced
+            if (size + chunk.data().length > announcedSize) {
+                abandon();
+                throw new StreamCorruptedException("Attachment " + hash + " is larger than its announced " + announcedSize + " bytes");
+            }
+
+            var buffer = ByteBuffer.wrap(chunk.data());
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            digest.update(chunk.data());
+            size += chunk.data().length;
+            nextSequence++;
+        }
+
+        /**
+         * Adds the attachment to the store, evicting others if the store is full.
+         * @return false if the contents did not match the hash, in which case the upload is discarded
+         * @throws IOException
+         */
+        public boolean finish() throws IOException {
+            channel.close();
+
+            if (!Attachment.toHash(digest).equals(hash)) {
+                Files.deleteIfExists(path);
+                return false;
+            }
+
+            Files.move(path, directory.resolve(hash), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            synchronized (AttachmentStore.this) {
+                add(hash, size);
+            }
+
+            return true;
+        }
+
+        /**
+         * Discards a partial upload.
+         */
+        public void abandon() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException ioe) {
+                EventLog.error("attachment-discard-failed", "Error discarding partial attachment " + hash, ioe);
+            }
+        }
+    }
+
+    private void add(String hash, long size) {
+        Long previous = attachments.put(hash, size);
+        bytes += size - (previous == null ? 0 : previous);
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = attachments.entrySet().iterator();
+
+        while (bytes > maxBytes && attachments.size() > 1) {
+            var entry = eldest.next();
+            eldest.remove();
+            bytes -= entry.getValue();
+
+            // Frames that are still sending the attachment keep their open file, so it is safe to delete
+            try {
+                Files.deleteIfExists(directory.resolve(entry.getKey()));
+            } catch (IOException ioe) {
+                EventLog.error("attachment-evict-failed", "Error evicting attachment " + entry.getKey(), ioe);
+            }
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException ioe) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.AttachmentChunk;
+import com.alexgrejuc.chatmessage.ChatMessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends a stored attachment to one connection as a series of chunks whose data is transferred straight from the
+ * stored file. Each chunk's frame continues with the next one, so only one chunk is queued at a time.
+ * Attachments whose first bytes show a format that is already compressed, such as PNG, JPEG or ZIP, are never
+ * compressed again for connections that negotiated compression.
+ */
+public class AttachmentStream {
+    // The signatures at the start of common compressed formats: PNG, JPEG, GIF, ZIP and the formats built on it,
+    // gzip, bzip2, xz, zstd, 7z, RIFF (WebP and most audio and video), Ogg, PDF and MP3
+    private static final byte[][] COMPRESSED_SIGNATURES = {
+        {(byte) 0x89, 'P', 'N', 'G'},
+        {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},
+        {'G', 'I', 'F', '8'},
+        {'P', 'K', 3, 4},
+        {0x1F, (byte) 0x8B},
+        {'B', 'Z', 'h'},
+        {(byte) 0xFD, '7', 'z', 'X', 'Z'},
+        {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD},
+        {'7', 'z', (byte) 0xBC, (byte) 0xAF},
+        {'R', 'I', 'F', 'F'},
+        {'O', 'g', 'g', 'S'},
+        {'%', 'P', 'D', 'F'},
+        {'I', 'D', '3'}
+    };
+
+    // MP4 and the other ISO media files have their signature after the length of their first box
+    private static final byte[] MEDIA_SIGNATURE = {'f', 't', 'y', 'p'};
+
+    private final String hash;
+    private final SharedFile file;
+    private final long size;
+    private final boolean compressible;
+    private long position;
+    private int sequence;
+
+    /**
+     * @param hash
+     * @param file the stored attachment, which each chunk retains until it is released
+     * @param size
+     * @throws IOException if the start of the file cannot be read
+     */
+    public AttachmentStream(String hash, SharedFile file, long size) throws IOException {
+        this.hash = hash;
+        this.file = file;
+        this.size = size;
+        this.compressible = isCompressible(file.channel());
+    }
+
+    /**
+     * @param channel
+     * @return false if the file starts with the signature of a compressed format
+     * @throws IOException
+     */
+    static boolean isCompressible(FileChannel channel) throws IOException {
+        var start = ByteBuffer.allocate(8);
+
+        while (start.hasRemaining() && channel.read(start, start.position()) > 0) {
+            // Keep reading until the first bytes are in or the file ends
+        }
+
+        start.flip();
+
+        for (byte[] signature : COMPRESSED_SIGNATURES) {
+            if (startsWith(start, 0, signature)) {
+                return false;
+            }
+        }
+
+        return !startsWith(start, 4, MEDIA_SIGNATURE);
+    }
+
+    private static boolean startsWith(ByteBuffer bytes, int offset, byte[] signature) {
+        if (bytes.limit() < offset + signature.length) {
+            return false;
+        }
+
+        for (int i = 0; i < signature.length; i++) {
+            if (bytes.get(offset + i) != signature[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the frame for the next chunk, which queues the one after it once it has been written
+     */
+    public SharedFrame nextChunk() {
+        int length = (int) Math.min(AttachmentChunk.DEFAULT_SIZE, size - position);
+        boolean last = position + length >= size;
+
+        var header = ByteBuffer.allocate(ChatMessageCodec.chunkHeaderSize(hash, sequence, length));
+        ChatMessageCodec.encodeChunkHeader(hash, sequence, last, length, header);
+
+        var frame = SharedFrame.withFileRegion(header.array(), file, position, length, last ? null : this::nextChunk,
+                compressible);
+        position += length;
+        sequence++;
+        return frame;
+    }
+}
@@ -1,154 +1,299 @@
 package com.alexgrejuc.chatserver.server;
 
+import com.alexgrejuc.chatmessage.AttachmentChunk;
+import com.alexgrejuc.chatmessage.AttachmentRequest;
 import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageCodec;
+import com.alexgrejuc.chatmessage.ChatMessageFrames;
+import com.alexgrejuc.chatmessage.FrameCompressor;
+import com.alexgrejuc.chatmessage.Handshake;
+import com.alexgrejuc.chatmessage.HistoryRequest;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.stream.Collectors;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Handles an individual client's connection, disconnection, and messaging.
+ * Handles an individual client's connection, disconnection, and messaging on a dedicated blocking thread.
+ * Messages for the client wait in an outbound queue that is drained by the handler's own writer thread, so senders
+ * never block on this client's socket. The writer takes every frame that is waiting at once and writes them
+ * together, so a burst of messages costs one system call rather than one per message. A client that negotiated
+ * compression is sent large frames compressed, by the writer, with a Deflater that is reused for all of them.
  */
-public class ClientHandler implements Runnable {
-    public static HashMap<String, ClientHandler> clientHandlers = new HashMap();
+public class ClientHandler implements Runnable, Connection {
+    // The most frames written together
+    private static final int MAX_BATCH_FRAMES = 64;
 
     private Socket socket;
-    private ObjectInputStream messageInput;
-    private ObjectOutputStream messageOutput;
+    private DataInputStream messageInput;
+    private DataOutputStream messageOutput;
     private String clientUsername;
+    private final OutboundQueue outboundQueue;
+    private final long lingerNanos;
+    private final ServerOptions options;
+
+    // Set by the handshake if the client supports compression, and only used by the writer
+    private FrameCompressor compressor;
 
     /**
      * Creates a client handler, gets the client's senderName, and broadcasts that they have entered the chat.
      * @param socket
+     * @param options the limits for the outbound queue, how long the writer lingers for more frames, and compression
      */
-    public ClientHandler(Socket socket) {
+    public ClientHandler(Socket socket, ServerOptions options) {
+        this.outboundQueue = new OutboundQueue(options);
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(options.flushLingerMicros);
+        this.options = options;
+
         try {
             this.socket = socket;
-            this.messageInput = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
-            this.messageOutput = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-            messageOutput.flush();
 
-            ChatMessage loginMessage = (ChatMessage) messageInput.readObject();
+            // Frames are already batched by the writer, so Nagle's algorithm would only delay the last of a batch
+            socket.setTcpNoDelay(true);
+            this.messageInput = new DataInputStream(new BufferedInputStream(ServerMetrics.countingInput(socket.getInputStream())));
+            this.messageOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            int version = Handshake.accept(messageInput, messageOutput,
+                    options.compression ? ChatMessageCodec.VERSION : ChatMessageCodec.COMPRESSION_VERSION - 1);
+
+            if (version >= ChatMessageCodec.COMPRESSION_VERSION) {
+                compressor = new FrameCompressor(options.compressionLevel, options.compressionMinBytes);
+            }
+
+            if (!(ChatMessageFrames.read(messageInput) instanceof ChatMessage loginMessage)) {
+                throw new StreamCorruptedException("Expected a login message");
+            }
+
+            ServerMetrics.frameReceived();
+
             // A client sends their senderName when first logging in
             this.clientUsername = loginMessage.senderName();
-            System.out.println(clientUsername + " has connected.");
 
-            clientHandlers.put(this.clientUsername, this);
-            broadcastServerMessage(clientUsername + " has entered the chat.");
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error creating client handler:");
-            e.printStackTrace();
+            if (MessageRouter.register(this, loginMessage)) {
+                // The writer blocks on the socket, so a virtual thread keeps it cheap regardless of the executor
+                Thread.ofVirtual().name("writer-" + clientUsername).start(this::writeMessages);
+            }
+            else {
+                ChatMessageFrames.write(messageOutput, MessageRouter.loginRejectedMessage(clientUsername));
+                messageOutput.flush();
+                closeAllResources();
+            }
+        } catch (IOException | RuntimeException e) {
+            EventLog.error("client-handshake-failed", "Error creating client handler", e);
             closeAllResources();
         }
     }
 
     /**
      * Listens for a message from a client and broadcasts it to the other clients.
+     * Attachment chunks are uploads to the attachment store, and attachment requests ask for the contents of one.
      */
     @Override
     public void run() {
-        ChatMessage messageFromClient;
-
         // isClosed checks that socket has not been closed from the server side (e.g. due to exception)
         while (!socket.isClosed()) {
             try {
-                messageFromClient = (ChatMessage) messageInput.readObject();
+                long receivedNanos = ServerMetrics.awaitFrame(messageInput);
+                var frame = ChatMessageFrames.read(messageInput);
+                ServerMetrics.frameReceived();
 
-                if (messageFromClient != null && !messageFromClient.message().equalsIgnoreCase(":quit")) {
-                    sendMessage(populateRecipients(messageFromClient));
+                if (frame instanceof AttachmentChunk chunk) {
+                    MessageRouter.receiveChunk(chunk, this);
+                }
+                else if (frame instanceof AttachmentRequest request) {
+                    MessageRouter.requestAttachment(request, this);
+                }
+                else if (frame instanceof HistoryRequest request) {
+                    MessageRouter.requestHistory(request, this);
+                }
+                else if (frame instanceof ChatMessage messageFromClient) {
+                    MessageRouter.checkMessage(messageFromClient);
+
+                    if (!messageFromClient.message().equalsIgnoreCase(":quit")) {
+                        MessageRouter.route(messageFromClient, this, receivedNanos);
+                    }
+                    else {
+                        closeAllResources();
+                    }
                 }
                 else {
                     closeAllResources();
                 }
             }
-             catch (IOException | ClassNotFoundException e) {
-                System.err.println("Error reading message from client: ");
-                e.printStackTrace();
+             catch (IOException e) {
+                EventLog.error("client-read-failed", "Error reading message from " + clientUsername, e);
+                closeAllResources();
+            }
+            catch (RuntimeException e) {
+                // A bug handling one client's frame must not leave it registered with its socket open
+                EventLog.error("client-handler-failed", "Error handling a message from " + clientUsername, e);
                 closeAllResources();
             }
         }
     }
 
+    @Override
+    public String getUsername() {
+        return clientUsername;
+    }
+
     /**
-     * Inserts all recipients except for the sending client in the case that this is a broadcast message.
-     * @param messageFromClient
-     * @return
+     * Queues a frame for this client's writer thread. Disconnects the client if it has fallen too far behind.
+     * @param frame
      */
-    private ChatMessage populateRecipients(ChatMessage messageFromClient) {
-        // The client has specified recipients, it is not a broadcast message
-        if (messageFromClient.recipientNames() != null) {
-            return messageFromClient;
+    @Override
+    public void deliver(SharedFrame frame) {
+        if (!outboundQueue.offer(frame)) {
+            EventLog.warn("client-too-slow", clientUsername + " is not keeping up with its messages and will be disconnected.");
+            closeAllResources();
         }
-        else {
-            var recipients = clientHandlers.keySet().stream()
-                                                                   .filter(name -> !name.equals(clientUsername))
-                                                                   .collect(Collectors.toCollection(ArrayList::new));
+    }
 
-            return new ChatMessage(messageFromClient.message(), messageFromClient.senderName(), recipients, messageFromClient.attachments());
-        }
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
     }
 
     /**
-     * Sends a message to a single recipient.
-     * @param message
-     * @param recipientName
+     * Writes queued frames to this client's socket until the handler is closed.
+     * Whatever is waiting when the writer wakes up is written as one batch. If nothing else is waiting, the batch is
+     * written at once, unless a linger is configured, in which case the writer waits that long for more frames first.
+     * A frame that continues with another, like a chunk of an attachment stream, queues the next one once written.
      */
-    private void sendMessageToOne(ChatMessage message, String recipientName) {
-        if (clientHandlers.containsKey(recipientName)) {
-            try {
-                var recipient = clientHandlers.get(recipientName);
-                recipient.messageOutput.writeObject(message);
-                recipient.messageOutput.flush();
-            } catch (IOException ioe) {
-                System.err.println("Error sending message from " + this.clientUsername + " to " + recipientName + ":");
-                ioe.printStackTrace();
+    private void writeMessages() {
+        var batch = new SharedFrame[MAX_BATCH_FRAMES];
+        var buffers = new ByteBuffer[MAX_BATCH_FRAMES];
+        var sizes = new int[MAX_BATCH_FRAMES];
+
+        try {
+            SharedFrame frame;
+
+            while ((frame = outboundQueue.take()) != null) {
+                batch[0] = frame;
+                int count = outboundQueue.drainTo(batch, 1);
+
+                try {
+                    if (count < batch.length && lingerNanos > 0) {
+                        SharedFrame more = outboundQueue.poll(lingerNanos, TimeUnit.NANOSECONDS);
+
+                        if (more != null) {
+                            batch[count] = more;
+                            count = outboundQueue.drainTo(batch, count + 1);
+                        }
+                    }
+
+                    writeBatch(batch, buffers, sizes, count);
+
+                    for (int i = 0; i < count; i++) {
+                        ServerMetrics.frameSent(batch[i], sizes[i]);
+                        SharedFrame next = batch[i].next();
+
+                        if (next != null) {
+                            deliver(next);
+                        }
+                    }
+                } finally {
+                    for (int i = 0; i < count; i++) {
+                        batch[i].release();
+                        batch[i] = null;
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            if (!socket.isClosed()) {
+                EventLog.error("client-write-failed", "Error sending message to " + clientUsername, ioe);
                 closeAllResources();
             }
+        } catch (InterruptedException ie) {
+            closeAllResources();
+        } finally {
+            if (compressor != null) {
+                compressor.close();
+            }
         }
     }
 
     /**
-     * Sends a message to all the recipientNames specified by the client.
-     * @param message
+     * Writes frames with as few system calls as possible. Consecutive frames go out in a single gathering write,
+     * and a stored attachment's data is transferred from its file right after its header, unless it was compressed.
+     * @param batch
+     * @param buffers space for the frames' buffers
+     * @param sizes filled in with the number of bytes written for each frame
+     * @param count the number of frames in the batch
+     * @throws IOException
      */
-    private void sendMessage(ChatMessage message) {
-        for (String recipient : message.recipientNames()) {
-            sendMessageToOne(message, recipient);
-        }
-    }
+    private void writeBatch(SharedFrame[] batch, ByteBuffer[] buffers, int[] sizes, int count) throws IOException {
+        SocketChannel channel = socket.getChannel();
 
-    /**
-     * Broadcasts a message from the server to all clients except this one.
-     * e.g. "Alice has entered the chat."
-     * @param message
-     */
-    public void broadcastServerMessage(String message) {
-        for (ClientHandler clientHandler : clientHandlers.values()) {
-            if (clientHandler != this) {
-                sendMessageToOne(new ChatMessage(message, "SERVER", new ArrayList<>(), new ArrayList<>()), clientHandler.clientUsername);
+        if (channel == null) {
+            for (int i = 0; i < count; i++) {
+                ByteBuffer compressed = compressor == null ? null : batch[i].compressed(compressor);
+
+                if (compressed != null) {
+                    var bytes = new byte[compressed.remaining()];
+                    compressed.get(bytes);
+                    sizes[i] = bytes.length;
+                    messageOutput.write(bytes);
+                }
+                else {
+                    sizes[i] = batch[i].size();
+                    batch[i].writeTo(messageOutput, null);
+                }
             }
+
+            messageOutput.flush();
+            return;
         }
-    }
 
-    /**
-     * Removes clientHandler from clientHandlers to ensure no future messages are sent to it.
-     */
-    public void removeClientHandler() {
-        clientHandlers.remove(this.clientUsername);
+        int start = 0;
+
+        while (start < count) {
+            // Frames up to and including the next one with a file region to transfer
+            int end = start;
+            long remaining = 0;
+            boolean transfer;
+
+            while (true) {
+                ByteBuffer compressed = compressor == null ? null : batch[end].compressed(compressor);
+                buffers[end] = compressed != null ? compressed : batch[end].duplicate();
+                transfer = compressed == null && batch[end].regionLength() > 0;
+                sizes[end] = buffers[end].remaining() + (transfer ? batch[end].regionLength() : 0);
+                remaining += buffers[end].remaining();
+
+                if (end == count - 1 || transfer) {
+                    break;
+                }
+
+                end++;
+            }
+
+            while (remaining > 0) {
+                remaining -= channel.write(buffers, start, end + 1 - start);
+            }
 
-        String quitMessage = clientUsername + " has left the chat";
-        System.out.println(quitMessage);
-        broadcastServerMessage(quitMessage);
+            if (transfer) {
+                batch[end].transferRegionFully(channel);
+            }
+
+            for (int i = start; i <= end; i++) {
+                buffers[i] = null;
+            }
+
+            start = end + 1;
+        }
     }
 
     /**
-     * Removes clientHandler from clientHandlers and closes all server-side resources associated with this client.
+     * Removes this client from the router and closes all server-side resources associated with it.
      */
+    @Override
     public void closeAllResources() {
-        removeClientHandler();
+        if (socket.isClosed()) {
+            return;
+        }
 
+        outboundQueue.close();
         Closeable[] resources = new Closeable[]{messageInput, messageOutput, socket};
 
         try {
@@ -158,8 +303,9 @@ public class ClientHandler implements Runnable {
                 }
             }
         } catch (IOException ioe) {
-            System.err.println("Error closing resources: ");
-            ioe.printStackTrace();
+            EventLog.error("client-close-failed", "Error closing resources", ioe);
         }
+
+        MessageRouter.unregister(this);
     }
 }
@@ -0,0 +1,69 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The logged-in clients, by username.
+ * Lookups never lock, registration and removal lock only the bin of the affected name, and iteration walks the live
+ * map without copying it. Iteration is weakly consistent: a client that logs in or out during a broadcast may or may
+ * not receive it, but iteration never fails.
+ */
+public class ClientRegistry implements Iterable<Connection> {
+    private final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a client under its username unless the name is already taken.
+     * @param connection
+     * @return true if the client was registered, false if another client already has the name
+     */
+    public boolean register(Connection connection) {
+        return connections.putIfAbsent(connection.getUsername(), connection) == null;
+    }
+
+    /**
+     * Removes a client, but only if its name is still registered to it, so a client that was rejected or replaced
+     * can never remove the one that holds the name.
+     * @param connection
+     * @return true if the client was removed
+     */
+    public boolean unregister(Connection connection) {
+        return connection.getUsername() != null && connections.remove(connection.getUsername(), connection);
+    }
+
+    /**
+     * @param username
+     * @return the client with the name, or null if nobody by that name is logged in
+     */
+    public Connection get(String username) {
+        return connections.get(username);
+    }
+
+    /**
+     * @param username
+     * @return true if a client with the name is logged in
+     */
+    public boolean contains(String username) {
+        return connections.containsKey(username);
+    }
+
+    /**
+     * @return the names of the logged-in clients, as a live view
+     */
+    public Set<String> usernames() {
+        return connections.keySet();
+    }
+
+    /**
+     * @return the number of logged-in clients
+     */
+    public int size() {
+        return connections.size();
+    }
+
+    @Override
+    public Iterator<Connection> iterator() {
+        return connections.values().iterator();
+    }
+}
@@ -0,0 +1,416 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Joins this server to other nodes, so that clients connected to different nodes can talk to each other.
+ * Each node dials every peer it is configured with and only ever sends on the links it dialed, so every pair of
+ * nodes has one link in each direction and nothing arrives twice. Over its links a node tells its peers which users
+ * are connected to it and which rooms have members on it, and forwards each message once to each node with a
+ * recipient, as the frame its own clients are sent. The receiving node delivers it to its own clients and never
+ * forwards it again.
+ * Attachments stay on the node they were uploaded to, and the message log is per node, so a client that reconnects
+ * should reconnect to the same node. Messages for a node whose link is down are not forwarded until it is back.
+ */
+public class Cluster {
+    // The most names sent in a single presence frame
+    private static final int NAMES_PER_FRAME = 1000;
+
+    private static volatile boolean enabled;
+    private static String nodeName;
+
+    // The links this node sends on, by the name of the node at the other end
+    private static final ConcurrentHashMap<String, PeerLink> links = new ConcurrentHashMap<>();
+
+    // The links each node sends to this one on, so that a link that closes after its node reconnected cannot erase
+    // what the new link has reported
+    private static final ConcurrentHashMap<String, Socket> incoming = new ConcurrentHashMap<>();
+
+    // The node each user on another node is connected to
+    private static final ConcurrentHashMap<String, String> remoteUsers = new ConcurrentHashMap<>();
+
+    // The other nodes with members in each room
+    private static final ConcurrentHashMap<String, Set<String>> roomNodes = new ConcurrentHashMap<>();
+
+    // The rooms this node has told its peers it has members in. Guarded by the class lock, which every presence
+    // announcement holds, so that a new link's snapshot and the changes after it go out in order.
+    private static final HashSet<String> advertisedRooms = new HashSet<>();
+
+    private static final LongAdder forwardsSent = new LongAdder();
+    private static final LongAdder forwardsReceived = new LongAdder();
+
+    /**
+     * Starts accepting links from other nodes and dialing the configured peers. Does nothing unless a cluster port
+     * is configured.
+     * @param options
+     */
+    public static void configure(ServerOptions options) {
+        if (options.clusterPort <= 0) {
+            return;
+        }
+
+        nodeName = options.nodeName != null ? options.nodeName : "node-" + options.port;
+        ServerSocket acceptor;
+
+        try {
+            acceptor = new ServerSocket();
+            acceptor.bind(new InetSocketAddress(options.clusterPort));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Error opening the cluster port " + options.clusterPort, ioe);
+        }
+
+        enabled = true;
+        Thread.ofPlatform().daemon().name("cluster-acceptor").start(() -> accept(acceptor));
+
+        for (String peer : options.peers) {
+            String[] address = peer.split(":", 2);
+            var link = new PeerLink(address[0], Integer.parseInt(address[1]), nodeName);
+            Thread.ofVirtual().name("cluster-dialer-" + peer).start(link::run);
+        }
+
+        EventLog.info("cluster-started", "Node " + nodeName + " is accepting cluster links on port " + options.clusterPort + ".");
+    }
+
+    /**
+     * @return true if this server is part of a cluster
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param username
+     * @return true if a user by that name is connected to another node
+     */
+    public static boolean isRemoteUser(String username) {
+        return enabled && remoteUsers.containsKey(username);
+    }
+
+    private static void accept(ServerSocket acceptor) {
+        while (true) {
+            try {
+                Socket socket = acceptor.accept();
+                Thread.ofVirtual().name("cluster-reader").start(() -> read(socket));
+            } catch (IOException ioe) {
+                EventLog.error("cluster-accept-failed", "Error accepting a cluster link", ioe);
+            }
+        }
+    }
+
+    /**
+     * Reads what another node sends over a link it dialed, until the link closes.
+     * @param socket
+     */
+    private static void read(Socket socket) {
+        String peer = null;
+
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            var input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            var hello = ClusterCodec.read(input);
+
+            if (hello.type() != ClusterCodec.HELLO || hello.flags() != ClusterCodec.VERSION || hello.names().size() != 1) {
+                EventLog.warn("cluster-link-rejected", "Rejected a cluster link from " + socket.getRemoteSocketAddress() + " with an unknown handshake.");
+                return;
+            }
+
+            socket.getOutputStream().write(ClusterCodec.hello(nodeName));
+            peer = hello.names().get(0);
+
+            // Whatever an earlier link from the same node reported is out of date
+            var previous = incoming.put(peer, socket);
+
+            if (previous != null) {
+                previous.close();
+            }
+
+            forget(peer);
+
+            while (true) {
+                long receivedNanos = ServerMetrics.awaitFrame(input);
+                receive(peer, ClusterCodec.read(input), receivedNanos);
+            }
+        } catch (IOException ioe) {
+            if (peer != null) {
+                EventLog.info("cluster-link-down", "The link from node " + peer + " closed.");
+            }
+        } finally {
+            if (peer != null && incoming.remove(peer, socket)) {
+                forget(peer);
+            }
+        }
+    }
+
+    private static void receive(String peer, ClusterCodec.ClusterFrame frame, long receivedNanos) {
+        switch (frame.type()) {
+            case ClusterCodec.USERS_JOINED -> {
+                for (String username : frame.names()) {
+                    remoteUsers.put(username, peer);
+                    MessageRouter.remoteUserJoined(username, peer, peer.compareTo(nodeName) < 0);
+                }
+            }
+            case ClusterCodec.USERS_LEFT -> {
+                for (String username : frame.names()) {
+                    remoteUsers.remove(username, peer);
+                }
+            }
+            case ClusterCodec.ROOMS_JOINED -> {
+                for (String room : frame.names()) {
+                    roomNodes.computeIfAbsent(room, r -> ConcurrentHashMap.newKeySet()).add(peer);
+                }
+            }
+            case ClusterCodec.ROOMS_LEFT -> {
+                for (String room : frame.names()) {
+                    roomNodes.computeIfPresent(room, (r, nodes) -> {
+                        nodes.remove(peer);
+                        return nodes.isEmpty() ? null : nodes;
+                    });
+                }
+            }
+            case ClusterCodec.FORWARD_BROADCAST, ClusterCodec.FORWARD_ROOM, ClusterCodec.FORWARD_DIRECT -> {
+                forwardsReceived.increment();
+                MessageRouter.deliverForwarded(frame, receivedNanos);
+            }
+            default -> EventLog.warn("cluster-frame-unknown", "Ignored a cluster frame of unknown type " + frame.type() + " from node " + peer + ".");
+        }
+    }
+
+    /**
+     * Forgets the users and rooms of a node whose link has closed or been replaced.
+     * @param peer
+     */
+    private static void forget(String peer) {
+        remoteUsers.values().removeIf(peer::equals);
+
+        for (String room : roomNodes.keySet()) {
+            roomNodes.computeIfPresent(room, (r, nodes) -> {
+                nodes.remove(peer);
+                return nodes.isEmpty() ? null : nodes;
+            });
+        }
+    }
+
+    /**
+     * Called by a link once its handshake is done. The link is sent everything its node needs to know about this
+     * one, and then every change after it.
+     * @param peer
+     * @param link
+     */
+    static synchronized void linkUp(String peer, PeerLink link) {
+        var previous = links.put(peer, link);
+
+        if (previous != null) {
+            previous.close();
+        }
+
+        var users = new ArrayList<>(MessageRouter.clients.usernames());
+
+        for (int i = 0; i < users.size(); i += NAMES_PER_FRAME) {
+            link.send(SharedFrame.wrap(ClusterCodec.presence(ClusterCodec.USERS_JOINED,
+                    users.subList(i, Math.min(users.size(), i + NAMES_PER_FRAME)))));
+        }
+
+        var rooms = new ArrayList<>(advertisedRooms);
+
+        for (int i = 0; i < rooms.size(); i += NAMES_PER_FRAME) {
+            link.send(SharedFrame.wrap(ClusterCodec.presence(ClusterCodec.ROOMS_JOINED,
+                    rooms.subList(i, Math.min(rooms.size(), i + NAMES_PER_FRAME)))));
+        }
+
+        EventLog.info("cluster-link-up", "Linked to node " + peer + ".");
+    }
+
+    /**
+     * @param peer
+     * @param link
+     */
+    static void linkDown(String peer, PeerLink link) {
+        if (links.remove(peer, link)) {
+            EventLog.info("cluster-link-down", "The link to node " + peer + " closed.");
+        }
+    }
+
+    /**
+     * Tells the other nodes that a user has logged in here.
+     * @param username
+     */
+    public static void userJoined(String username) {
+        announce(ClusterCodec.USERS_JOINED, username);
+    }
+
+    /**
+     * Tells the other nodes that a user has logged out of this node.
+     * @param username
+     */
+    public static void userLeft(String username) {
+        announce(ClusterCodec.USERS_LEFT, username);
+    }
+
+    private static void announce(byte type, String name) {
+        if (!enabled) {
+            return;
+        }
+
+        synchronized (Cluster.class) {
+            sendToAll(ClusterCodec.presence(type, List.of(name)));
+        }
+    }
+
+    /**
+     * Tells the other nodes whether a room has members here, if that has changed since they were last told. Called
+     * after local clients join or leave the room.
+     * @param room
+     */
+    public static void roomChanged(String room) {
+        if (!enabled) {
+            return;
+        }
+
+        synchronized (Cluster.class) {
+            boolean occupied = MessageRouter.rooms.size(room) > 0;
+
+            if (occupied && advertisedRooms.add(room)) {
+                sendToAll(ClusterCodec.presence(ClusterCodec.ROOMS_JOINED, List.of(room)));
+            }
+            else if (!occupied && advertisedRooms.remove(room)) {
+                sendToAll(ClusterCodec.presence(ClusterCodec.ROOMS_LEFT, List.of(room)));
+            }
+        }
+    }
+
+    private static void sendToAll(byte[] encoded) {
+        SharedFrame frame = SharedFrame.wrap(encoded);
+
+        try {
+            for (PeerLink link : links.values()) {
+                link.send(frame.retain());
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Forwards a message for every client to every other node.
+     * @param frame the encoded message
+     */
+    public static void forwardBroadcast(SharedFrame frame) {
+        if (!enabled || links.isEmpty()) {
+            return;
+        }
+
+        forward(links.keySet(), ClusterCodec.FORWARD_BROADCAST, frame, List.of());
+    }
+
+    /**
+     * Forwards a room's message to the other nodes with members in the room.
+     * @param frame the encoded message
+     * @param room
+     */
+    public static void forwardToRoom(SharedFrame frame, String room) {
+        if (!enabled) {
+            return;
+        }
+
+        var nodes = roomNodes.get(room);
+
+        if (nodes != null && !nodes.isEmpty()) {
+            forward(nodes, ClusterCodec.FORWARD_ROOM, frame, List.of(room));
+        }
+    }
+
+    /**
+     * Forwards a message to the nodes its recipients are connected to, once per node, naming only the recipients on
+     * that node.
+     * @param frame the encoded message
+     * @param recipientNames recipients that are not connected to this node
+     */
+    public static void forwardDirect(SharedFrame frame, List<String> recipientNames) {
+        if (!enabled) {
+            return;
+        }
+
+        var byNode = new HashMap<String, List<String>>();
+
+        for (String recipient : recipientNames) {
+            String node = remoteUsers.get(recipient);
+
+            if (node != null) {
+                byNode.computeIfAbsent(node, n -> new ArrayList<>()).add(recipient);
+            }
+        }
+
+        for (var entry : byNode.entrySet()) {
+            forward(List.of(entry.getKey()), ClusterCodec.FORWARD_DIRECT, frame, entry.getValue());
+        }
+    }
+
+    /**
+     * Encodes a message for other nodes once, and sends the same bytes to each of them.
+     */
+    private static void forward(Iterable<String> nodes, byte type, SharedFrame frame, List<String> names) {
+        SharedFrame forward = null;
+
+        try {
+            for (String node : nodes) {
+                var link = links.get(node);
+
+                if (link == null) {
+                    continue;
+                }
+
+                if (forward == null) {
+                    forward = SharedFrame.wrap(ClusterCodec.forward(type, frame.isNotice(), names, frame.duplicate()));
+                }
+
+                link.send(forward.retain());
+                forwardsSent.increment();
+            }
+        } finally {
+            if (forward != null) {
+                forward.release();
+            }
+        }
+    }
+
+    /**
+     * @return the number of other nodes this node has a link to
+     */
+    public static int links() {
+        return links.size();
+    }
+
+    /**
+     * @return the number of users connected to other nodes
+     */
+    public static int remoteUsers() {
+        return remoteUsers.size();
+    }
+
+    /**
+     * @return the number of messages forwarded to other nodes, counting each node once
+     */
+    public static long forwardsSent() {
+        return forwardsSent.sum();
+    }
+
+    /**
+     * @return the number of messages other nodes forwarded to this one
+     */
+    public static long forwardsReceived() {
+        return forwardsReceived.sum();
+    }
+}
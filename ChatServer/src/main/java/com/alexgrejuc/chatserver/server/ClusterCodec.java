@@ -0,0 +1,177 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.ChatMessageCodec;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The frames that the nodes of a cluster send each other over their links.
+ * They are framed like client frames, with a varint length followed by a type, and every payload has the same
+ * layout: a flags byte, a list of names, and for forwarded messages the client frame exactly as the sending node
+ * encoded it, so that the receiving node can pass it on to its own clients without decoding or encoding it again.
+ */
+public class ClusterCodec {
+    public static final int VERSION = 1;
+
+    // The first frame on a link, in each direction. The flags are the version and the name is the sender's node.
+    public static final byte HELLO = 1;
+    // Users who logged in to or out of the sending node
+    public static final byte USERS_JOINED = 2;
+    public static final byte USERS_LEFT = 3;
+    // Rooms that now have, or no longer have, members on the sending node
+    public static final byte ROOMS_JOINED = 4;
+    public static final byte ROOMS_LEFT = 5;
+    // A message for every client, for the members of the named room, or for the named users
+    public static final byte FORWARD_BROADCAST = 6;
+    public static final byte FORWARD_ROOM = 7;
+    public static final byte FORWARD_DIRECT = 8;
+
+    // The flag of a forwarded server notice, which a full outbound queue may drop
+    public static final int NOTICE = 1;
+
+    // Larger than a client frame, since a forward adds its recipients to one and a presence frame can list every user
+    // on a node. Links only connect configured nodes.
+    public static final int MAX_PAYLOAD_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * A decoded cluster frame.
+     * @param type
+     * @param flags
+     * @param names node, user or room names, depending on the type
+     * @param clientFrame the forwarded client frame, or an empty array
+     */
+    public record ClusterFrame(byte type, int flags, List<String> names, byte[] clientFrame) {}
+
+    /**
+     * @param node the name of the sending node
+     * @return the encoded hello
+     */
+    public static byte[] hello(String node) {
+        return encode(HELLO, VERSION, List.of(node), null);
+    }
+
+    /**
+     * @param type one of the presence types, e.g. USERS_JOINED
+     * @param names
+     * @return the encoded frame
+     */
+    public static byte[] presence(byte type, List<String> names) {
+        return encode(type, 0, names, null);
+    }
+
+    /**
+     * @param type one of the forward types
+     * @param notice whether the client frame is a server notice
+     * @param names the room for FORWARD_ROOM, the recipients for FORWARD_DIRECT, or none for FORWARD_BROADCAST
+     * @param clientFrame the encoded client frame, from its position to its limit
+     * @return the encoded frame
+     */
+    public static byte[] forward(byte type, boolean notice, List<String> names, ByteBuffer clientFrame) {
+        return encode(type, notice ? NOTICE : 0, names, clientFrame);
+    }
+
+    private static byte[] encode(byte type, int flags, List<String> names, ByteBuffer clientFrame) {
+        var encodedNames = new ArrayList<byte[]>(names.size());
+        int payloadLength = 2 + ChatMessageCodec.varintLength(names.size());
+
+        for (String name : names) {
+            byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+            encodedNames.add(encoded);
+            payloadLength += ChatMessageCodec.varintLength(encoded.length) + encoded.length;
+        }
+
+        if (clientFrame != null) {
+            payloadLength += clientFrame.remaining();
+        }
+
+        var buffer = ByteBuffer.allocate(ChatMessageCodec.varintLength(payloadLength) + payloadLength);
+        ChatMessageCodec.putVarint(buffer, payloadLength);
+        buffer.put(type);
+        buffer.put((byte) flags);
+        ChatMessageCodec.putVarint(buffer, names.size());
+
+        for (byte[] name : encodedNames) {
+            ChatMessageCodec.putVarint(buffer, name.length);
+            buffer.put(name);
+        }
+
+        if (clientFrame != null) {
+            buffer.put(clientFrame.duplicate());
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Blocks until a complete frame has been read from the stream.
+     * @param input
+     * @return the decoded frame
+     * @throws IOException if the stream ends or the frame is malformed
+     */
+    public static ClusterFrame read(DataInputStream input) throws IOException {
+        int length = readVarint(input);
+
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new StreamCorruptedException("Invalid cluster frame length: " + length);
+        }
+
+        byte[] payload = new byte[length];
+        input.readFully(payload);
+        return decodePayload(ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Decodes a payload without its length prefix.
+     * @param payload
+     * @return the decoded frame
+     * @throws IOException if the payload is malformed
+     */
+    public static ClusterFrame decodePayload(ByteBuffer payload) throws IOException {
+        try {
+            byte type = payload.get();
+            int flags = payload.get() & 0xFF;
+            int count = ChatMessageCodec.getVarint(payload);
+
+            if (count < 0 || count > payload.remaining()) {
+                throw new StreamCorruptedException("Invalid name count: " + count);
+            }
+
+            var names = new ArrayList<String>(count);
+
+            for (int i = 0; i < count; i++) {
+                int nameLength = ChatMessageCodec.getVarint(payload);
+                names.add(new String(payload.array(), payload.arrayOffset() + payload.position(), nameLength,
+                        StandardCharsets.UTF_8));
+                payload.position(payload.position() + nameLength);
+            }
+
+            byte[] clientFrame = new byte[payload.remaining()];
+            payload.get(clientFrame);
+            return new ClusterFrame(type, flags, names, clientFrame);
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new StreamCorruptedException("Truncated or malformed cluster frame");
+        }
+    }
+
+    private static int readVarint(DataInputStream input) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = input.readByte();
+            value |= (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new StreamCorruptedException("Invalid frame length prefix");
+    }
+}
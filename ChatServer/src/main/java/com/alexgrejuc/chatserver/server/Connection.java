@@ -0,0 +1,38 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.ChatMessage;
+
+/**
+ * A logged-in client, regardless of whether it is served by a blocking thread or an event loop.
+ */
+public interface Connection {
+    /**
+     * @return the name the client logged in with
+     */
+    String getUsername();
+
+    /**
+     * Sends an encoded frame to this client. Failures are handled by the connection itself.
+     * The connection takes over one reference to the frame and releases it once the frame is written or dropped.
+     * @param frame
+     */
+    void deliver(SharedFrame frame);
+
+    /**
+     * Encodes and sends a message to this client alone.
+     * @param message
+     */
+    default void deliver(ChatMessage message) {
+        deliver(SharedFrame.encode(message));
+    }
+
+    /**
+     * @return the frames waiting to be written to this client
+     */
+    OutboundQueue getOutboundQueue();
+
+    /**
+     * Unregisters this client and closes all server-side resources associated with it.
+     */
+    void closeAllResources();
+}
@@ -0,0 +1,352 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log of connections, disconnections and errors.
+ * Logging an event only puts it in a lock-free ring buffer, so the thread that logs it never waits on a lock, a
+ * console or a disk. If the buffer is full the event is dropped and counted instead. A background thread drains the
+ * buffer, formats each event and its stack trace, and writes it to rotating files as a line of JSON and, unless it
+ * is turned off, to the console.
+ * An error that repeats, such as every client of a failed network reporting the same reset, is logged the first few
+ * times in each window and then only counted, and the count is logged with the next one that gets through.
+ */
+public class EventLog {
+    public enum Level { INFO, WARN, ERROR }
+
+    /**
+     * @param timestamp when it was logged, in milliseconds since the epoch
+     * @param level
+     * @param thread the name of the thread that logged it
+     * @param event a short fixed name for the kind of event, e.g. client-connected
+     * @param message
+     * @param error the cause of an error, or null
+     * @param suppressed how many identical errors were not logged since the last that was
+     */
+    record Event(long timestamp, Level level, String thread, String event, String message, Throwable error,
+                 long suppressed) {}
+
+    private static final int BUFFER_EVENTS = 16 * 1024;
+
+    // How many identical errors are logged in each window before the rest are only counted
+    private static final int ERRORS_PER_WINDOW = 10;
+    private static final long ERROR_WINDOW_MILLIS = 10_000;
+    private static final int MAX_TRACKED_ERRORS = 1024;
+
+    // How long the drain thread sleeps when the buffer is empty
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final RingBuffer<Event> buffer = new RingBuffer<>(BUFFER_EVENTS);
+    private static final ConcurrentHashMap<String, ErrorWindow> errorWindows = new ConcurrentHashMap<>();
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder suppressed = new LongAdder();
+
+    // Set by configure and picked up by the drain thread, which alone uses the file
+    private static volatile ServerOptions options;
+    private static volatile boolean console = true;
+    private static volatile boolean closing;
+    private static final Thread drainer;
+
+    static {
+        drainer = new Thread(EventLog::drain, "event-log");
+        drainer.setDaemon(true);
+        drainer.start();
+
+        // Events still in the buffer are written before the server exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            closing = true;
+            LockSupport.unpark(drainer);
+
+            try {
+                drainer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "event-log-shutdown"));
+    }
+
+    /**
+     * Starts writing events to files in the configured directory. Until this is called, events only go to the
+     * console.
+     * @param serverOptions
+     */
+    public static void configure(ServerOptions serverOptions) {
+        console = serverOptions.eventLogConsole;
+        options = serverOptions;
+        LockSupport.unpark(drainer);
+    }
+
+    public static void info(String event, String message) {
+        log(Level.INFO, event, message, null, 0);
+    }
+
+    public static void warn(String event, String message) {
+        log(Level.WARN, event, message, null, 0);
+    }
+
+    /**
+     * Logs an error unless identical ones, with the same event and the same kind of cause, have already been logged
+     * too often in the current window.
+     * @param event
+     * @param message
+     * @param error
+     */
+    public static void error(String event, String message, Throwable error) {
+        String key = event + '|' + (error == null ? "" : error.getClass().getName() + ": " + error.getMessage());
+        long now = System.currentTimeMillis();
+        var window = errorWindows.get(key);
+
+        if (window == null) {
+            if (errorWindows.size() >= MAX_TRACKED_ERRORS) {
+                // Rare and harmless: the limits simply start over
+                errorWindows.clear();
+            }
+
+            window = errorWindows.computeIfAbsent(key, k -> new ErrorWindow(now));
+        }
+
+        long skipped = window.admit(now);
+
+        if (skipped < 0) {
+            suppressed.increment();
+            return;
+        }
+
+        log(Level.ERROR, event, message, error, skipped);
+    }
+
+    private static void log(Level level, String event, String message, Throwable error, long skipped) {
+        var entry = new Event(System.currentTimeMillis(), level, Thread.currentThread().getName(), event, message,
+                error, skipped);
+
+        if (!buffer.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * @return the number of events dropped because the buffer was full
+     */
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of errors not logged because identical ones were being logged too often
+     */
+    public static long suppressed() {
+        return suppressed.sum();
+    }
+
+    /**
+     * The rate limit for one kind of error. Races between threads can let a few extra errors through at the start of
+     * a window, which is fine for a log.
+     */
+    static class ErrorWindow {
+        private final AtomicLong start;
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicLong skipped = new AtomicLong();
+
+        /**
+         * @param now when the first window starts, in milliseconds
+         */
+        ErrorWindow(long now) {
+            start = new AtomicLong(now);
+        }
+
+        /**
+         * @param now in milliseconds
+         * @return -1 if the error should be suppressed, otherwise how many were suppressed since the last one logged
+         */
+        long admit(long now) {
+            long windowStart = start.get();
+
+            if (now - windowStart >= ERROR_WINDOW_MILLIS && start.compareAndSet(windowStart, now)) {
+                count.set(0);
+            }
+
+            if (count.incrementAndGet() > ERRORS_PER_WINDOW) {
+                skipped.incrementAndGet();
+                return -1;
+            }
+
+            return skipped.getAndSet(0);
+        }
+    }
+
+    private static void drain() {
+        EventLogFile file = null;
+        ServerOptions fileOptions = null;
+        long droppedReported = 0;
+
+        while (true) {
+            if (options != fileOptions) {
+                fileOptions = options;
+                file = reopen(file, fileOptions);
+            }
+
+            int written = 0;
+            Event event;
+
+            while ((event = buffer.poll()) != null) {
+                write(file, event);
+                written++;
+            }
+
+            long droppedNow = dropped.sum();
+
+            if (droppedNow != droppedReported) {
+                write(file, new Event(System.currentTimeMillis(), Level.WARN, Thread.currentThread().getName(),
+                        "events-dropped", (droppedNow - droppedReported) + " events were dropped because the log fell behind",
+                        null, 0));
+                droppedReported = droppedNow;
+                written++;
+            }
+
+            if (written > 0) {
+                flush(file);
+            }
+            else if (closing) {
+                close(file);
+                return;
+            }
+            else {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    private static EventLogFile reopen(EventLogFile file, ServerOptions fileOptions) {
+        close(file);
+
+        try {
+            return new EventLogFile(Path.of(fileOptions.eventLogDirectory), fileOptions.eventLogFileBytes,
+                    fileOptions.eventLogFiles);
+        } catch (IOException ioe) {
+            System.err.println("Error opening the event log in " + fileOptions.eventLogDirectory + ": ");
+            ioe.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void write(EventLogFile file, Event event) {
+        String stackTrace = null;
+
+        if (event.error() != null) {
+            var trace = new StringWriter();
+            event.error().printStackTrace(new PrintWriter(trace));
+            stackTrace = trace.toString();
+        }
+
+        if (console) {
+            var out = event.level() == Level.ERROR ? System.err : System.out;
+            out.println(event.message() + (event.suppressed() > 0 ? " (" + event.suppressed() + " identical errors were not logged)" : ""));
+
+            if (stackTrace != null) {
+                out.print(stackTrace);
+            }
+        }
+
+        if (file != null) {
+            try {
+                file.write(toJson(event, stackTrace));
+            } catch (IOException ioe) {
+                System.err.println("Error writing to the event log: ");
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    private static void flush(EventLogFile file) {
+        if (file != null) {
+            try {
+                file.flush();
+            } catch (IOException ioe) {
+                System.err.println("Error flushing the event log: ");
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    private static void close(EventLogFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ioe) {
+                System.err.println("Error closing the event log: ");
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param event
+     * @param stackTrace the formatted stack trace of the event's error, or null
+     * @return the event as a single line of JSON
+     */
+    static String toJson(Event event, String stackTrace) {
+        var json = new StringBuilder(128);
+        json.append("{\"time\":\"").append(Instant.ofEpochMilli(event.timestamp()))
+            .append("\",\"level\":\"").append(event.level())
+            .append("\",\"thread\":");
+        appendString(json, event.thread());
+        json.append(",\"event\":");
+        appendString(json, event.event());
+        json.append(",\"message\":");
+        appendString(json, event.message());
+
+        if (event.error() != null) {
+            json.append(",\"error\":");
+            appendString(json, event.error().toString());
+            json.append(",\"stack\":");
+            appendString(json, stackTrace);
+        }
+
+        if (event.suppressed() > 0) {
+            json.append(",\"suppressed\":").append(event.suppressed());
+        }
+
+        return json.append('}').toString();
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+
+        json.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+
+        json.append('"');
+    }
+}
@@ -0,0 +1,92 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The files the event log is written to, one line per event.
+ * The current file is events.jsonl. Once it reaches its size limit it is renamed to events.1.jsonl, the previous
+ * events.1.jsonl to events.2.jsonl and so on, and the oldest beyond the number of files kept is deleted.
+ * Only the event log's drain thread uses it.
+ */
+class EventLogFile implements AutoCloseable {
+    private final Path directory;
+    private final long maxFileBytes;
+    private final int files;
+    private Writer writer;
+    private long bytes;
+
+    /**
+     * @param directory created if it does not exist
+     * @param maxFileBytes the size at which the current file is rotated
+     * @param files the number of files kept, including the current one
+     * @throws IOException
+     */
+    EventLogFile(Path directory, long maxFileBytes, int files) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxFileBytes = maxFileBytes;
+        this.files = Math.max(1, files);
+        open();
+    }
+
+    /**
+     * @param index 0 for the current file
+     * @return the path of the file
+     */
+    Path path(int index) {
+        return directory.resolve(index == 0 ? "events.jsonl" : "events." + index + ".jsonl");
+    }
+
+    private void open() throws IOException {
+        Path current = path(0);
+        bytes = Files.exists(current) ? Files.size(current) : 0;
+        writer = new BufferedWriter(Files.newBufferedWriter(current, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    }
+
+    /**
+     * Appends a line, rotating the files first if it would take the current one over its size limit.
+     * @param line without a line separator
+     * @throws IOException
+     */
+    void write(String line) throws IOException {
+        // Events are almost all ASCII, so the length in chars is close enough to the length in bytes
+        long length = line.length() + 1;
+
+        if (bytes > 0 && bytes + length > maxFileBytes) {
+            rotate();
+        }
+
+        writer.write(line);
+        writer.write('\n');
+        bytes += length;
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+        Files.deleteIfExists(path(files - 1));
+
+        for (int i = files - 2; i >= 0; i--) {
+            if (Files.exists(path(i))) {
+                Files.move(path(i), path(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        open();
+    }
+
+    void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
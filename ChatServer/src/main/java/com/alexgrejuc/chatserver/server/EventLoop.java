@@ -0,0 +1,172 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread that multiplexes many connections with a selector.
+ * Other threads hand work to the loop through execute() so that a channel is only ever touched by its own loop.
+ * Work can also be deferred until the loop has handled every ready channel, so that what those channels cause, such
+ * as messages for the same connection, can be done once for all of them.
+ */
+public class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Only touched by the loop's thread
+    private final ArrayDeque<Runnable> deferredTasks = new ArrayDeque<>();
+    private Thread thread;
+
+    public EventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the loop on its own thread.
+     * @param name the name of the loop's thread
+     */
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * @return true if the caller is running on this loop's thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs a task on this loop's thread, waking the selector if it is blocked.
+     * @param task
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a task once the loop has handled every ready channel in the current iteration. Must be called on the
+     * loop's thread.
+     * @param task
+     */
+    public void executeAfterHandlers(Runnable task) {
+        deferredTasks.add(task);
+    }
+
+    /**
+     * Registers a channel with this loop's selector. Must be called on the loop's thread.
+     * @param channel
+     * @param interestOps
+     * @param attachment
+     * @return the resulting selection key
+     * @throws ClosedChannelException
+     */
+    public SelectionKey register(SelectableChannel channel, int interestOps, Object attachment) throws ClosedChannelException {
+        return channel.register(selector, interestOps, attachment);
+    }
+
+    /**
+     * Stops the loop after the current iteration.
+     */
+    public void stop() {
+        execute(() -> {
+            try {
+                selector.close();
+            } catch (IOException ioe) {
+                EventLog.error("selector-close-failed", "Error closing selector", ioe);
+            }
+        });
+    }
+
+    /**
+     * Waits for the loop's thread to finish.
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    /**
+     * Selects ready channels and dispatches them until the selector is closed.
+     */
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                // Deferred work left by an iteration that was cut short is not kept waiting for another event
+                if (deferredTasks.isEmpty()) {
+                    selector.select();
+                }
+                else {
+                    selector.selectNow();
+                }
+
+                runTasks();
+
+                if (!selector.isOpen()) {
+                    break;
+                }
+
+                var selectedKeys = selector.selectedKeys().iterator();
+
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    var handler = (Handler) key.attachment();
+
+                    // One channel's failure closes that channel rather than stopping the loop for all of the others
+                    try {
+                        handler.handle(key);
+                    } catch (RuntimeException e) {
+                        EventLog.error("event-loop-handler-failed", "Error handling a channel, which will be closed", e);
+                        handler.closeAllResources();
+                    }
+                }
+
+                runDeferredTasks();
+            } catch (IOException | ClosedSelectorException e) {
+                if (selector.isOpen()) {
+                    EventLog.error("event-loop-failed", "Error in event loop", e);
+                }
+            } catch (RuntimeException e) {
+                EventLog.error("event-loop-task-failed", "Error running a task in the event loop", e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+
+        // Tasks from other threads may have deferred work too
+        runDeferredTasks();
+    }
+
+    private void runDeferredTasks() {
+        Runnable task;
+
+        while ((task = deferredTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Reacts to readiness events on a channel registered with an event loop.
+     */
+    public interface Handler {
+        void handle(SelectionKey key);
+
+        /**
+         * Closes the handler's channel after handle() failed unexpectedly.
+         */
+        void closeAllResources();
+    }
+}
@@ -0,0 +1,365 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageFrames;
+import com.alexgrejuc.chatmessage.ChatMessageParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * An on-disk index of the message log by conversation, for reading a conversation's history a page at a time.
+ * Each conversation has a file of fixed-size (offset, timestamp) entries, in offset order, so the page before a
+ * sequence number is found with a binary search and read with a single positional read. The conversations are:
+ * broadcasts, each room, each user's direct messages, and each pair of users' direct messages to each other.
+ * The index is built by a background thread that follows the log, so routing a message does no extra work, and a
+ * checkpoint of how far it has got lets it catch up after a restart. Queries run on the same thread, one at a time.
+ */
+public class HistoryIndex implements AutoCloseable {
+    public static final String BROADCASTS = "broadcast";
+
+    private static final int ENTRY_LENGTH = 16;
+    private static final int BATCH_SIZE = 1000;
+    private static final int MAX_OPEN_FILES = 256;
+
+    private final Path directory;
+    private final MessageLog log;
+    private final FileChannel checkpoint;
+
+    // Only accessed by the executor's thread
+    private long nextOffset;
+    private final LinkedHashMap<String, IndexFile> openFiles = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, IndexFile> eldest) {
+            if (size() > MAX_OPEN_FILES) {
+                eldest.getValue().close();
+                return true;
+            }
+
+            return false;
+        }
+    };
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "history-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Opens the index and starts following the log.
+     * @param directory created if it does not exist
+     * @param log
+     * @param intervalMillis how often new messages in the log are indexed
+     * @throws IOException
+     */
+    public HistoryIndex(Path directory, MessageLog log, long intervalMillis) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.log = log;
+        this.checkpoint = FileChannel.open(directory.resolve("checkpoint"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        var saved = ByteBuffer.allocate(Long.BYTES);
+        checkpoint.read(saved, 0);
+        nextOffset = saved.hasRemaining() ? 0 : saved.getLong(0);
+
+        executor.scheduleWithFixedDelay(this::catchUp, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param room
+     * @return the conversation of a room
+     */
+    public static String roomKey(String room) {
+        return "room." + keyPart(room);
+    }
+
+    /**
+     * @param username
+     * @return the conversation of every direct message a user sent or received
+     */
+    public static String userKey(String username) {
+        return "user." + keyPart(username);
+    }
+
+    /**
+     * @param username
+     * @param other
+     * @return the conversation of the direct messages between two users, which is the same either way around
+     */
+    public static String directKey(String username, String other) {
+        boolean ordered = username.compareTo(other) <= 0;
+        return "direct." + keyPart(ordered ? username : other) + "." + keyPart(ordered ? other : username);
+    }
+
+    // Keys are file names, so names that are not plain words are hex-encoded behind a '-', which no word contains
+    private static String keyPart(String name) {
+        if (ChatMessageParser.isName(name)) {
+            return name;
+        }
+
+        return "-" + HexFormat.of().formatHex(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param message
+     * @return the conversations the message belongs to
+     */
+    static List<String> keys(ChatMessage message) {
+        if (message.room() != null) {
+            return List.of(roomKey(message.room()));
+        }
+
+        if (message.recipientNames() == null) {
+            return List.of(BROADCASTS);
+        }
+
+        var keys = new LinkedHashSet<String>();
+        keys.add(userKey(message.senderName()));
+
+        for (String recipient : message.recipientNames()) {
+            keys.add(userKey(recipient));
+            keys.add(directKey(message.senderName(), recipient));
+        }
+
+        return List.copyOf(keys);
+    }
+
+    /**
+     * Indexes the messages appended to the log since the last call.
+     */
+    void catchUp() {
+        try {
+            while (true) {
+                var entries = log.read(nextOffset, BATCH_SIZE);
+
+                for (var entry : entries) {
+                    index(entry);
+                    nextOffset = entry.offset() + 1;
+                }
+
+                if (!entries.isEmpty()) {
+                    checkpoint.write(ByteBuffer.allocate(Long.BYTES).putLong(0, nextOffset), 0);
+                }
+
+                if (entries.size() < BATCH_SIZE) {
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            EventLog.error("history-index-failed", "Error indexing the message log", e);
+        }
+    }
+
+    private void index(MessageLog.Entry entry) throws IOException {
+        List<String> keys;
+
+        // An entry that cannot be decoded, or whose names cannot be made into keys, is skipped rather than retried, so
+        // that indexing gets past it
+        try {
+            keys = keys((ChatMessage) ChatMessageFrames.decode(ByteBuffer.wrap(entry.frame())));
+        } catch (IOException | RuntimeException e) {
+            return;
+        }
+
+        for (String key : keys) {
+            file(key, true).append(entry.offset(), entry.timestamp());
+        }
+    }
+
+    /**
+     * Reads a page of history in the background.
+     * @param keys the conversations to combine
+     * @param before the page ends with the message just before this offset
+     * @param limit the most messages to read
+     * @param callback called on the index's thread with the messages, oldest first
+     */
+    public void page(List<String> keys, long before, int limit, Consumer<List<MessageLog.Entry>> callback) {
+        executor.execute(() -> {
+            try {
+                callback.accept(page(keys, before, limit));
+            } catch (IOException | RuntimeException e) {
+                EventLog.error("history-read-failed", "Error reading history", e);
+            }
+        });
+    }
+
+    /**
+     * Reads a page of history. Must be called on the index's thread.
+     * @param keys the conversations to combine
+     * @param before the page ends with the message just before this offset
+     * @param limit the most messages to read
+     * @return the messages, oldest first. Messages that retention has deleted from the log are left out.
+     * @throws IOException
+     */
+    List<MessageLog.Entry> page(List<String> keys, long before, int limit) throws IOException {
+        var offsets = new TreeSet<Long>();
+
+        for (String key : keys) {
+            var file = file(key, false);
+
+            if (file != null) {
+                for (long offset : file.before(before, limit)) {
+                    offsets.add(offset);
+                }
+            }
+        }
+
+        // The newest of each conversation's pages
+        while (offsets.size() > limit) {
+            offsets.pollFirst();
+        }
+
+        var entries = new ArrayList<MessageLog.Entry>(offsets.size());
+
+        for (long offset : offsets) {
+            var read = log.read(offset, 1);
+
+            if (!read.isEmpty() && read.get(0).offset() == offset) {
+                entries.add(read.get(0));
+            }
+        }
+
+        return entries;
+    }
+
+    private IndexFile file(String key, boolean create) throws IOException {
+        var file = openFiles.get(key);
+
+        if (file == null) {
+            Path path = directory.resolve(key + ".idx");
+
+            if (!create && !Files.exists(path)) {
+                return null;
+            }
+
+            file = new IndexFile(path);
+            openFiles.put(key, file);
+        }
+
+        return file;
+    }
+
+    /**
+     * Stops indexing and closes the index's files.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+            checkpoint.close();
+        } catch (IOException | InterruptedException e) {
+            EventLog.error("history-close-failed", "Error closing the history index", e);
+        }
+
+        openFiles.values().forEach(IndexFile::close);
+        openFiles.clear();
+    }
+
+    /**
+     * One conversation's entries.
+     */
+    private static class IndexFile {
+        private final FileChannel channel;
+        private long entries;
+        private long lastOffset = -1;
+
+        IndexFile(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            // Drop an entry that a crash cut short
+            entries = channel.size() / ENTRY_LENGTH;
+            channel.truncate(entries * ENTRY_LENGTH);
+
+            if (entries > 0) {
+                lastOffset = offsetAt(entries - 1);
+            }
+        }
+
+        /**
+         * Adds an entry, unless the message is already indexed because the checkpoint was not saved before a restart.
+         * @param offset
+         * @param timestamp
+         * @throws IOException
+         */
+        void append(long offset, long timestamp) throws IOException {
+            if (offset <= lastOffset) {
+                return;
+            }
+
+            var entry = ByteBuffer.allocate(ENTRY_LENGTH).putLong(offset).putLong(timestamp).flip();
+            channel.write(entry, entries * ENTRY_LENGTH);
+            entries++;
+            lastOffset = offset;
+        }
+
+        /**
+         * @param before
+         * @param limit
+         * @return the offsets of up to limit entries just before the offset, oldest first
+         * @throws IOException
+         */
+        long[] before(long before, int limit) throws IOException {
+            // The first entry at or after the offset
+            long low = 0;
+            long high = entries;
+
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+
+                if (offsetAt(middle) < before) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+
+            long start = Math.max(0, low - limit);
+            var page = ByteBuffer.allocate((int) (low - start) * ENTRY_LENGTH);
+
+            while (page.hasRemaining() && channel.read(page, start * ENTRY_LENGTH + page.position()) > 0) {
+            }
+
+            long[] offsets = new long[(int) (low - start)];
+
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = page.getLong(i * ENTRY_LENGTH);
+            }
+
+            return offsets;
+        }
+
+        private long offsetAt(long index) throws IOException {
+            var offset = ByteBuffer.allocate(Long.BYTES);
+            channel.read(offset, index * ENTRY_LENGTH);
+            return offset.getLong(0);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                EventLog.error("history-file-close-failed", "Error closing a history index file", ioe);
+            }
+        }
+    }
+}
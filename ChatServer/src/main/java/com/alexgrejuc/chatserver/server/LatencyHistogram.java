@@ -0,0 +1,129 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds that many threads can record into without contending.
+ * Like an HDR histogram, each power of two is split into 16 linear buckets, so every recorded value is counted in a
+ * bucket no more than 1/16 (6.25%) wider than the value, from nanoseconds up to centuries, in under a thousand
+ * buckets. Each bucket is a LongAdder, which only grows extra cells for the buckets that are actually contended.
+ * Recording a value updates its bucket, the sum and, only if it is a new maximum, the maximum. The count is the sum of
+ * the buckets, computed when it is read.
+ * Percentiles are read from a snapshot of the counts, so they are approximate while values are being recorded.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos a latency, where negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucket(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @param value a non-negative value
+     * @return the index of the value's bucket
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param bucket
+     * @return the largest value counted in the bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + subBucket) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value that the percentile of recorded values are at or below, rounded up to its bucket's highest
+     * value, or 0 if nothing has been recorded
+     */
+    public long percentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max());
+            }
+        }
+
+        return max();
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long count() {
+        long count = 0;
+
+        for (var bucket : counts) {
+            count += bucket.sum();
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the mean of the recorded values, or 0 if there are none
+     */
+    public double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * @return the largest value recorded
+     */
+    public long max() {
+        return max.get();
+    }
+}
@@ -0,0 +1,283 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * One file of the message log, holding the records from its base offset up to the next segment's.
+ * The file is preallocated and memory-mapped, so an append is a copy into the page cache rather than a system call.
+ * A record is laid out as:
+ *     int length of the frame, int CRC32C of the rest of the record, long offset, long timestamp, the frame
+ * A zero length marks the end of the records. A sparse index of (offset - base offset, position) pairs, one for
+ * every INDEX_INTERVAL bytes of records, is kept in memory and in a file next to the segment, so that a read can
+ * start near the record it wants instead of at the beginning of the segment.
+ * Appends are serialized by MessageLog. Reads may run concurrently with them, and see records once size() covers them.
+ */
+class LogSegment {
+    static final int HEADER_LENGTH = 24;
+    static final int INDEX_INTERVAL = 4096;
+
+    private final long baseOffset;
+    private final Path path;
+    private final Path indexPath;
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer map;
+    private final CRC32C crc = new CRC32C();
+
+    private volatile int size;
+    private long nextOffset;
+    private int bytesSinceIndexEntry;
+
+    // The sparse index, guarded by this segment's monitor for reads that run during appends
+    private int[] indexOffsets = new int[64];
+    private int[] indexPositions = new int[64];
+    private int indexCount;
+
+    private LogSegment(Path directory, long baseOffset, int capacity) throws IOException {
+        this.baseOffset = baseOffset;
+        this.nextOffset = baseOffset;
+        this.path = directory.resolve(fileName(baseOffset, ".log"));
+        this.indexPath = directory.resolve(fileName(baseOffset, ".index"));
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // Mapping past the end of the file extends it, without allocating disk blocks on most file systems
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, channel.size()));
+    }
+
+    /**
+     * Creates an empty segment.
+     * @param directory
+     * @param baseOffset the offset of the segment's first record
+     * @param capacity the size of the file
+     * @return the segment
+     * @throws IOException
+     */
+    static LogSegment create(Path directory, long baseOffset, int capacity) throws IOException {
+        var segment = new LogSegment(directory, baseOffset, capacity);
+        segment.indexChannel.truncate(0);
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment and finds the end of its records. The scan starts at the last indexed record and
+     * stops at the first record that is incomplete, corrupt, or out of sequence, which is where a crash may have
+     * interrupted the log.
+     * @param path the segment's .log file
+     * @return the segment
+     * @throws IOException
+     */
+    static LogSegment open(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        long baseOffset = Long.parseLong(name.substring(0, name.length() - ".log".length()));
+        var segment = new LogSegment(path.getParent(), baseOffset, 0);
+        segment.recover();
+        return segment;
+    }
+
+    static String fileName(long baseOffset, String extension) {
+        return String.format("%020d%s", baseOffset, extension);
+    }
+
+    private void recover() throws IOException {
+        // Load the index, ignoring a torn last entry
+        var entries = ByteBuffer.allocate((int) (indexChannel.size() / 8 * 8));
+        indexChannel.read(entries, 0);
+        entries.flip();
+
+        int position = 0;
+        long offset = baseOffset;
+
+        while (entries.remaining() >= 8) {
+            int relativeOffset = entries.getInt();
+            int entryPosition = entries.getInt();
+
+            if (!isRecord(entryPosition, baseOffset + relativeOffset)) {
+                break;
+            }
+
+            addIndexEntry(relativeOffset, entryPosition);
+            position = entryPosition;
+            offset = baseOffset + relativeOffset;
+        }
+
+        // Scan the records after the last index entry
+        while (isRecord(position, offset)) {
+            int length = HEADER_LENGTH + map.getInt(position);
+            bytesSinceIndexEntry += length;
+            position += length;
+            offset++;
+
+            if (bytesSinceIndexEntry >= INDEX_INTERVAL && isRecord(position, offset)) {
+                appendIndexEntry((int) (offset - baseOffset), position);
+            }
+        }
+
+        indexChannel.truncate((long) indexCount * 8);
+        nextOffset = offset;
+        size = position;
+    }
+
+    private boolean isRecord(int position, long expectedOffset) {
+        if (position < 0 || position + HEADER_LENGTH > map.capacity()) {
+            return false;
+        }
+
+        int length = map.getInt(position);
+
+        if (length <= 0 || length > map.capacity() - position - HEADER_LENGTH || map.getLong(position + 8) != expectedOffset) {
+            return false;
+        }
+
+        crc.reset();
+        crc.update(map.slice(position + 8, length + HEADER_LENGTH - 8));
+        return (int) crc.getValue() == map.getInt(position + 4);
+    }
+
+    /**
+     * @param length the length of a frame
+     * @return true if a record holding the frame fits in the rest of the segment
+     */
+    boolean hasRoomFor(int length) {
+        return size + HEADER_LENGTH + length <= map.capacity();
+    }
+
+    /**
+     * Copies a frame into the segment as the next record. The caller checks hasRoomFor first.
+     * @param frame the encoded frame, which is read from its position to its limit without being consumed
+     * @param timestamp
+     * @return the record's offset
+     * @throws IOException if the index cannot be written
+     */
+    long append(ByteBuffer frame, long timestamp) throws IOException {
+        int position = size;
+        int length = frame.remaining();
+        long offset = nextOffset;
+
+        map.putLong(position + 8, offset);
+        map.putLong(position + 16, timestamp);
+        map.put(position + HEADER_LENGTH, frame, frame.position(), length);
+
+        crc.reset();
+        crc.update(map.slice(position + 8, length + HEADER_LENGTH - 8));
+        map.putInt(position + 4, (int) crc.getValue());
+
+        // The length goes last, since a non-zero length is what marks a record as present
+        map.putInt(position, length);
+
+        if (bytesSinceIndexEntry >= INDEX_INTERVAL || indexCount == 0) {
+            appendIndexEntry((int) (offset - baseOffset), position);
+        }
+
+        bytesSinceIndexEntry += HEADER_LENGTH + length;
+        nextOffset = offset + 1;
+        size = position + HEADER_LENGTH + length;
+        return offset;
+    }
+
+    private void appendIndexEntry(int relativeOffset, int position) throws IOException {
+        var entry = ByteBuffer.allocate(8).putInt(relativeOffset).putInt(position).flip();
+        indexChannel.write(entry, (long) indexCount * 8);
+        addIndexEntry(relativeOffset, position);
+        bytesSinceIndexEntry = 0;
+    }
+
+    private synchronized void addIndexEntry(int relativeOffset, int position) {
+        if (indexCount == indexOffsets.length) {
+            indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+        }
+
+        indexOffsets[indexCount] = relativeOffset;
+        indexPositions[indexCount] = position;
+        indexCount++;
+    }
+
+    /**
+     * @param offset
+     * @return the position of the last indexed record at or before the offset
+     */
+    private synchronized int indexedPosition(long offset) {
+        int i = Arrays.binarySearch(indexOffsets, 0, indexCount, (int) (offset - baseOffset));
+        i = i >= 0 ? i : -i - 2;
+        return i < 0 ? 0 : indexPositions[i];
+    }
+
+    /**
+     * Reads records starting at an offset.
+     * @param fromOffset
+     * @param maxEntries
+     * @param entries where the records are added
+     */
+    void read(long fromOffset, int maxEntries, List<MessageLog.Entry> entries) {
+        int end = size;
+        int position = fromOffset <= baseOffset ? 0 : indexedPosition(fromOffset);
+
+        while (position < end && entries.size() < maxEntries) {
+            int length = map.getInt(position);
+            long offset = map.getLong(position + 8);
+
+            if (offset >= fromOffset) {
+                byte[] frame = new byte[length];
+                map.get(position + HEADER_LENGTH, frame);
+                entries.add(new MessageLog.Entry(offset, map.getLong(position + 16), frame));
+            }
+
+            position += HEADER_LENGTH + length;
+        }
+    }
+
+    /**
+     * Writes the segment's records to disk.
+     */
+    void flush() {
+        map.force();
+    }
+
+    /**
+     * Flushes the segment and closes its files. Its records stay readable through the mapping.
+     * @throws IOException
+     */
+    void seal() throws IOException {
+        flush();
+        indexChannel.force(true);
+        indexChannel.close();
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        if (indexChannel.isOpen()) {
+            indexChannel.close();
+            channel.close();
+        }
+
+        // The mapping keeps the data readable for a reader that is still using it
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(indexPath);
+    }
+
+    long baseOffset() {
+        return baseOffset;
+    }
+
+    long nextOffset() {
+        return nextOffset;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Path path() {
+        return path;
+    }
+}
@@ -1,7 +1,11 @@
 package com.alexgrejuc.chatserver.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * The driver code for running the chat server.
@@ -10,13 +14,78 @@ public class Main {
     /**
      * Starts a server that listens for clients at a default port.
      *
-     * @param args currently no command line arguments are supported
+     * @param args optional flags, see ServerOptions:
+     *             --port=N (default 7777),
+     *             --mode=blocking|nio where blocking uses a thread per client and nio uses event loops (default blocking),
+     *             --event-loops=N the number of event loop threads in nio mode (default: the number of processors),
+     *             --executor=platform|virtual|pooled how blocking mode runs each client handler (default platform),
+     *             --pool-size=N the number of threads for the pooled executor (default 200),
+     *             --flush-linger-us=N how long a blocking writer waits for more frames to write together (default 0),
+     *             --compression=on|off whether clients that support it are sent compressed frames (default on),
+     *             --compression-min-bytes=N the smallest frame that is compressed (default 512),
+     *             --compression-level=N the DEFLATE level, from 1 for the fastest to 9 for the smallest (default 1),
+     *             --queue-messages=N and --queue-bytes=N the limits on frames waiting for one client,
+     *             --overflow=drop-oldest|disconnect|coalesce-notices what to do when a client falls behind,
+     *             --store-dir=PATH where attachments are stored by hash,
+     *             --store-bytes=N how large the attachment store may grow before old attachments are evicted (default 1 GB),
+     *             --log-dir=PATH where routed messages are logged,
+     *             --log-segment-bytes=N the size of each log segment file (default 64 MB),
+     *             --log-fsync=always|interval|os when logged messages are forced to disk (default interval),
+     *             --log-fsync-ms=N how often the interval policy forces the log to disk (default 100),
+     *             --log-retention-bytes=N and --log-retention-hours=N when old segments are deleted (default 1 GB, 7 days),
+     *             --replay-page=N and --replay-interval-ms=N how fast a reconnecting client is sent what it missed
+     *             (default 100 messages every 50 ms),
+     *             --history-interval-ms=N how often logged messages are indexed for paging through history (default 100),
+     *             --history-page=N the most messages a client may ask for in a page of history (default 100),
+     *             --metrics=on|off whether counters and latencies are recorded and registered with JMX (default on),
+     *             --metrics-port=N serves the metrics as text at http://localhost:N/metrics (default none),
+     *             --events-dir=PATH where connections, disconnections and errors are logged as lines of JSON,
+     *             --events-file-bytes=N and --events-files=N when event log files are rotated and how many are kept
+     *             (default 16 MB, 5 files),
+     *             --events-console=on|off whether events are also printed to the console (default on),
+     *             --node=NAME the name of this node in a cluster (default node- and the port),
+     *             --cluster-port=N the port other nodes link to, which makes this node part of a cluster (default none),
+     *             --peers=HOST:PORT,... the cluster ports of the other nodes
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
-        int port = 7777;
-        ServerSocket serverSocket = new ServerSocket(port);
-        Server server = new Server(serverSocket);
-        server.startServer();
+        ServerOptions options = ServerOptions.parse(args);
+        EventLog.configure(options);
+
+        if (options.metricsEnabled && options.metricsPort > 0) {
+            new MetricsEndpoint(options.metricsPort);
+        }
+
+        if (options.mode.equals("nio")) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(options.port));
+            NioServer server = new NioServer(serverChannel, options);
+            server.startServer();
+        }
+        else if (options.mode.equals("blocking")) {
+            // Opened through a channel so that stored attachments can be sent with transferTo
+            ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(options.port)).socket();
+            Server server = new Server(serverSocket, createExecutor(options.executor, options.poolSize), options);
+            server.startServer();
+        }
+        else {
+            throw new IllegalArgumentException("Unknown mode: " + options.mode);
+        }
+    }
+
+    /**
+     * Creates the executor that runs blocking client handlers.
+     * Note that a pooled executor can serve at most poolSize clients at once, since each handler blocks its thread.
+     * @param executor platform, virtual, or pooled
+     * @param poolSize the number of threads for the pooled executor
+     * @return
+     */
+    private static ExecutorService createExecutor(String executor, int poolSize) {
+        return switch (executor) {
+            case "platform" -> Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory());
+            case "virtual" -> Executors.newVirtualThreadPerTaskExecutor();
+            case "pooled" -> Executors.newFixedThreadPool(poolSize);
+            default -> throw new IllegalArgumentException("Unknown executor: " + executor);
+        };
     }
 }
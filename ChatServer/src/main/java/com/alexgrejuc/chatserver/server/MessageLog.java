@@ -0,0 +1,278 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * A write-ahead log of the messages the server routes, kept on disk as a series of segments.
+ * Each message gets the next offset in the log and is stored as the frame that was sent to its recipients, so that
+ * it can be sent again later without being encoded again.
+ * Appending copies the frame into a memory-mapped segment. When the copy reaches the disk depends on the fsync
+ * policy. When a segment is full, the log rolls over to a new one, and the oldest segments are deleted once the log
+ * is larger or older than its retention limits.
+ */
+public class MessageLog implements AutoCloseable {
+    /**
+     * When appended messages are forced to disk.
+     */
+    public enum FsyncPolicy {
+        // Before append returns, which makes each message durable at the cost of a disk write per message
+        ALWAYS,
+        // By a background thread every fsync interval, so at most an interval's messages are lost in a crash
+        INTERVAL,
+        // Whenever the operating system writes back dirty pages, which only loses messages if the machine fails
+        OS
+    }
+
+    /**
+     * A message in the log.
+     * @param offset its position in the log
+     * @param timestamp when it was appended, in milliseconds since the epoch
+     * @param frame the encoded frame
+     */
+    public record Entry(long offset, long timestamp, byte[] frame) {}
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long retentionBytes;
+    private final Duration retentionTime;
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService flusher;
+    private volatile LogSegment active;
+
+    // Guards appending and rolling over. A lock rather than a monitor, since appends happen on virtual writer threads,
+    // which a monitor would pin to their carrier while the frame is copied and a segment is created.
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    public MessageLog(ServerOptions options) throws IOException {
+        this(Path.of(options.logDirectory), options.logSegmentBytes, options.logFsyncPolicy, options.logFsyncIntervalMillis,
+                options.logRetentionBytes, options.logRetentionTime);
+    }
+
+    /**
+     * Opens the log, recovering any segments already in the directory.
+     * @param directory created if it does not exist
+     * @param segmentBytes the size of each segment file
+     * @param fsyncPolicy
+     * @param fsyncIntervalMillis how often the log is forced to disk under the INTERVAL policy
+     * @param retentionBytes the size the log is kept under, except that the active segment is always kept
+     * @param retentionTime how long segments are kept after they are last written to
+     * @throws IOException
+     */
+    public MessageLog(Path directory, int segmentBytes, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis,
+                      long retentionBytes, Duration retentionTime) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.retentionBytes = retentionBytes;
+        this.retentionTime = retentionTime;
+
+        List<Path> existing;
+
+        try (Stream<Path> files = Files.list(directory)) {
+            existing = files.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+
+        for (Path path : existing) {
+            var segment = LogSegment.open(path);
+            segments.put(segment.baseOffset(), segment);
+        }
+
+        // The last segment may end in a record that a crash cut short, so new records start in a fresh segment
+        // rather than after bytes that may not be what they seem
+        long nextOffset = segments.isEmpty() ? 0 : segments.lastEntry().getValue().nextOffset();
+
+        for (var segment : segments.values()) {
+            segment.seal();
+        }
+
+        // An empty last segment is replaced by the fresh one, which has the same base offset
+        if (segments.containsKey(nextOffset)) {
+            segments.remove(nextOffset).delete();
+        }
+
+        active = LogSegment.create(directory, nextOffset, segmentBytes);
+        segments.put(nextOffset, active);
+        enforceRetention();
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "message-log-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            flusher.scheduleWithFixedDelay(this::flush, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Appends a message to the log.
+     * @param frame the encoded frame, which is read from its position to its limit without being consumed
+     * @return the message's offset
+     * @throws IOException if the log cannot roll over to a new segment
+     */
+    public long append(ByteBuffer frame) throws IOException {
+        return append(frame, null);
+    }
+
+    /**
+     * Appends a message to the log, first letting the caller write the message's offset into the frame. Offsets are
+     * assigned in the order messages are appended, so this is the only way to put a frame's own offset into it.
+     * @param frame the encoded frame, which is read from its position to its limit without being consumed
+     * @param stamp called with the frame and its offset before the frame is copied into the log, or null
+     * @return the message's offset
+     * @throws IOException if the log cannot roll over to a new segment
+     */
+    public long append(ByteBuffer frame, ObjLongConsumer<ByteBuffer> stamp) throws IOException {
+        long offset;
+        LogSegment segment;
+
+        appendLock.lock();
+
+        try {
+            segment = active;
+
+            if (!segment.hasRoomFor(frame.remaining())) {
+                segment = rollOver(frame.remaining());
+            }
+
+            if (stamp != null) {
+                stamp.accept(frame, segment.nextOffset());
+            }
+
+            offset = segment.append(frame, System.currentTimeMillis());
+        } finally {
+            appendLock.unlock();
+        }
+
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            segment.flush();
+        }
+
+        return offset;
+    }
+
+    private LogSegment rollOver(int frameLength) throws IOException {
+        var previous = active;
+        int capacity = Math.max(segmentBytes, LogSegment.HEADER_LENGTH + frameLength);
+
+        active = LogSegment.create(directory, previous.nextOffset(), capacity);
+        segments.put(active.baseOffset(), active);
+        previous.seal();
+        enforceRetention();
+        return active;
+    }
+
+    private void enforceRetention() throws IOException {
+        long bytes = 0;
+
+        for (var segment : segments.values()) {
+            bytes += segment.size();
+        }
+
+        long expired = System.currentTimeMillis() - retentionTime.toMillis();
+
+        for (Map.Entry<Long, LogSegment> oldest = segments.firstEntry();
+             oldest != null && oldest.getValue() != active;
+             oldest = segments.firstEntry()) {
+            var segment = oldest.getValue();
+
+            if (bytes <= retentionBytes && Files.getLastModifiedTime(segment.path()).toMillis() >= expired) {
+                break;
+            }
+
+            segments.remove(oldest.getKey());
+            bytes -= segment.size();
+            segment.delete();
+        }
+    }
+
+    /**
+     * Reads messages starting at an offset. Messages that have been deleted by retention are skipped.
+     * @param fromOffset
+     * @param maxEntries
+     * @return up to maxEntries messages, in offset order
+     */
+    public List<Entry> read(long fromOffset, int maxEntries) {
+        var entries = new ArrayList<Entry>(Math.min(maxEntries, 256));
+        Long start = segments.floorKey(fromOffset);
+
+        for (var segment : segments.tailMap(start == null ? fromOffset : start).values()) {
+            if (entries.size() >= maxEntries) {
+                break;
+            }
+
+            segment.read(fromOffset, maxEntries, entries);
+        }
+
+        return entries;
+    }
+
+    /**
+     * @return the offset of the oldest message still in the log
+     */
+    public long firstOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * @return the offset the next message will get
+     */
+    public long nextOffset() {
+        appendLock.lock();
+
+        try {
+            return active.nextOffset();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Forces the messages appended so far to disk.
+     */
+    public void flush() {
+        try {
+            active.flush();
+        } catch (RuntimeException e) {
+            EventLog.error("message-log-flush-failed", "Error flushing the message log", e);
+        }
+    }
+
+    /**
+     * Flushes the log and stops the background flusher. Messages can still be read, but not appended.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+
+        try {
+            if (flusher != null) {
+                flusher.shutdownNow();
+            }
+
+            active.seal();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,764 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.Attachment;
+import com.alexgrejuc.chatmessage.AttachmentChunk;
+import com.alexgrejuc.chatmessage.AttachmentRequest;
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageCodec;
+import com.alexgrejuc.chatmessage.ChatMessageParser;
+import com.alexgrejuc.chatmessage.HistoryRequest;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Tracks the logged-in clients and routes messages between them.
+ * Shared by the blocking and the event loop server modes so that their clients can talk to each other.
+ */
+public class MessageRouter {
+    public static final ClientRegistry clients = new ClientRegistry();
+    public static final RoomRegistry rooms = new RoomRegistry();
+
+    private static ServerOptions options = new ServerOptions();
+    private static AttachmentStore store;
+    private static MessageLog log;
+    private static Replayer replayer;
+    private static HistoryIndex history;
+
+    /**
+     * An attachment the server has asked a client to upload.
+     * @param sender the client uploading the attachment
+     * @param upload
+     */
+    private record PendingUpload(Connection sender, AttachmentStore.Upload upload) {}
+
+    private static final ConcurrentHashMap<String, PendingUpload> uploads = new ConcurrentHashMap<>();
+
+    // Clients waiting for an upload to finish before the attachment can be sent to them. Guards the handoff from
+    // uploads to the store.
+    private static final HashMap<String, List<Connection>> waitingForUpload = new HashMap<>();
+
+    /**
+     * Applies the server's options to routing.
+     * @param serverOptions
+     */
+    public static void configure(ServerOptions serverOptions) {
+        options = serverOptions;
+        ServerMetrics.configure(options);
+
+        try {
+            store = new AttachmentStore(Path.of(options.storeDirectory), options.storeMaxBytes);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Error opening the attachment store", ioe);
+        }
+
+        try {
+            log = new MessageLog(options);
+            replayer = new Replayer(log, options.replayPageSize, options.replayIntervalMillis);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Error opening the message log", ioe);
+        }
+
+        try {
+            history = new HistoryIndex(Path.of(options.logDirectory, "history"), log, options.historyIntervalMillis);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Error opening the history index", ioe);
+        }
+
+        Cluster.configure(options);
+    }
+
+    /**
+     * Registers a newly logged-in client and broadcasts that they have entered the chat.
+     * A client that has been logged in before is sent the messages it missed in the meantime.
+     * @param connection
+     * @param login the client's login message, with the sequence of the last message it received
+     * @return false if the client's name is not a valid name or is already taken, in which case the caller should
+     * reject the client with loginRejectedMessage
+     */
+    public static boolean register(Connection connection, ChatMessage login) {
+        if (!isName(connection.getUsername())) {
+            EventLog.warn("invalid-name", "Rejected a client with an invalid name.");
+            return false;
+        }
+
+        if (Cluster.isRemoteUser(connection.getUsername()) || !clients.register(connection)) {
+            EventLog.warn("name-taken", "Rejected a second client named " + connection.getUsername() + ".");
+            return false;
+        }
+
+        Cluster.userJoined(connection.getUsername());
+        EventLog.info("client-connected", connection.getUsername() + " has connected.");
+
+        if (replayer != null && login.sequence() != ChatMessage.NO_SEQUENCE) {
+            replayer.start(connection, login.sequence());
+        }
+
+        broadcastServerMessage(connection.getUsername() + " has entered the chat.", connection);
+        return true;
+    }
+
+    /**
+     * Removes a client to ensure no future messages are sent to it and broadcasts that they have left the chat.
+     * Does nothing for a client that was never registered.
+     * @param connection
+     */
+    public static void unregister(Connection connection) {
+        if (!clients.unregister(connection)) {
+            return;
+        }
+
+        Cluster.userLeft(connection.getUsername());
+
+        // Abandon any uploads that were in progress, and stop waiting for others
+        for (var pending : uploads.values()) {
+            if (pending.sender() == connection) {
+                abandonUpload(pending, "its sender left");
+            }
+        }
+
+        synchronized (waitingForUpload) {
+            for (var waiting : waitingForUpload.values()) {
+                waiting.remove(connection);
+            }
+        }
+
+        var joined = List.copyOf(rooms.roomsOf(connection));
+        rooms.leaveAll(connection);
+
+        for (String room : joined) {
+            Cluster.roomChanged(room);
+        }
+
+        String quitMessage = connection.getUsername() + " has left the chat";
+        EventLog.info("client-disconnected", quitMessage);
+        broadcastServerMessage(quitMessage, connection);
+    }
+
+    /**
+     * @param message
+     * @return a message from the server with no recipients or attachments
+     */
+    public static ChatMessage serverMessage(String message) {
+        return new ChatMessage(message, "SERVER", new ArrayList<>(), new ArrayList<>());
+    }
+
+    /**
+     * @param username
+     * @return the message that tells a client why register rejected its name
+     */
+    public static ChatMessage loginRejectedMessage(String username) {
+        if (!isName(username)) {
+            return serverMessage("Names may only contain letters, digits and underscores. Please reconnect with another name.");
+        }
+
+        return serverMessage("The name " + username + " is already taken. Please reconnect with another name.");
+    }
+
+    /**
+     * @param name
+     * @return true if the name could be a user or room name, which rules out null
+     */
+    static boolean isName(String name) {
+        return name != null && ChatMessageParser.isName(name);
+    }
+
+    /**
+     * Checks a chat message a logged-in client sent before it is routed. The codec has already rejected messages
+     * without a sender or with null recipients, but only a login may leave out the text, and every name must be one
+     * that a client could have logged in with.
+     * @param message
+     * @throws StreamCorruptedException if the message cannot be routed, in which case the client should be disconnected
+     */
+    public static void checkMessage(ChatMessage message) throws StreamCorruptedException {
+        String problem = problemWith(message);
+
+        if (problem != null) {
+            throw new StreamCorruptedException(problem);
+        }
+    }
+
+    /**
+     * @param message
+     * @return why the message cannot be routed, or null if it can
+     */
+    private static String problemWith(ChatMessage message) {
+        if (message.message() == null) {
+            return "Message from " + message.senderName() + " without text";
+        }
+
+        if (!isName(message.senderName())) {
+            return "Message with an invalid sender name";
+        }
+
+        if (message.recipientNames() != null) {
+            for (String recipient : message.recipientNames()) {
+                if (!isName(recipient)) {
+                    return "Message from " + message.senderName() + " to an invalid recipient name";
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Sends a message from a client to the members of its room, to its recipients, or to every other client if it
+     * has neither. Room commands such as ":join room" are handled instead of being sent.
+     * Attachments are sent by reference. If the store does not have one of them yet, the sender is asked to upload it.
+     * The message is encoded once, and the same frame is appended to the message log, which numbers it, and sent to
+     * every recipient. A message that checkMessage would reject is dropped, since anything in the log is indexed and
+     * replayed from then on.
+     * @param message
+     * @param sender
+     */
+    public static void route(ChatMessage message, Connection sender) {
+        route(message, sender, ServerMetrics.receiveTime());
+    }
+
+    /**
+     * Routes a message as above, recording its delivery latency from when it was read off the sender's connection.
+     * @param message
+     * @param sender
+     * @param receivedNanos the time from ServerMetrics.receiveTime or ServerMetrics.awaitFrame
+     */
+    public static void route(ChatMessage message, Connection sender, long receivedNanos) {
+        String problem = problemWith(message);
+
+        if (problem != null) {
+            EventLog.warn("message-dropped", problem + " was dropped.");
+            return;
+        }
+
+        if (handleRoomCommand(message.message(), sender)) {
+            return;
+        }
+
+        if (message.room() != null && !rooms.isMember(message.room(), sender)) {
+            sender.deliver(serverMessage("You are not in #" + message.room() + ". Join it with :join " + message.room()));
+            return;
+        }
+
+        if (message.attachments() != null) {
+            for (var a : message.attachments()) {
+                requestUpload(a, sender);
+            }
+        }
+
+        // Room messages go to the room, not to named recipients
+        if (message.room() != null && message.recipientNames() != null) {
+            message = new ChatMessage(message.message(), message.senderName(), null, message.attachments(), message.room());
+        }
+
+        SharedFrame frame = SharedFrame.encode(message);
+
+        try {
+            append(frame);
+            ServerMetrics.messageRouted(frame, receivedNanos);
+
+            if (message.room() != null) {
+                sendToRoom(frame, message.room(), sender);
+            }
+            else if (message.recipientNames() == null) {
+                broadcast(frame, sender);
+            }
+            else {
+                sendMessage(frame, message.recipientNames());
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Appends a message to the message log, and sets its sequence number to its offset in the log. A message that
+     * cannot be logged is still delivered, without a sequence number.
+     * @param frame
+     */
+    private static void append(SharedFrame frame) {
+        if (log == null) {
+            return;
+        }
+
+        try {
+            log.append(frame.duplicate(), (buffer, offset) -> frame.setSequence(offset));
+        } catch (IOException ioe) {
+            EventLog.error("message-log-append-failed", "Error appending to the message log", ioe);
+        }
+    }
+
+    /**
+     * Handles ":join room", ":leave room" and ":rooms".
+     * @param text
+     * @param sender
+     * @return false if the text is not a room command
+     */
+    private static boolean handleRoomCommand(String text, Connection sender) {
+        if (text == null || !text.startsWith(":")) {
+            return false;
+        }
+
+        String[] command = text.strip().split("\\s+", 2);
+        String room = command.length > 1 ? command[1] : "";
+
+        if (room.startsWith("#")) {
+            room = room.substring(1);
+        }
+
+        switch (command[0].toLowerCase()) {
+            case ":join" -> {
+                if (!ChatMessageParser.isName(room)) {
+                    sender.deliver(serverMessage("Room names may only contain letters, digits and underscores."));
+                }
+                else if (rooms.join(room, sender)) {
+                    // The members are told first, so that nobody who joins after the reply hears about it
+                    roomNotice(room, sender.getUsername() + " has joined #" + room + ".", sender);
+                    sender.deliver(serverMessage("You joined #" + room + ", which has " + rooms.size(room) + " members."));
+                    Cluster.roomChanged(room);
+                }
+                else {
+                    sender.deliver(serverMessage("You are already in #" + room + "."));
+                }
+            }
+            case ":leave" -> {
+                if (rooms.leave(room, sender)) {
+                    roomNotice(room, sender.getUsername() + " has left #" + room + ".", sender);
+                    sender.deliver(serverMessage("You left #" + room + "."));
+                    Cluster.roomChanged(room);
+                }
+                else {
+                    sender.deliver(serverMessage("You are not in #" + room + "."));
+                }
+            }
+            case ":rooms" -> {
+                var joined = rooms.roomsOf(sender).stream()
+                                                  .sorted()
+                                                  .map(r -> "#" + r + " (" + rooms.size(r) + ")")
+                                                  .collect(Collectors.joining(", "));
+
+                sender.deliver(serverMessage(joined.isEmpty() ? "You are not in any rooms." : "Your rooms: " + joined));
+            }
+            default -> {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends a message to every member of its room except the sender, in time proportional to the room's size.
+     * @param frame the encoded message
+     * @param room
+     * @param sender
+     */
+    private static void sendToRoom(SharedFrame frame, String room, Connection sender) {
+        int delivered = 0;
+
+        for (Connection member : rooms.members(room)) {
+            if (member != sender) {
+                member.deliver(frame.retain());
+                delivered++;
+            }
+        }
+
+        ServerMetrics.delivered(delivered);
+        Cluster.forwardToRoom(frame, room);
+    }
+
+    private static void roomNotice(String room, String notice, Connection excluded) {
+        // Joining and leaving the same room supersede each other
+        SharedFrame frame = SharedFrame.encodeNotice(serverMessage(notice), "#" + room + " " + excluded.getUsername());
+
+        try {
+            for (Connection member : rooms.members(room)) {
+                if (member != excluded) {
+                    member.deliver(frame.retain());
+                }
+            }
+
+            Cluster.forwardToRoom(frame, room);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private static void requestUpload(Attachment attachment, Connection sender) {
+        String hash = attachment.hash();
+
+        if (!AttachmentStore.isHash(hash) || store.contains(hash) || uploads.containsKey(hash)) {
+            return;
+        }
+
+        if (!store.fits(attachment.size())) {
+            EventLog.warn("attachment-too-large", sender.getUsername() + " sent attachment " + hash + " of "
+                    + attachment.size() + " bytes, which does not fit in the store.");
+            return;
+        }
+
+        AttachmentStore.Upload upload;
+
+        try {
+            upload = store.beginUpload(hash, attachment.size());
+        } catch (IOException ioe) {
+            EventLog.error("upload-start-failed", "Error starting an upload from " + sender.getUsername(), ioe);
+            return;
+        }
+
+        if (uploads.putIfAbsent(hash, new PendingUpload(sender, upload)) != null) {
+            // Someone else is already uploading the same file
+            upload.abandon();
+            return;
+        }
+
+        sender.deliver(SharedFrame.encode(new AttachmentRequest(hash)).essential());
+    }
+
+    /**
+     * Stores a chunk of an attachment the server asked a client to upload. Once the last chunk has arrived and the
+     * contents match the hash, the attachment is sent to anyone who asked for it in the meantime.
+     * @param chunk
+     * @param sender
+     */
+    public static void receiveChunk(AttachmentChunk chunk, Connection sender) {
+        var pending = uploads.get(chunk.hash());
+
+        // Ignore chunks for unknown attachments, or for attachments that someone else is uploading
+        if (pending == null || pending.sender() != sender) {
+            return;
+        }
+
+        try {
+            pending.upload().append(chunk);
+
+            if (!chunk.last()) {
+                return;
+            }
+
+            if (!pending.upload().finish()) {
+                abandonUpload(pending, "its contents do not match its hash");
+                return;
+            }
+        } catch (IOException ioe) {
+            EventLog.error("attachment-store-failed", "Error storing an attachment from " + sender.getUsername(), ioe);
+            abandonUpload(pending, "it could not be stored");
+            return;
+        }
+
+        List<Connection> waiting;
+
+        synchronized (waitingForUpload) {
+            uploads.remove(chunk.hash(), pending);
+            waiting = waitingForUpload.remove(chunk.hash());
+        }
+
+        if (waiting != null) {
+            for (Connection requester : waiting) {
+                sendAttachment(chunk.hash(), requester);
+            }
+        }
+    }
+
+    private static void abandonUpload(PendingUpload pending, String reason) {
+        String hash = pending.upload().hash();
+        EventLog.warn("attachment-discarded", "Discarded attachment " + hash + " from " + pending.sender().getUsername() + " because " + reason + ".");
+
+        synchronized (waitingForUpload) {
+            if (!uploads.remove(hash, pending)) {
+                return;
+            }
+
+            waitingForUpload.remove(hash);
+        }
+
+        pending.upload().abandon();
+    }
+
+    /**
+     * Sends a stored attachment to a client that asked for it, or waits for it if it is still being uploaded.
+     * Requests for attachments the store does not have are ignored.
+     * @param request
+     * @param requester
+     */
+    public static void requestAttachment(AttachmentRequest request, Connection requester) {
+        String hash = request.hash();
+
+        if (!AttachmentStore.isHash(hash)) {
+            return;
+        }
+
+        synchronized (waitingForUpload) {
+            if (uploads.containsKey(hash)) {
+                waitingForUpload.computeIfAbsent(hash, h -> new ArrayList<>()).add(requester);
+                return;
+            }
+        }
+
+        sendAttachment(hash, requester);
+    }
+
+    /**
+     * Sends a client a page of the history of a conversation it is part of, read from the message log in the
+     * background. The conversation is "#room" for a room the client is in, "@name" for the direct messages between
+     * the client and someone else, or null for everything the client could have received.
+     * The page is assembled from the logged frames as they are, without decoding them.
+     * @param request
+     * @param requester
+     */
+    public static void requestHistory(HistoryRequest request, Connection requester) {
+        if (history == null) {
+            return;
+        }
+
+        String username = requester.getUsername();
+        String conversation = request.conversation();
+        List<String> keys;
+
+        if (conversation == null) {
+            var everything = new ArrayList<String>();
+            everything.add(HistoryIndex.BROADCASTS);
+            everything.add(HistoryIndex.userKey(username));
+
+            for (String room : rooms.roomsOf(requester)) {
+                everything.add(HistoryIndex.roomKey(room));
+            }
+
+            keys = everything;
+        }
+        else if (conversation.startsWith("#")) {
+            String room = conversation.substring(1);
+
+            if (!rooms.isMember(room, requester)) {
+                requester.deliver(serverMessage("You are not in " + conversation + ". Join it with :join " + room));
+                return;
+            }
+
+            keys = List.of(HistoryIndex.roomKey(room));
+        }
+        else if (conversation.startsWith("@")) {
+            keys = List.of(HistoryIndex.directKey(username, conversation.substring(1)));
+        }
+        else {
+            return;
+        }
+
+        int limit = Math.max(1, Math.min(request.limit(), options.historyPageSize));
+
+        history.page(keys, request.before(), limit, page -> {
+            int framesLength = 0;
+
+            for (var entry : page) {
+                framesLength += entry.frame().length;
+            }
+
+            // Leave out the oldest messages if the page would be too large for the client to read. It asks for them
+            // with the next page.
+            int first = 0;
+
+            while (first < page.size() && ChatMessageCodec.historyPageHeaderSize(conversation, request.before(),
+                    page.size() - first, framesLength) + framesLength > ChatMessageCodec.MAX_PAYLOAD_LENGTH) {
+                framesLength -= page.get(first++).frame().length;
+            }
+
+            var entries = page.subList(first, page.size());
+            var encoded = ByteBuffer.allocate(ChatMessageCodec.historyPageHeaderSize(conversation, request.before(),
+                    entries.size(), framesLength) + framesLength);
+            ChatMessageCodec.encodeHistoryPageHeader(conversation, request.before(), entries.size(), framesLength, encoded);
+
+            for (var entry : entries) {
+                encoded.put(entry.frame());
+            }
+
+            requester.deliver(SharedFrame.wrap(encoded.array()).essential());
+        });
+    }
+
+    private static void sendAttachment(String hash, Connection requester) {
+        SharedFile file = null;
+
+        try {
+            file = store.open(hash);
+
+            if (file == null) {
+                EventLog.warn("attachment-missing", requester.getUsername() + " asked for attachment " + hash + ", which is not stored.");
+                return;
+            }
+
+            requester.deliver(new AttachmentStream(hash, file, file.channel().size()).nextChunk());
+        } catch (IOException ioe) {
+            EventLog.error("attachment-open-failed", "Error opening attachment " + hash, ioe);
+        } finally {
+            if (file != null) {
+                file.release();
+            }
+        }
+    }
+
+    /**
+     * Sends a message to every client except its sender. The message goes out as a broadcast frame without a
+     * recipient list, and the registry is iterated directly, so nothing proportional to the number of clients is
+     * allocated or sent to each of them.
+     * @param frame the encoded message
+     * @param sender
+     */
+    private static void broadcast(SharedFrame frame, Connection sender) {
+        int delivered = 0;
+
+        for (Connection connection : clients) {
+            if (connection != sender) {
+                connection.deliver(frame.retain());
+                delivered++;
+            }
+        }
+
+        ServerMetrics.delivered(delivered);
+        Cluster.forwardBroadcast(frame);
+    }
+
+    /**
+     * Sends an encoded message to a single recipient.
+     * @param frame
+     * @param recipientName
+     * @return false if the recipient is not connected to this node, or the name is not valid
+     */
+    private static boolean sendMessageToOne(SharedFrame frame, String recipientName) {
+        if (!isName(recipientName)) {
+            return false;
+        }
+
+        var recipient = clients.get(recipientName);
+
+        if (recipient == null) {
+            return false;
+        }
+
+        recipient.deliver(frame.retain());
+        ServerMetrics.delivered(1);
+        return true;
+    }
+
+    /**
+     * Sends a message to all the recipientNames specified by the client.
+     * The same frame is shared by every recipient, and recipients connected to other nodes are forwarded it.
+     * @param frame the encoded message
+     * @param recipientNames
+     */
+    private static void sendMessage(SharedFrame frame, List<String> recipientNames) {
+        List<String> elsewhere = null;
+
+        for (String recipient : recipientNames) {
+            if (!sendMessageToOne(frame, recipient) && Cluster.isRemoteUser(recipient)) {
+                if (elsewhere == null) {
+                    elsewhere = new ArrayList<>();
+                }
+
+                elsewhere.add(recipient);
+            }
+        }
+
+        if (elsewhere != null) {
+            Cluster.forwardDirect(frame, elsewhere);
+        }
+    }
+
+    /**
+     * Delivers a message another node forwarded to the clients on this node it is meant for. A chat message is
+     * appended to this node's log too, renumbered with this node's sequence, so that the clients here can be replayed
+     * it and page back to it like any other.
+     * @param forward
+     * @param receivedNanos the time the forward was read off the cluster link
+     */
+    static void deliverForwarded(ClusterCodec.ClusterFrame forward, long receivedNanos) {
+        boolean notice = (forward.flags() & ClusterCodec.NOTICE) != 0;
+        SharedFrame frame = SharedFrame.wrap(forward.clientFrame(), notice);
+
+        try {
+            if (!notice) {
+                append(frame);
+                ServerMetrics.messageRouted(frame, receivedNanos);
+            }
+
+            switch (forward.type()) {
+                case ClusterCodec.FORWARD_BROADCAST -> {
+                    int delivered = 0;
+
+                    for (Connection connection : clients) {
+                        connection.deliver(frame.retain());
+                        delivered++;
+                    }
+
+                    ServerMetrics.delivered(delivered);
+                }
+                case ClusterCodec.FORWARD_ROOM -> {
+                    int delivered = 0;
+
+                    for (Connection member : rooms.members(forward.names().get(0))) {
+                        member.deliver(frame.retain());
+                        delivered++;
+                    }
+
+                    ServerMetrics.delivered(delivered);
+                }
+                default -> {
+                    for (String recipient : forward.names()) {
+                        sendMessageToOne(frame, recipient);
+                    }
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Resolves a user logging in to another node while a client by the same name is logged in here, which two nodes
+     * can only both allow before hearing about each other's logins. The node whose name sorts first keeps its client.
+     * @param username
+     * @param node the other node
+     * @param theirs true if the other node keeps its client
+     */
+    static void remoteUserJoined(String username, String node, boolean theirs) {
+        var local = clients.get(username);
+
+        if (local != null && theirs) {
+            EventLog.warn("name-taken", "Disconnected " + username + " because a client by the same name logged in to node " + node + ".");
+            local.closeAllResources();
+        }
+    }
+
+    /**
+     * Broadcasts a message from the server to all clients except one.
+     * e.g. "Alice has entered the chat."
+     * @param message
+     * @param excluded the client the message is about
+     */
+    public static void broadcastServerMessage(String message, Connection excluded) {
+        // Entering and leaving the chat supersede each other
+        SharedFrame frame = SharedFrame.encodeNotice(serverMessage(message), excluded.getUsername());
+
+        int delivered = 0;
+
+        try {
+            for (Connection connection : clients) {
+                if (connection != excluded) {
+                    connection.deliver(frame.retain());
+                    delivered++;
+                }
+            }
+
+            Cluster.forwardBroadcast(frame);
+        } finally {
+            frame.release();
+        }
+
+        ServerMetrics.delivered(delivered);
+    }
+}
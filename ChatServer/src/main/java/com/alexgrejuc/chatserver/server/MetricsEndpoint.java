@@ -0,0 +1,52 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the server's metrics as plain text at http://localhost:PORT/metrics, for curl or a Prometheus scraper.
+ * It only listens on the loopback interface, and answers on a single thread of its own, away from the clients.
+ */
+public class MetricsEndpoint {
+    private final HttpServer server;
+
+    /**
+     * Starts serving the metrics.
+     * @param port
+     * @throws IOException if the port cannot be bound
+     */
+    public MetricsEndpoint(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "metrics-endpoint");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+
+        EventLog.info("metrics-endpoint-started", "Metrics are served at http://localhost:" + port + "/metrics");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = ServerMetrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    /**
+     * Stops serving the metrics.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,419 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.AttachmentChunk;
+import com.alexgrejuc.chatmessage.AttachmentRequest;
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageCodec;
+import com.alexgrejuc.chatmessage.Frame;
+import com.alexgrejuc.chatmessage.ChatMessageFrames;
+import com.alexgrejuc.chatmessage.FrameCompressor;
+import com.alexgrejuc.chatmessage.Handshake;
+import com.alexgrejuc.chatmessage.HistoryPage;
+import com.alexgrejuc.chatmessage.HistoryRequest;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client connection served by an event loop.
+ * Incoming bytes are accumulated in a per-connection read buffer until whole frames can be decoded, and outgoing
+ * frames wait in a per-connection write queue until the channel is writable.
+ * Frames are not written as soon as they are queued. Those queued by the loop's own connections are written once the
+ * loop has handled every ready channel, and those queued by other threads by a single task however many there are,
+ * so every frame waiting by then goes out in one gathering write. A client that negotiated compression is sent large
+ * frames compressed, with a Deflater that the loop reuses for all of them.
+ */
+public class NioConnection implements Connection, EventLoop.Handler {
+    private static final int INITIAL_READ_BUFFER_SIZE = 8 * 1024;
+
+    // The most frames written with one gathering write
+    private static final int MAX_BATCH_FRAMES = 64;
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final OutboundQueue writeQueue;
+    private final ServerOptions options;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+
+    // The frames being written, from batchStart to batchEnd, the length of each one's file region unless it is sent
+    // compressed, and how much of the first one's file region has been transferred. Only touched by the loop.
+    private final SharedFrame[] batchFrames = new SharedFrame[MAX_BATCH_FRAMES];
+    private final ByteBuffer[] batchWrites = new ByteBuffer[MAX_BATCH_FRAMES];
+    private final int[] batchRegions = new int[MAX_BATCH_FRAMES];
+    private int batchStart;
+    private int batchEnd;
+    private long regionOffset;
+
+    // Whether a write has already been arranged for frames queued by the loop, and by other threads
+    private boolean writeDeferred;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+    private SelectionKey key;
+    private boolean handshakeComplete;
+    private String clientUsername;
+
+    // Set by the handshake if the client supports compression, and only used by the loop
+    private FrameCompressor compressor;
+
+    public NioConnection(SocketChannel channel, EventLoop eventLoop, ServerOptions options) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.writeQueue = new OutboundQueue(options);
+        this.options = options;
+    }
+
+    /**
+     * Registers the channel for reads. Must be called on the connection's event loop.
+     * @throws IOException
+     */
+    public void open() throws IOException {
+        channel.configureBlocking(false);
+
+        // Frames are already batched into gathering writes, so Nagle's algorithm would only delay the last of a batch
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        key = eventLoop.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    @Override
+    public void handle(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                onReadable();
+            }
+
+            if (key.isValid() && key.isWritable()) {
+                flushWrites();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            handleError(e);
+        }
+    }
+
+    private void handleError(Exception e) {
+        if (!closed.get()) {
+            EventLog.error("client-io-failed", "Error communicating with " + (clientUsername == null ? "client" : clientUsername), e);
+            closeAllResources();
+        }
+    }
+
+    /**
+     * Reads whatever is available and handles every complete frame in the read buffer.
+     * @throws IOException
+     */
+    private void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+
+        if (read < 0) {
+            closeAllResources();
+            return;
+        }
+
+        long receivedNanos = ServerMetrics.receiveTime();
+        ServerMetrics.bytesReceived(read);
+
+        readBuffer.flip();
+
+        if (!handshakeComplete && !acceptHandshake()) {
+            readBuffer.compact();
+            return;
+        }
+
+        Frame frame;
+
+        while (!closed.get() && (frame = ChatMessageFrames.decode(readBuffer)) != null) {
+            ServerMetrics.frameReceived();
+            handleFrame(frame, receivedNanos);
+        }
+
+        // Make room for a frame that is larger than the buffer, and go back to a small buffer once a large frame has
+        // been handled, so that an idle connection holds no more than INITIAL_READ_BUFFER_SIZE
+        int frameSize = ChatMessageFrames.frameSize(readBuffer);
+        readBuffer.compact();
+
+        if (frameSize > readBuffer.capacity()) {
+            readBuffer = ByteBuffer.allocate(frameSize).put(readBuffer.flip());
+        }
+        else if (readBuffer.capacity() > INITIAL_READ_BUFFER_SIZE && frameSize <= INITIAL_READ_BUFFER_SIZE
+                && readBuffer.position() <= INITIAL_READ_BUFFER_SIZE) {
+            readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE).put(readBuffer.flip());
+        }
+    }
+
+    /**
+     * Answers the client's hello with the protocol version to use.
+     * @return true if the handshake is complete, false if the hello has not fully arrived yet
+     * @throws IOException if the client does not speak a supported version of the protocol
+     */
+    private boolean acceptHandshake() throws IOException {
+        int offeredVersion = Handshake.read(readBuffer);
+
+        if (offeredVersion < 0) {
+            return false;
+        }
+
+        int version = Handshake.negotiate(offeredVersion,
+                options.compression ? ChatMessageCodec.VERSION : ChatMessageCodec.COMPRESSION_VERSION - 1);
+        writeQueue.offer(SharedFrame.wrap(Handshake.hello(version)));
+        flushWrites();
+
+        if (version == Handshake.REJECTED) {
+            throw new IOException("Client offered unsupported protocol version " + offeredVersion);
+        }
+
+        if (version >= ChatMessageCodec.COMPRESSION_VERSION) {
+            compressor = new FrameCompressor(options.compressionLevel, options.compressionMinBytes);
+        }
+
+        handshakeComplete = true;
+        return true;
+    }
+
+    /**
+     * The first message from a client is its login, and any later ones are chat messages, attachment transfers or
+     * history requests. Frames other than messages are ignored until the client has logged in.
+     * @param frame
+     * @throws IOException if a chat message is malformed, or the frame is one only the server sends
+     */
+    private void handleFrame(Frame frame, long receivedNanos) throws IOException {
+        switch (frame) {
+            case AttachmentChunk chunk -> {
+                if (clientUsername != null) {
+                    MessageRouter.receiveChunk(chunk, this);
+                }
+            }
+            case AttachmentRequest request -> {
+                if (clientUsername != null) {
+                    MessageRouter.requestAttachment(request, this);
+                }
+            }
+            case HistoryRequest request -> {
+                if (clientUsername != null) {
+                    MessageRouter.requestHistory(request, this);
+                }
+            }
+            case HistoryPage page -> throw new StreamCorruptedException("Unexpected history page from a client");
+            case ChatMessage message -> handleMessage(message, receivedNanos);
+        }
+    }
+
+    private void handleMessage(ChatMessage message, long receivedNanos) throws IOException {
+        if (clientUsername == null) {
+            // A client sends their senderName when first logging in
+            clientUsername = message.senderName();
+
+            if (!MessageRouter.register(this, message)) {
+                writeQueue.offer(SharedFrame.encode(MessageRouter.loginRejectedMessage(clientUsername)));
+                write();
+                closeAllResources();
+            }
+        }
+        else {
+            MessageRouter.checkMessage(message);
+
+            if (!message.message().equalsIgnoreCase(":quit")) {
+                MessageRouter.route(message, this, receivedNanos);
+            }
+            else {
+                closeAllResources();
+            }
+        }
+    }
+
+    @Override
+    public String getUsername() {
+        return clientUsername;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return writeQueue;
+    }
+
+    /**
+     * Queues a frame for this client. It is written by the connection's event loop, along with any others queued
+     * before the write.
+     * @param frame
+     */
+    @Override
+    public void deliver(SharedFrame frame) {
+        if (closed.get()) {
+            frame.release();
+            return;
+        }
+
+        if (!writeQueue.offer(frame)) {
+            EventLog.warn("client-too-slow", clientUsername + " is not keeping up with its messages and will be disconnected.");
+            closeAllResources();
+            return;
+        }
+
+        if (eventLoop.inEventLoop()) {
+            if (!writeDeferred) {
+                writeDeferred = true;
+                eventLoop.executeAfterHandlers(this::flushDeferred);
+            }
+        }
+        else if (writeScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this::flushScheduled);
+        }
+    }
+
+    private void flushDeferred() {
+        writeDeferred = false;
+        write();
+    }
+
+    private void flushScheduled() {
+        // Cleared first, so that a frame queued during the write schedules another
+        writeScheduled.set(false);
+        write();
+    }
+
+    private void write() {
+        try {
+            if (key.isValid()) {
+                flushWrites();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            // Closing announces the departure to everyone else, which writes to them in turn. Deferring it keeps a
+            // mass disconnect from recursing once per connection.
+            eventLoop.execute(() -> handleError(e));
+        }
+    }
+
+    /**
+     * Writes queued frames until the queue is empty or the socket buffer is full, in which case the loop is asked to
+     * report when the channel becomes writable again. Waiting frames are taken a batch at a time and written with one
+     * gathering write, up to and including the first with a file region, whose data is then transferred straight
+     * from the file unless the frame is sent compressed. Each frame is released once it has been written completely,
+     * and a frame that continues with another queues the next one.
+     * @throws IOException
+     */
+    private void flushWrites() throws IOException {
+        while (true) {
+            if (batchStart == batchEnd && !takeBatch()) {
+                break;
+            }
+
+            int gatherEnd = batchStart;
+
+            while (gatherEnd < batchEnd - 1 && batchRegions[gatherEnd] == 0) {
+                gatherEnd++;
+            }
+
+            channel.write(batchWrites, batchStart, gatherEnd + 1 - batchStart);
+
+            while (batchStart <= gatherEnd && !batchWrites[batchStart].hasRemaining()) {
+                SharedFrame frame = batchFrames[batchStart];
+
+                // A stored chunk's data follows its header straight from the stored file
+                while (regionOffset < batchRegions[batchStart]) {
+                    long transferred = frame.transferRegion(regionOffset, channel);
+
+                    if (transferred == 0) {
+                        break;
+                    }
+
+                    regionOffset += transferred;
+                }
+
+                if (regionOffset < batchRegions[batchStart]) {
+                    break;
+                }
+
+                // The next chunk of an attachment stream goes to the back of the queue, after any messages
+                ServerMetrics.frameSent(frame, batchWrites[batchStart].limit() + batchRegions[batchStart]);
+                SharedFrame next = frame.next();
+                releaseFirstInBatch();
+
+                if (next != null && !writeQueue.offer(next)) {
+                    EventLog.warn("client-too-slow", clientUsername + " is not keeping up with its messages and will be disconnected.");
+                    closeAllResources();
+                    return;
+                }
+            }
+
+            if (batchStart <= gatherEnd) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * @return false if there was nothing to write
+     * @throws IOException if a stored attachment could not be read to compress it
+     */
+    private boolean takeBatch() throws IOException {
+        batchStart = 0;
+        batchEnd = writeQueue.drainTo(batchFrames, 0);
+
+        for (int i = 0; i < batchEnd; i++) {
+            ByteBuffer compressed = compressor == null ? null : batchFrames[i].compressed(compressor);
+            batchWrites[i] = compressed != null ? compressed : batchFrames[i].duplicate();
+            batchRegions[i] = compressed != null ? 0 : batchFrames[i].regionLength();
+        }
+
+        return batchEnd > 0;
+    }
+
+    private void releaseFirstInBatch() {
+        batchFrames[batchStart].release();
+        batchFrames[batchStart] = null;
+        batchWrites[batchStart] = null;
+        batchRegions[batchStart] = 0;
+        batchStart++;
+        regionOffset = 0;
+    }
+
+    private void releaseBatch() {
+        while (batchStart < batchEnd) {
+            releaseFirstInBatch();
+        }
+
+        if (compressor != null) {
+            compressor.close();
+            compressor = null;
+        }
+    }
+
+    /**
+     * Removes this client from the router and closes its channel.
+     */
+    @Override
+    public void closeAllResources() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException ioe) {
+            EventLog.error("client-close-failed", "Error closing resources", ioe);
+        }
+
+        writeQueue.close();
+
+        // The frames being written are released on the loop so that a write in progress never sees a recycled buffer
+        if (eventLoop.inEventLoop()) {
+            releaseBatch();
+        }
+        else {
+            eventLoop.execute(this::releaseBatch);
+        }
+
+        MessageRouter.unregister(this);
+    }
+}
@@ -0,0 +1,112 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A chat server that serves all clients from a small, fixed pool of event loops instead of a thread per client.
+ * The first loop accepts connections and hands them out to the loops round-robin.
+ */
+public class NioServer implements EventLoop.Handler {
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] eventLoops;
+    private final ServerOptions options;
+    private int nextEventLoop;
+
+    public NioServer(ServerSocketChannel serverChannel, ServerOptions options) throws IOException {
+        this.serverChannel = serverChannel;
+        this.options = options;
+        MessageRouter.configure(options);
+        this.eventLoops = new EventLoop[options.eventLoops];
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+        }
+    }
+
+    /**
+     * Starts the event loops and blocks until they stop.
+     */
+    public void startServer() {
+        EventLog.info("server-started", "The server is running on port " + serverChannel.socket().getLocalPort()
+                + " with " + eventLoops.length + " event loops");
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i].start("event-loop-" + i);
+        }
+
+        eventLoops[0].execute(() -> {
+            try {
+                serverChannel.configureBlocking(false);
+                eventLoops[0].register(serverChannel, SelectionKey.OP_ACCEPT, this);
+            } catch (IOException ioe) {
+                EventLog.error("listen-failed", "Error listening for clients", ioe);
+                stopServer();
+            }
+        });
+
+        try {
+            for (EventLoop eventLoop : eventLoops) {
+                eventLoop.join();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            stopServer();
+        }
+    }
+
+    /**
+     * Accepts every pending client and assigns it to an event loop.
+     * @param key the server channel's key
+     */
+    @Override
+    public void handle(SelectionKey key) {
+        try {
+            SocketChannel channel;
+
+            while ((channel = serverChannel.accept()) != null) {
+                ServerMetrics.connectionAccepted();
+                EventLoop eventLoop = eventLoops[nextEventLoop];
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+
+                var connection = new NioConnection(channel, eventLoop, options);
+                eventLoop.execute(() -> {
+                    try {
+                        connection.open();
+                    } catch (IOException ioe) {
+                        EventLog.error("client-register-failed", "Error registering new client", ioe);
+                        connection.closeAllResources();
+                    }
+                });
+            }
+        } catch (IOException ioe) {
+            EventLog.error("accept-failed", "Error accepting new client", ioe);
+            stopServer();
+        }
+    }
+
+    /**
+     * Stops the server if accepting clients failed unexpectedly.
+     */
+    @Override
+    public void closeAllResources() {
+        stopServer();
+    }
+
+    /**
+     * Stops the event loops and closes the server channel.
+     */
+    public void stopServer() {
+        try {
+            serverChannel.close();
+        } catch (IOException ioe) {
+            EventLog.error("server-stop-failed", "Error stopping server", ioe);
+        }
+
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.stop();
+        }
+    }
+}
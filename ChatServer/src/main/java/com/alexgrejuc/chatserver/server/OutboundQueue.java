@@ -0,0 +1,324 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The frames waiting to be written to one client.
+ * Senders only ever enqueue, so a slow client cannot stall the clients sending to it. The queue is bounded by both
+ * message count and bytes, and what happens when a frame does not fit is decided by its overflow policy.
+ * A single frame is always accepted into an empty queue, however large it is. Essential frames, such as logged
+ * messages and attachment chunks, are never dropped: if only they could make room, the client is disconnected
+ * instead, and is replayed what it missed when it reconnects.
+ */
+public class OutboundQueue {
+    /**
+     * What to do when a frame does not fit in the queue.
+     */
+    public enum OverflowPolicy {
+        // Drop the oldest queued frames that are not essential until the new one fits
+        DROP_OLDEST,
+        // Disconnect the client, since it is not keeping up
+        DISCONNECT,
+        // Replace a queued server notice with a new one about the same subject, such as the same user entering and then
+        // leaving the chat. Otherwise drop notices before chat messages: first the new notice, or for a new chat
+        // message the oldest queued notice, so clients can miss presence changes. Only then drop as DROP_OLDEST does.
+        COALESCE_NOTICES;
+
+        public static OverflowPolicy fromFlag(String flag) {
+            return valueOf(flag.toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private static final LongAdder totalDropped = new LongAdder();
+    private static final LongAdder totalOverflowDisconnects = new LongAdder();
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<SharedFrame> frames = new ArrayDeque<>();
+    private long bytes;
+    private long dropped;
+    private boolean closed;
+
+    public OutboundQueue(int maxMessages, long maxBytes, OverflowPolicy policy) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    public OutboundQueue(ServerOptions options) {
+        this(options.maxQueuedMessages, options.maxQueuedBytes, options.overflowPolicy);
+    }
+
+    /**
+     * Enqueues a frame, applying the overflow policy if it does not fit. The queue takes over the caller's
+     * reference, and releases it if the frame is dropped.
+     * @param frame
+     * @return false if the client should be disconnected for not keeping up
+     */
+    public boolean offer(SharedFrame frame) {
+        lock.lock();
+
+        try {
+            if (closed) {
+                frame.release();
+                return true;
+            }
+
+            while (!frames.isEmpty() && (frames.size() >= maxMessages || bytes + frame.size() > maxBytes)) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    frame.release();
+                    totalOverflowDisconnects.increment();
+                    return false;
+                }
+
+                if (policy == OverflowPolicy.COALESCE_NOTICES) {
+                    if (frame.subject() != null && removeNotice(frame.subject())) {
+                        continue;
+                    }
+
+                    if (frame.isNotice()) {
+                        drop(frame);
+                        return true;
+                    }
+
+                    if (removeNotice(null)) {
+                        continue;
+                    }
+                }
+
+                if (removeOldestDroppable()) {
+                    continue;
+                }
+
+                // Everything queued is essential, so only a frame that is not can be dropped instead
+                if (frame.isEssential()) {
+                    frame.release();
+                    totalOverflowDisconnects.increment();
+                    return false;
+                }
+
+                drop(frame);
+                return true;
+            }
+
+            frames.add(frame);
+            bytes += frame.size();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next frame, or null if the queue is empty
+     */
+    public SharedFrame poll() {
+        lock.lock();
+
+        try {
+            return frames.isEmpty() ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes as many waiting frames as fit in a batch, under a single acquisition of the lock.
+     * @param batch the array the frames are stored in, in order
+     * @param from the index of the first free slot in the batch
+     * @return the index after the last frame stored
+     */
+    public int drainTo(SharedFrame[] batch, int from) {
+        lock.lock();
+
+        try {
+            int end = from;
+
+            while (end < batch.length && !frames.isEmpty()) {
+                batch[end++] = removeFirst();
+            }
+
+            return end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to a timeout for the next frame.
+     * @param timeout
+     * @param unit
+     * @return the next frame, or null if none arrived in time or the queue has been closed
+     * @throws InterruptedException
+     */
+    public SharedFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+
+        try {
+            while (frames.isEmpty() && !closed && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+
+            return closed || frames.isEmpty() ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next frame.
+     * @return the next frame, or null once the queue has been closed
+     * @throws InterruptedException
+     */
+    public SharedFrame take() throws InterruptedException {
+        lock.lock();
+
+        try {
+            while (frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+
+            return closed ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases every queued frame and rejects future ones. Wakes a writer waiting in take().
+     */
+    public void close() {
+        lock.lock();
+
+        try {
+            closed = true;
+
+            while (!frames.isEmpty()) {
+                removeFirst().release();
+            }
+
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of frames waiting to be written
+     */
+    public int size() {
+        lock.lock();
+
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes waiting to be written
+     */
+    public long bytes() {
+        lock.lock();
+
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of frames this queue has dropped because of overflow
+     */
+    public long dropped() {
+        lock.lock();
+
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of frames dropped by all queues
+     */
+    public static long totalDropped() {
+        return totalDropped.sum();
+    }
+
+    /**
+     * @return the number of clients disconnected by all queues for not keeping up
+     */
+    public static long totalOverflowDisconnects() {
+        return totalOverflowDisconnects.sum();
+    }
+
+    private SharedFrame removeFirst() {
+        SharedFrame frame = frames.removeFirst();
+        bytes -= frame.size();
+        return frame;
+    }
+
+    /**
+     * Drops the oldest queued notice, or the one about a subject.
+     * @param subject the subject of the notice to drop, or null for any notice
+     * @return false if there was no such notice
+     */
+    private boolean removeNotice(String subject) {
+        Iterator<SharedFrame> iterator = frames.iterator();
+
+        while (iterator.hasNext()) {
+            SharedFrame frame = iterator.next();
+
+            if (frame.isNotice() && (subject == null || subject.equals(frame.subject()))) {
+                iterator.remove();
+                bytes -= frame.size();
+                drop(frame);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Drops the oldest queued frame that is not essential.
+     * @return false if every queued frame is essential
+     */
+    private boolean removeOldestDroppable() {
+        Iterator<SharedFrame> iterator = frames.iterator();
+
+        while (iterator.hasNext()) {
+            SharedFrame frame = iterator.next();
+
+            if (!frame.isEssential()) {
+                iterator.remove();
+                bytes -= frame.size();
+                drop(frame);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void drop(SharedFrame frame) {
+        frame.release();
+        dropped++;
+        totalDropped.increment();
+    }
+}
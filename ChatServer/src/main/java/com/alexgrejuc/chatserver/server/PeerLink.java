@@ -0,0 +1,210 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The link this node sends to one peer on. It dials the peer, exchanges hellos, and then writes whatever the cluster
+ * queues for the peer, in batches of frames with a single flush each. The peer never sends anything after its hello,
+ * so reading the link only tells when it has closed. A link that closes or cannot be opened is dialed again, backing
+ * off up to a few seconds between attempts.
+ */
+class PeerLink {
+    private static final int CONNECT_TIMEOUT_MILLIS = 2_000;
+    private static final long MIN_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 5_000;
+    private static final int MAX_BATCH_FRAMES = 64;
+
+    // A link carries every message for its peer, so it is only disconnected if it falls this far behind
+    private static final int MAX_QUEUED_FRAMES = 64 * 1024;
+    private static final long MAX_QUEUED_BYTES = 256L * 1024 * 1024;
+
+    private final String host;
+    private final int port;
+    private final String nodeName;
+
+    private volatile Socket socket;
+    private volatile OutboundQueue queue;
+
+    /**
+     * @param host the peer's host
+     * @param port the peer's cluster port
+     * @param nodeName the name of this node
+     */
+    PeerLink(String host, int port, String nodeName) {
+        this.host = host;
+        this.port = port;
+        this.nodeName = nodeName;
+    }
+
+    /**
+     * Keeps the link open for as long as the server runs.
+     */
+    void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+
+        while (true) {
+            try {
+                if (connect()) {
+                    backoff = MIN_BACKOFF_MILLIS;
+                }
+            } catch (IOException ioe) {
+                // The peer may simply not have started yet, so failed attempts are not errors
+            }
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        }
+    }
+
+    /**
+     * Opens the link and writes to it until it closes.
+     * @return true if the handshake succeeded
+     * @throws IOException if the link could not be opened
+     */
+    private boolean connect() throws IOException {
+        var connection = new Socket();
+        String peer;
+
+        try {
+            connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            connection.setTcpNoDelay(true);
+            connection.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.getOutputStream().write(ClusterCodec.hello(nodeName));
+
+            var input = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            var hello = ClusterCodec.read(input);
+
+            if (hello.type() != ClusterCodec.HELLO || hello.flags() != ClusterCodec.VERSION || hello.names().size() != 1) {
+                throw new IOException("Unknown handshake from " + host + ":" + port);
+            }
+
+            peer = hello.names().get(0);
+
+            if (peer.equals(nodeName)) {
+                throw new IOException("The peer at " + host + ":" + port + " has this node's name");
+            }
+
+            connection.setSoTimeout(0);
+        } catch (IOException ioe) {
+            connection.close();
+            throw ioe;
+        }
+
+        socket = connection;
+        queue = new OutboundQueue(MAX_QUEUED_FRAMES, MAX_QUEUED_BYTES, OutboundQueue.OverflowPolicy.DISCONNECT);
+        Thread.ofVirtual().name("cluster-link-watcher-" + peer).start(() -> watch(connection));
+        Cluster.linkUp(peer, this);
+
+        try {
+            write(new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), 64 * 1024)));
+        } catch (IOException ioe) {
+            EventLog.warn("cluster-link-failed", "Error writing to node " + peer + ": " + ioe.getMessage());
+        } finally {
+            Cluster.linkDown(peer, this);
+            close();
+        }
+
+        return true;
+    }
+
+    private void write(DataOutputStream output) throws IOException {
+        var batch = new SharedFrame[MAX_BATCH_FRAMES];
+
+        try {
+            while (true) {
+                SharedFrame first = queue.take();
+
+                if (first == null) {
+                    return;
+                }
+
+                batch[0] = first;
+                int count = queue.drainTo(batch, 1);
+
+                try {
+                    for (int i = 0; i < count; i++) {
+                        batch[i].writeTo(output, null);
+                    }
+
+                    output.flush();
+                } finally {
+                    for (int i = 0; i < count; i++) {
+                        batch[i].release();
+                        batch[i] = null;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for the peer to close the link, and closes this end when it does.
+     * @param connection
+     */
+    private void watch(Socket connection) {
+        try {
+            while (connection.getInputStream().read() >= 0) {
+                // The peer sends nothing after its hello
+            }
+        } catch (IOException ioe) {
+            // Closed at either end
+        }
+
+        if (socket == connection) {
+            close();
+        }
+    }
+
+    /**
+     * Queues a frame for the peer. A link that has fallen too far behind is closed, and dialed again.
+     * @param frame the caller's reference to the frame, which the link takes over
+     */
+    void send(SharedFrame frame) {
+        var current = queue;
+
+        if (current == null) {
+            frame.release();
+            return;
+        }
+
+        if (!current.offer(frame)) {
+            EventLog.warn("cluster-link-behind", "Closed the link to " + host + ":" + port + " because it fell behind.");
+            close();
+        }
+    }
+
+    /**
+     * Closes the link, releasing the frames still queued for it.
+     */
+    void close() {
+        var current = queue;
+
+        if (current != null) {
+            current.close();
+        }
+
+        try {
+            var connection = socket;
+
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (IOException ioe) {
+            // Already closed
+        }
+    }
+}
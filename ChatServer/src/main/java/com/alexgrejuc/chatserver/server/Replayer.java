@@ -0,0 +1,157 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageFrames;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a reconnecting client the messages it missed, from the message log.
+ * A client logs in with the sequence number of the last message it received. It is sent the broadcasts and direct
+ * messages to it that were logged after that, in order, up to the end of the log when it logged in. Anything logged
+ * later reaches it as usual. Room messages are not replayed, since room membership ends with the connection.
+ * The replay is bracketed by two markers: server messages without text whose sequence is the end of the replay.
+ * Until the second marker, a client only acknowledges the replayed messages, which are the ones before the end, so
+ * that a replay that is cut short is resumed at the next login rather than skipped.
+ * Every replay is served a page of the log at a time by a single thread, at most one page per client per interval,
+ * and waits while the client has a page's worth of frames still queued. A mass reconnect therefore costs a bounded
+ * amount of disk reads and leaves the clients' queues room for live messages.
+ */
+public class Replayer {
+    private final MessageLog log;
+    private final int pageSize;
+    private final long intervalMillis;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "message-replay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param log
+     * @param pageSize the number of logged messages read for a client at a time
+     * @param intervalMillis the time between a client's pages
+     */
+    public Replayer(MessageLog log, int pageSize, long intervalMillis) {
+        this.log = log;
+        this.pageSize = pageSize;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Starts replaying the messages a client missed. Must be called after the client is registered, so that every
+     * message is either replayed or delivered live.
+     * @param connection
+     * @param lastSequence the sequence of the last message the client received
+     */
+    public void start(Connection connection, long lastSequence) {
+        long end = log.nextOffset();
+        connection.deliver(SharedFrame.encode(marker(end)).essential());
+        executor.execute(new Replay(connection, Math.max(lastSequence + 1, log.firstOffset()), end));
+    }
+
+    /**
+     * @param end
+     * @return a replay marker, a server message with no text
+     */
+    private static ChatMessage marker(long end) {
+        return new ChatMessage(null, "SERVER", new ArrayList<>(), new ArrayList<>(), null, end);
+    }
+
+    /**
+     * @param frame an encoded message
+     * @param username
+     * @return true if the message would have been sent to the client: a broadcast or a direct message to it, that it
+     * did not send itself
+     */
+    static boolean isAddressedTo(byte[] frame, String username) {
+        ChatMessage message;
+
+        try {
+            message = (ChatMessage) ChatMessageFrames.decode(ByteBuffer.wrap(frame));
+        } catch (IOException | ClassCastException e) {
+            return false;
+        }
+
+        if (message.room() != null || username.equals(message.senderName())) {
+            return false;
+        }
+
+        return message.recipientNames() == null || message.recipientNames().contains(username);
+    }
+
+    /**
+     * One client's replay, which reschedules itself once per page.
+     */
+    private class Replay implements Runnable {
+        private final Connection connection;
+        private final long end;
+        private long next;
+        private int replayed;
+
+        Replay(Connection connection, long next, long end) {
+            this.connection = connection;
+            this.next = next;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            // Stop if the client has left
+            if (MessageRouter.clients.get(connection.getUsername()) != connection) {
+                return;
+            }
+
+            try {
+                if (next < end && connection.getOutboundQueue().size() < pageSize) {
+                    replayPage();
+                }
+
+                if (next < end) {
+                    executor.schedule(this, intervalMillis, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            } catch (RuntimeException e) {
+                // Without the closing marker, the client asks for the rest of the replay when it next logs in
+                EventLog.error("replay-failed", "Error replaying messages to " + connection.getUsername(), e);
+                return;
+            }
+
+            connection.deliver(SharedFrame.encode(marker(end)).essential());
+
+            if (replayed > 0) {
+                EventLog.info("replayed", "Replayed " + replayed + " missed messages to " + connection.getUsername() + ".");
+            }
+        }
+
+        private void replayPage() {
+            var entries = log.read(next, (int) Math.min(pageSize, end - next));
+
+            // Nothing left, which happens if retention deleted the rest of the replay
+            if (entries.isEmpty()) {
+                next = end;
+                return;
+            }
+
+            for (var entry : entries) {
+                if (entry.offset() >= end) {
+                    next = end;
+                    break;
+                }
+
+                if (isAddressedTo(entry.frame(), connection.getUsername())) {
+                    connection.deliver(SharedFrame.wrap(entry.frame()).essential());
+                    replayed++;
+                }
+
+                next = entry.offset() + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue that any number of threads may offer to without locks and a single thread polls from.
+ * Each slot has a sequence number that says whose turn it is: a producer claims the next position with a
+ * compare-and-set, stores its item and then advances the slot's sequence, which is what publishes the item to the
+ * consumer. Offering to a full buffer fails immediately rather than waiting for space.
+ * @param <T>
+ */
+class RingBuffer<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+
+    // Only read and written by the consumer
+    private long head;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        mask = size - 1;
+
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @param item
+     * @return false if the buffer is full, in which case the item was not added
+     */
+    boolean offer(T item) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long sequence = sequences.get(index);
+
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, item);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            }
+            else if (sequence < position) {
+                // The consumer has not yet taken the item from a lap ago
+                return false;
+            }
+
+            // Otherwise another producer claimed the position first
+        }
+    }
+
+    /**
+     * Must only be called by the consumer thread.
+     * @return the oldest item, or null if the buffer is empty
+     */
+    T poll() {
+        int index = (int) (head & mask);
+
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+
+        T item = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + slots.length());
+        head++;
+        return item;
+    }
+
+    /**
+     * @return the number of items the buffer can hold
+     */
+    int capacity() {
+        return slots.length();
+    }
+}
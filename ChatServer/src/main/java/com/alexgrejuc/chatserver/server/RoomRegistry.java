@@ -0,0 +1,111 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The members of every room, indexed both ways: by room for routing a room's messages, and by connection for
+ * listing a client's rooms and removing it from all of them when it leaves.
+ * A room exists while it has members. Both indexes are concurrent, so they can be read while clients join and leave.
+ */
+public class RoomRegistry {
+    private final ConcurrentHashMap<String, Set<Connection>> members = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Connection, Set<String>> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a client to a room, creating the room if it does not exist.
+     * @param room
+     * @param connection
+     * @return false if the client was already a member
+     */
+    public boolean join(String room, Connection connection) {
+        boolean[] added = new boolean[1];
+
+        // Updating the member set inside compute keeps it from being added to while an empty room is removed
+        members.compute(room, (name, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+
+            added[0] = set.add(connection);
+            return set;
+        });
+
+        rooms.computeIfAbsent(connection, c -> ConcurrentHashMap.newKeySet()).add(room);
+        return added[0];
+    }
+
+    /**
+     * Removes a client from a room, and removes the room once it is empty.
+     * @param room
+     * @param connection
+     * @return false if the client was not a member
+     */
+    public boolean leave(String room, Connection connection) {
+        boolean[] removed = new boolean[1];
+
+        members.computeIfPresent(room, (name, set) -> {
+            removed[0] = set.remove(connection);
+            return set.isEmpty() ? null : set;
+        });
+
+        rooms.computeIfPresent(connection, (c, set) -> {
+            set.remove(room);
+            return set.isEmpty() ? null : set;
+        });
+
+        return removed[0];
+    }
+
+    /**
+     * Removes a client from every room it is in.
+     * @param connection
+     */
+    public void leaveAll(Connection connection) {
+        var joined = rooms.remove(connection);
+
+        if (joined != null) {
+            for (String room : joined) {
+                leave(room, connection);
+            }
+        }
+    }
+
+    /**
+     * @param room
+     * @return a live, read-only view of the room's members, which is empty if the room does not exist
+     */
+    public Set<Connection> members(String room) {
+        var set = members.get(room);
+        return set == null ? Set.of() : Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * @param connection
+     * @return a live, read-only view of the rooms the client is in
+     */
+    public Set<String> roomsOf(Connection connection) {
+        var set = rooms.get(connection);
+        return set == null ? Set.of() : Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * @param room
+     * @param connection
+     * @return true if the client is a member of the room
+     */
+    public boolean isMember(String room, Connection connection) {
+        var set = members.get(room);
+        return set != null && set.contains(connection);
+    }
+
+    /**
+     * @param room
+     * @return the number of members in the room
+     */
+    public int size(String room) {
+        var set = members.get(room);
+        return set == null ? 0 : set.size();
+    }
+}
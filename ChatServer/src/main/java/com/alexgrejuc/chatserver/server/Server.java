@@ -3,34 +3,54 @@ package com.alexgrejuc.chatserver.server;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * The multithreaded server component of a chat application.
  */
 public class Server {
     private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final ServerOptions options;
 
+    /**
+     * Creates a server that handles each client on its own platform thread.
+     * @param serverSocket
+     */
     public Server(ServerSocket serverSocket) {
+        this(serverSocket, Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory()), new ServerOptions());
+    }
+
+    /**
+     * Creates a server that runs each client's handler on the given executor.
+     * @param serverSocket
+     * @param executor e.g. a virtual thread per task executor for very large numbers of mostly idle clients
+     * @param options
+     */
+    public Server(ServerSocket serverSocket, ExecutorService executor, ServerOptions options) {
         this.serverSocket = serverSocket;
+        this.executor = executor;
+        this.options = options;
+        MessageRouter.configure(options);
     }
 
     /**
      * Listens for client connections and disconnections on the configured port.
-     * Handles each client in its own client handler thread.
+     * Handles each client in its own client handler task, including the login, so a slow client cannot hold up
+     * the accept loop.
      */
     public void startServer() {
-        System.out.println("The server is running on port " + serverSocket.getLocalPort());
+        EventLog.info("server-started", "The server is running on port " + serverSocket.getLocalPort());
 
         try {
             while (!serverSocket.isClosed()) {
                 Socket socket = serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(socket);
-                Thread thread = new Thread(clientHandler);
-                thread.start();
+                ServerMetrics.connectionAccepted();
+                executor.execute(() -> new ClientHandler(socket, options).run());
             }
         } catch (IOException ioe) {
-            System.out.println("Error accepting new client: ");
-            ioe.printStackTrace();
+            EventLog.error("accept-failed", "Error accepting new client", ioe);
             stopServer();
         }
     }
@@ -44,8 +64,9 @@ public class Server {
                 serverSocket.close();
             }
         } catch (IOException ioe) {
-            System.err.println("Error stopping server: ");
-            ioe.printStackTrace();
+            EventLog.error("server-stop-failed", "Error stopping server", ioe);
         }
+
+        executor.shutdown();
     }
 }
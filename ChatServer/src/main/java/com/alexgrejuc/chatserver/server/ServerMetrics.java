@@ -0,0 +1,481 @@
+package com.alexgrejuc.chatserver.server;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies for the whole server, shared by both server modes.
+ * Every counter is a LongAdder, which threads update without contending with each other, and the hot paths add to
+ * them once per frame or once per fan-out rather than once per byte or per recipient. The delivery latency of a chat
+ * message is the time from the server reading it off a connection, before it is decoded, to it being written to each
+ * recipient's socket. Gauges such as the connected clients and the queued frames are only computed when the metrics
+ * are read.
+ * The metrics are read through JMX, as the ServerMetricsMXBean, and as plain text by the MetricsEndpoint.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    public static final String OBJECT_NAME = "com.alexgrejuc.chatserver:type=ServerMetrics";
+
+    // How many of the clients with the longest queues are listed individually
+    private static final int LISTED_BACKLOGS = 10;
+
+    // Set before the server starts, and read without synchronization on the hot paths
+    private static boolean enabled = true;
+
+    private static final LongAdder connectionsAccepted = new LongAdder();
+    private static final LongAdder framesReceived = new LongAdder();
+    private static final LongAdder bytesReceived = new LongAdder();
+    private static final LongAdder messagesRouted = new LongAdder();
+    private static final LongAdder deliveries = new LongAdder();
+    private static final LongAdder framesSent = new LongAdder();
+    private static final LongAdder bytesSent = new LongAdder();
+    private static final LatencyHistogram deliveryLatency = new LatencyHistogram();
+
+    // The time spent compressing frames and the bytes that went in and came out, counted once per frame however many
+    // clients it goes to, and the bytes not sent because of it, counted for every client
+    private static final LongAdder compressionNanos = new LongAdder();
+    private static final LongAdder compressionInputBytes = new LongAdder();
+    private static final LongAdder compressionOutputBytes = new LongAdder();
+    private static final LongAdder compressionSavedBytes = new LongAdder();
+
+    /**
+     * The frames waiting for one client, as of a scrape.
+     * @param username
+     * @param frames
+     */
+    private record Backlog(String username, int frames) {}
+
+    /**
+     * Turns the metrics on or off, and registers them with JMX.
+     * @param options
+     */
+    public static void configure(ServerOptions options) {
+        enabled = options.metricsEnabled;
+
+        if (!enabled) {
+            return;
+        }
+
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var name = new ObjectName(OBJECT_NAME);
+
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new ServerMetrics(), name);
+            }
+        } catch (JMException e) {
+            EventLog.error("metrics-register-failed", "Error registering the server's metrics with JMX", e);
+        }
+    }
+
+    /**
+     * @return false if the metrics are turned off, in which case nothing is recorded
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void connectionAccepted() {
+        if (enabled) {
+            connectionsAccepted.increment();
+        }
+    }
+
+    /**
+     * Counts a frame read from a client.
+     */
+    public static void frameReceived() {
+        if (enabled) {
+            framesReceived.increment();
+        }
+    }
+
+    /**
+     * @param bytes bytes read from a client's socket
+     */
+    public static void bytesReceived(long bytes) {
+        if (enabled) {
+            bytesReceived.add(bytes);
+        }
+    }
+
+    /**
+     * @param input a client's socket stream
+     * @return the stream, counting the bytes read from it
+     */
+    public static InputStream countingInput(InputStream input) {
+        if (!enabled) {
+            return input;
+        }
+
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+
+                if (b >= 0) {
+                    bytesReceived.increment();
+                }
+
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+
+                if (read > 0) {
+                    bytesReceived.add(read);
+                }
+
+                return read;
+            }
+        };
+    }
+
+    /**
+     * @return the time now, to stamp a frame that has just been read off a connection with, or 0 if the metrics are off
+     */
+    public static long receiveTime() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Blocks until the next frame starts to arrive, without consuming any of it, and returns the time it did, so that
+     * the time spent decoding, checking and logging it counts towards its delivery latency.
+     * @param input a stream that supports mark and reset
+     * @return the time the first byte of the frame arrived, or 0 if the metrics are off
+     * @throws IOException
+     */
+    public static long awaitFrame(DataInputStream input) throws IOException {
+        if (!enabled) {
+            return 0;
+        }
+
+        input.mark(1);
+
+        if (input.read() < 0) {
+            throw new EOFException();
+        }
+
+        long now = System.nanoTime();
+        input.reset();
+        return now;
+    }
+
+    /**
+     * Counts a chat message from a client and stamps its frame with the time it was read, so that its delivery
+     * latency can be recorded when it is written to each recipient.
+     * @param frame
+     * @param receivedNanos the time from receiveTime or awaitFrame
+     */
+    public static void messageRouted(SharedFrame frame, long receivedNanos) {
+        if (enabled) {
+            messagesRouted.increment();
+
+            if (receivedNanos != 0) {
+                frame.setReceivedNanos(receivedNanos);
+            }
+        }
+    }
+
+    /**
+     * @param recipients the number of clients a frame was handed to
+     */
+    public static void delivered(int recipients) {
+        if (enabled) {
+            deliveries.add(recipients);
+        }
+    }
+
+    /**
+     * Records the cost of compressing a frame.
+     * @param originalBytes
+     * @param compressedBytes the same as originalBytes if compressing it did not save enough to be used
+     * @param nanos the time spent compressing it
+     */
+    public static void frameCompressed(int originalBytes, int compressedBytes, long nanos) {
+        if (enabled) {
+            compressionNanos.add(nanos);
+            compressionInputBytes.add(originalBytes);
+            compressionOutputBytes.add(compressedBytes);
+        }
+    }
+
+    /**
+     * Counts a frame that has been written to a client's socket in full, and records its delivery latency if it is a
+     * chat message.
+     * @param frame
+     * @param bytes the number of bytes written, which is less than the frame's size if it was compressed
+     */
+    public static void frameSent(SharedFrame frame, int bytes) {
+        if (enabled) {
+            framesSent.increment();
+            bytesSent.add(bytes);
+
+            if (bytes < frame.size()) {
+                compressionSavedBytes.add(frame.size() - bytes);
+            }
+
+            long received = frame.receivedNanos();
+
+            if (received != 0) {
+                deliveryLatency.record(System.nanoTime() - received);
+            }
+        }
+    }
+
+    /**
+     * @return the metrics in the Prometheus text format, one "name value" line per metric
+     */
+    public static String scrape() {
+        var text = new StringBuilder();
+
+        counter(text, "chat_connections_accepted_total", connectionsAccepted.sum());
+        gauge(text, "chat_connected_clients", MessageRouter.clients.size());
+        counter(text, "chat_frames_received_total", framesReceived.sum());
+        counter(text, "chat_bytes_received_total", bytesReceived.sum());
+        counter(text, "chat_messages_routed_total", messagesRouted.sum());
+        counter(text, "chat_deliveries_total", deliveries.sum());
+        counter(text, "chat_frames_sent_total", framesSent.sum());
+        counter(text, "chat_bytes_sent_total", bytesSent.sum());
+        counter(text, "chat_frames_dropped_total", OutboundQueue.totalDropped());
+        counter(text, "chat_overflow_disconnects_total", OutboundQueue.totalOverflowDisconnects());
+        counter(text, "chat_log_events_dropped_total", EventLog.dropped());
+        counter(text, "chat_log_errors_suppressed_total", EventLog.suppressed());
+        counter(text, "chat_compression_input_bytes_total", compressionInputBytes.sum());
+        counter(text, "chat_compression_output_bytes_total", compressionOutputBytes.sum());
+        counter(text, "chat_compression_saved_bytes_total", compressionSavedBytes.sum());
+        text.append("# TYPE chat_compression_seconds_total counter\n")
+            .append("chat_compression_seconds_total ").append(seconds(compressionNanos.sum())).append('\n');
+        gauge(text, "chat_cluster_links", Cluster.links());
+        gauge(text, "chat_cluster_remote_users", Cluster.remoteUsers());
+        counter(text, "chat_cluster_forwards_sent_total", Cluster.forwardsSent());
+        counter(text, "chat_cluster_forwards_received_total", Cluster.forwardsReceived());
+
+        // One pass over the clients for every queue gauge
+        long queuedFrames = 0;
+        long queuedBytes = 0;
+        var backlogs = new ArrayList<Backlog>();
+
+        for (Connection connection : MessageRouter.clients) {
+            var queue = connection.getOutboundQueue();
+            int size = queue == null ? 0 : queue.size();
+
+            if (size > 0) {
+                queuedFrames += size;
+                queuedBytes += queue.bytes();
+                backlogs.add(new Backlog(connection.getUsername(), size));
+            }
+        }
+
+        gauge(text, "chat_queued_frames", queuedFrames);
+        gauge(text, "chat_queued_bytes", queuedBytes);
+
+        text.append("# TYPE chat_client_queued_frames gauge\n");
+        backlogs.stream()
+                .sorted(Comparator.comparingInt(Backlog::frames).reversed())
+                .limit(LISTED_BACKLOGS)
+                .forEach(b -> text.append("chat_client_queued_frames{user=\"")
+                                  .append(escape(b.username()))
+                                  .append("\"} ")
+                                  .append(b.frames())
+                                  .append('\n'));
+
+        text.append("# TYPE chat_delivery_latency_seconds summary\n");
+
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            text.append("chat_delivery_latency_seconds{quantile=\"").append(quantile).append("\"} ")
+                .append(seconds(deliveryLatency.percentile(quantile * 100))).append('\n');
+        }
+
+        text.append("chat_delivery_latency_seconds_sum ").append(seconds(deliveryLatency.mean() * deliveryLatency.count())).append('\n');
+        text.append("chat_delivery_latency_seconds_count ").append(deliveryLatency.count()).append('\n');
+        gauge(text, "chat_delivery_latency_max_seconds", seconds(deliveryLatency.max()));
+
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, long value) {
+        text.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, Object value) {
+        text.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(double nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return MessageRouter.clients.size();
+    }
+
+    @Override
+    public long getFramesReceived() {
+        return framesReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getMessagesRouted() {
+        return messagesRouted.sum();
+    }
+
+    @Override
+    public long getDeliveries() {
+        return deliveries.sum();
+    }
+
+    @Override
+    public long getFramesSent() {
+        return framesSent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getQueuedFrames() {
+        long queued = 0;
+
+        for (Connection connection : MessageRouter.clients) {
+            queued += connection.getOutboundQueue() == null ? 0 : connection.getOutboundQueue().size();
+        }
+
+        return queued;
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        long queued = 0;
+
+        for (Connection connection : MessageRouter.clients) {
+            queued += connection.getOutboundQueue() == null ? 0 : connection.getOutboundQueue().bytes();
+        }
+
+        return queued;
+    }
+
+    @Override
+    public int getLargestQueue() {
+        int largest = 0;
+
+        for (Connection connection : MessageRouter.clients) {
+            largest = Math.max(largest, connection.getOutboundQueue() == null ? 0 : connection.getOutboundQueue().size());
+        }
+
+        return largest;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return OutboundQueue.totalDropped();
+    }
+
+    @Override
+    public long getOverflowDisconnects() {
+        return OutboundQueue.totalOverflowDisconnects();
+    }
+
+    @Override
+    public long getLogEventsDropped() {
+        return EventLog.dropped();
+    }
+
+    @Override
+    public long getLogErrorsSuppressed() {
+        return EventLog.suppressed();
+    }
+
+    @Override
+    public double getCompressionMillis() {
+        return compressionNanos.sum() / 1e6;
+    }
+
+    @Override
+    public long getCompressionInputBytes() {
+        return compressionInputBytes.sum();
+    }
+
+    @Override
+    public long getCompressionOutputBytes() {
+        return compressionOutputBytes.sum();
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        return compressionSavedBytes.sum();
+    }
+
+    @Override
+    public int getClusterLinks() {
+        return Cluster.links();
+    }
+
+    @Override
+    public int getClusterRemoteUsers() {
+        return Cluster.remoteUsers();
+    }
+
+    @Override
+    public long getClusterForwardsSent() {
+        return Cluster.forwardsSent();
+    }
+
+    @Override
+    public long getClusterForwardsReceived() {
+        return Cluster.forwardsReceived();
+    }
+
+    @Override
+    public double getDeliveryLatencyMeanMicros() {
+        return deliveryLatency.mean() / 1000;
+    }
+
+    @Override
+    public double getDeliveryLatencyP50Micros() {
+        return deliveryLatency.percentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getDeliveryLatencyP99Micros() {
+        return deliveryLatency.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getDeliveryLatencyP999Micros() {
+        return deliveryLatency.percentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getDeliveryLatencyMaxMicros() {
+        return deliveryLatency.max() / 1000.0;
+    }
+}
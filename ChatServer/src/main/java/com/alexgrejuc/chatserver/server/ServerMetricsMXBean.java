@@ -0,0 +1,62 @@
+package com.alexgrejuc.chatserver.server;
+
+/**
+ * The server's metrics as seen through JMX, e.g. in JConsole under com.alexgrejuc.chatserver.
+ */
+public interface ServerMetricsMXBean {
+    long getConnectionsAccepted();
+
+    int getConnectedClients();
+
+    long getFramesReceived();
+
+    long getBytesReceived();
+
+    long getMessagesRouted();
+
+    long getDeliveries();
+
+    long getFramesSent();
+
+    long getBytesSent();
+
+    long getQueuedFrames();
+
+    long getQueuedBytes();
+
+    int getLargestQueue();
+
+    long getDroppedFrames();
+
+    long getOverflowDisconnects();
+
+    long getLogEventsDropped();
+
+    long getLogErrorsSuppressed();
+
+    double getCompressionMillis();
+
+    long getCompressionInputBytes();
+
+    long getCompressionOutputBytes();
+
+    long getCompressionSavedBytes();
+
+    int getClusterLinks();
+
+    int getClusterRemoteUsers();
+
+    long getClusterForwardsSent();
+
+    long getClusterForwardsReceived();
+
+    double getDeliveryLatencyMeanMicros();
+
+    double getDeliveryLatencyP50Micros();
+
+    double getDeliveryLatencyP99Micros();
+
+    double getDeliveryLatencyP999Micros();
+
+    double getDeliveryLatencyMaxMicros();
+}
@@ -0,0 +1,127 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * The server's configuration, read from command line flags of the form --name=value.
+ */
+public class ServerOptions {
+    public int port = 7777;
+
+    // blocking uses a thread per client and nio uses event loops
+    public String mode = "blocking";
+    public int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    // How blocking mode runs each client handler: platform, virtual, or pooled
+    public String executor = "platform";
+    public int poolSize = 200;
+
+    // How long a blocking writer that has emptied its queue waits for more frames to write along with them, in
+    // microseconds, or 0 to write at once
+    public long flushLingerMicros = 0;
+
+    // Whether clients that support it are sent compressed frames, the smallest frame that is compressed, and the
+    // DEFLATE level
+    public boolean compression = true;
+    public int compressionMinBytes = 512;
+    public int compressionLevel = Deflater.BEST_SPEED;
+
+    // Limits on the frames waiting to be written to a single client
+    public int maxQueuedMessages = 1024;
+    public long maxQueuedBytes = 64L * 1024 * 1024;
+    public OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.COALESCE_NOTICES;
+
+    // Where attachments are stored by hash, and how large the store may grow before the least recently used are evicted
+    public String storeDirectory = Path.of(System.getProperty("java.io.tmpdir"), "chat-attachments").toString();
+    public long storeMaxBytes = 1024L * 1024 * 1024;
+
+    // Where routed messages are logged, in segments of logSegmentBytes, and how long the log is kept
+    public String logDirectory = Path.of(System.getProperty("java.io.tmpdir"), "chat-log").toString();
+    public int logSegmentBytes = 64 * 1024 * 1024;
+    public MessageLog.FsyncPolicy logFsyncPolicy = MessageLog.FsyncPolicy.INTERVAL;
+    public long logFsyncIntervalMillis = 100;
+    public long logRetentionBytes = 1024L * 1024 * 1024;
+    public Duration logRetentionTime = Duration.ofDays(7);
+
+    // How a reconnecting client is sent the messages it missed: pages of replayPageSize logged messages, at most one
+    // page per client every replayIntervalMillis
+    public int replayPageSize = 100;
+    public long replayIntervalMillis = 50;
+
+    // How often new messages in the log are added to the history index, and the most messages in a page of history
+    public long historyIntervalMillis = 100;
+    public int historyPageSize = 100;
+
+    // Whether counters and latencies are recorded, and the local port they are served on as text, or 0 for none
+    public boolean metricsEnabled = true;
+    public int metricsPort = 0;
+
+    // Where connections, disconnections and errors are logged, in files rotated at eventLogFileBytes of which
+    // eventLogFiles are kept, and whether they are also printed to the console
+    public String eventLogDirectory = Path.of(System.getProperty("java.io.tmpdir"), "chat-events").toString();
+    public long eventLogFileBytes = 16L * 1024 * 1024;
+    public int eventLogFiles = 5;
+    public boolean eventLogConsole = true;
+
+    // The name this node goes by in a cluster, by default node- and its port, the port other nodes link to, or 0 to
+    // run on its own, and the host:port cluster addresses of the other nodes
+    public String nodeName = null;
+    public int clusterPort = 0;
+    public List<String> peers = List.of();
+
+    /**
+     * @param args
+     * @return the options, with defaults for any flag that was not given
+     * @throws IllegalArgumentException if a flag is unknown
+     */
+    public static ServerOptions parse(String[] args) {
+        var options = new ServerOptions();
+
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            String value = option.length > 1 ? option[1] : "";
+
+            switch (option[0]) {
+                case "--port" -> options.port = Integer.parseInt(value);
+                case "--mode" -> options.mode = value;
+                case "--event-loops" -> options.eventLoops = Integer.parseInt(value);
+                case "--executor" -> options.executor = value;
+                case "--pool-size" -> options.poolSize = Integer.parseInt(value);
+                case "--flush-linger-us" -> options.flushLingerMicros = Long.parseLong(value);
+                case "--compression" -> options.compression = !value.equals("off");
+                case "--compression-min-bytes" -> options.compressionMinBytes = Integer.parseInt(value);
+                case "--compression-level" -> options.compressionLevel = Integer.parseInt(value);
+                case "--queue-messages" -> options.maxQueuedMessages = Integer.parseInt(value);
+                case "--queue-bytes" -> options.maxQueuedBytes = Long.parseLong(value);
+                case "--overflow" -> options.overflowPolicy = OutboundQueue.OverflowPolicy.fromFlag(value);
+                case "--store-dir" -> options.storeDirectory = value;
+                case "--store-bytes" -> options.storeMaxBytes = Long.parseLong(value);
+                case "--log-dir" -> options.logDirectory = value;
+                case "--log-segment-bytes" -> options.logSegmentBytes = Integer.parseInt(value);
+                case "--log-fsync" -> options.logFsyncPolicy = MessageLog.FsyncPolicy.valueOf(value.toUpperCase());
+                case "--log-fsync-ms" -> options.logFsyncIntervalMillis = Long.parseLong(value);
+                case "--log-retention-bytes" -> options.logRetentionBytes = Long.parseLong(value);
+                case "--log-retention-hours" -> options.logRetentionTime = Duration.ofHours(Long.parseLong(value));
+                case "--replay-page" -> options.replayPageSize = Integer.parseInt(value);
+                case "--replay-interval-ms" -> options.replayIntervalMillis = Long.parseLong(value);
+                case "--history-interval-ms" -> options.historyIntervalMillis = Long.parseLong(value);
+                case "--history-page" -> options.historyPageSize = Integer.parseInt(value);
+                case "--metrics" -> options.metricsEnabled = !value.equals("off");
+                case "--metrics-port" -> options.metricsPort = Integer.parseInt(value);
+                case "--events-dir" -> options.eventLogDirectory = value;
+                case "--events-file-bytes" -> options.eventLogFileBytes = Long.parseLong(value);
+                case "--events-files" -> options.eventLogFiles = Integer.parseInt(value);
+                case "--events-console" -> options.eventLogConsole = !value.equals("off");
+                case "--node" -> options.nodeName = value;
+                case "--cluster-port" -> options.clusterPort = Integer.parseInt(value);
+                case "--peers" -> options.peers = value.isEmpty() ? List.of() : List.of(value.split(","));
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        return options;
+    }
+}
@@ -0,0 +1,54 @@
+package com.alexgrejuc.chatserver.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An open file whose regions are sent to connections, such as a stored attachment.
+ * Reference counted like SharedFrame: the file is closed when the last frame that refers to it is released, so an
+ * attachment that is evicted from the store while it is being sent is still sent completely.
+ */
+public class SharedFile {
+    private final FileChannel channel;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Opens a file for reading. The caller owns the single initial reference.
+     * @param path
+     * @throws IOException
+     */
+    public SharedFile(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    /**
+     * @return the file's channel, for transferring regions of it to connections
+     */
+    public FileChannel channel() {
+        return channel;
+    }
+
+    public SharedFile retain() {
+        if (references.getAndIncrement() <= 0) {
+            throw new IllegalStateException("File has already been released");
+        }
+
+        return this;
+    }
+
+    /**
+     * Drops a reference, and closes the file when it was the last one.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                EventLog.error("shared-file-close-failed", "Error closing shared file", ioe);
+            }
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageCodec;
+import com.alexgrejuc.chatmessage.ChatMessageFrames;
+import com.alexgrejuc.chatmessage.Frame;
+import com.alexgrejuc.chatmessage.FrameCompressor;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * An encoded frame that is written to many connections without being encoded again for each of them.
+ * The frame is reference counted: whoever hands it to a connection retains it first, and the connection releases it
+ * once the frame has been written or dropped. When the last reference is released, small frames return their
+ * buffer to a pool for the next message.
+ * A frame can also end with a region of a file, which is transferred to the socket without being read into
+ * the heap. Such a frame holds a reference to the file until it is released.
+ * A frame can have a continuation, which is the next frame to queue for the same connection once this one has been
+ * written. Long attachment streams use it to queue one chunk at a time, so that other messages can be interleaved
+ * with them and the queue never holds a whole attachment.
+ * A frame can be compressed for the connections that negotiated compression. The first of them to write it
+ * compresses it, and the others share the result, so a broadcast is compressed once however many clients it goes to.
+ */
+public class SharedFrame {
+    private static final int POOLED_CAPACITY = 8 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 1024;
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final int size;
+    private final boolean notice;
+
+    // What a notice is about, such as a user's presence, so that a newer notice about the same thing can replace it
+    private final String subject;
+    private volatile ByteBuffer buffer;
+
+    private final SharedFile file;
+    private final long regionPosition;
+    private final int regionLength;
+    private final Supplier<SharedFrame> continuation;
+
+    // Whether the frame may be worth compressing, and once a connection has tried, the compressed frame or null if it
+    // was not worth it. Guarded by compressionLock, which a virtual thread waits on without pinning its carrier while
+    // another compresses the frame or reads its file region.
+    private final boolean compressible;
+    private final ReentrantLock compressionLock = new ReentrantLock();
+    private boolean compressionTried;
+    private ByteBuffer compressed;
+
+    // When the server received the message, for its delivery latency, or 0 if it is not measured
+    private long receivedNanos;
+
+    // Whether a full outbound queue must keep the frame, because the client could not tell that it was lost
+    private boolean essential;
+
+    private SharedFrame(ByteBuffer buffer, boolean notice, String subject) {
+        this(buffer, notice, subject, null, 0, 0, null, true);
+    }
+
+    private SharedFrame(ByteBuffer buffer, boolean notice, String subject, SharedFile file, long regionPosition,
+                        int regionLength, Supplier<SharedFrame> continuation, boolean compressible) {
+        this.buffer = buffer;
+        this.size = buffer.limit() + regionLength;
+        this.notice = notice;
+        this.subject = subject;
+        this.file = file;
+        this.regionPosition = regionPosition;
+        this.regionLength = regionLength;
+        this.continuation = continuation;
+        this.compressible = compressible;
+    }
+
+    /**
+     * Encodes a message or chunk once. The caller owns the single initial reference.
+     * @param frame
+     * @return the encoded frame
+     */
+    public static SharedFrame encode(Frame frame) {
+        return encode(frame, false, null);
+    }
+
+    /**
+     * Encodes a server notice, which a full outbound queue may drop in favor of chat messages.
+     * @param message
+     * @return the encoded frame
+     */
+    public static SharedFrame encodeNotice(ChatMessage message) {
+        return encode(message, true, null);
+    }
+
+    /**
+     * Encodes a server notice about something that later notices supersede, such as a user entering the chat, which
+     * a full outbound queue replaces with the next notice about the same subject.
+     * @param message
+     * @param subject what the notice is about, e.g. the user's name
+     * @return the encoded frame
+     */
+    public static SharedFrame encodeNotice(ChatMessage message, String subject) {
+        return encode(message, true, subject);
+    }
+
+    private static SharedFrame encode(Frame frame, boolean notice, String subject) {
+        int size = ChatMessageCodec.encodedSize(frame);
+        ByteBuffer buffer = null;
+
+        if (size <= POOLED_CAPACITY) {
+            buffer = pool.poll();
+        }
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(size <= POOLED_CAPACITY ? POOLED_CAPACITY : size);
+        }
+
+        buffer.clear();
+        ChatMessageCodec.encode(frame, buffer);
+        buffer.flip();
+        return new SharedFrame(buffer, notice, subject);
+    }
+
+    /**
+     * Creates a frame made of an encoded header followed by a region of a file.
+     * @param header
+     * @param file the file, which the frame retains until it is released
+     * @param position
+     * @param length
+     * @param continuation supplies the frame to send after this one, or null if there is none
+     * @param compressible false if the file is already compressed, e.g. a PNG
+     * @return the frame
+     */
+    public static SharedFrame withFileRegion(byte[] header, SharedFile file, long position, int length,
+                                             Supplier<SharedFrame> continuation, boolean compressible) {
+        return new SharedFrame(ByteBuffer.wrap(header), false, null, file.retain(), position, length, continuation,
+                compressible);
+    }
+
+    /**
+     * Wraps bytes that have already been encoded, such as a handshake reply.
+     * @param bytes
+     * @return a frame that owns the bytes
+     */
+    public static SharedFrame wrap(byte[] bytes) {
+        return wrap(bytes, false);
+    }
+
+    /**
+     * Wraps bytes that have already been encoded, such as a message forwarded by another node.
+     * @param bytes
+     * @param notice whether the bytes are a server notice
+     * @return a frame that owns the bytes
+     */
+    public static SharedFrame wrap(byte[] bytes, boolean notice) {
+        return new SharedFrame(ByteBuffer.wrap(bytes), notice, null);
+    }
+
+    /**
+     * Adds a reference, e.g. before handing the frame to another connection.
+     * @return this frame
+     */
+    public SharedFrame retain() {
+        if (references.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Frame has already been released");
+        }
+
+        return this;
+    }
+
+    /**
+     * Drops a reference. The last release recycles the buffer, after which the frame must not be used.
+     */
+    public void release() {
+        int remaining = references.decrementAndGet();
+
+        if (remaining == 0) {
+            ByteBuffer released = buffer;
+            buffer = null;
+
+            if (released.capacity() == POOLED_CAPACITY && pool.size() < MAX_POOLED_BUFFERS) {
+                pool.add(released);
+            }
+
+            if (file != null) {
+                file.release();
+            }
+        }
+        else if (remaining < 0) {
+            throw new IllegalStateException("Frame has already been released");
+        }
+    }
+
+    /**
+     * @return a read-only view of the frame, or of its header if it has a file region, with its own position
+     */
+    public ByteBuffer duplicate() {
+        return checkBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * Numbers an encoded message. Must be called before the frame is handed to any connection.
+     * @param sequence
+     */
+    public void setSequence(long sequence) {
+        ChatMessageCodec.putSequence(checkBuffer().duplicate(), sequence);
+        essential = true;
+    }
+
+    /**
+     * Marks the frame as one that a full outbound queue must not drop, such as a replayed message or a reply the
+     * client is waiting for. Must be called before the frame is handed to any connection.
+     * @return this frame
+     */
+    public SharedFrame essential() {
+        essential = true;
+        return this;
+    }
+
+    /**
+     * @return true if dropping the frame would go unnoticed by the client: a logged message, which the client
+     * acknowledges by its highest sequence and so would never have replayed, a frame marked essential, or a chunk of
+     * an attachment, whose stream only continues once it has been written
+     */
+    public boolean isEssential() {
+        return essential || file != null || continuation != null;
+    }
+
+    /**
+     * Records when the message was received. Must be called before the frame is handed to any connection.
+     * @param nanos a System.nanoTime()
+     */
+    public void setReceivedNanos(long nanos) {
+        receivedNanos = nanos;
+    }
+
+    /**
+     * @return when the message was received, or 0 if its delivery latency is not measured
+     */
+    public long receivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * @return the size of the frame in bytes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if this is a server notice rather than a chat message
+     */
+    public boolean isNotice() {
+        return notice;
+    }
+
+    /**
+     * @return what this notice is about, or null if it is not a notice that later ones supersede
+     */
+    public String subject() {
+        return subject;
+    }
+
+    /**
+     * @return the length of the file region that follows the header, or 0 if there is none
+     */
+    public int regionLength() {
+        return regionLength;
+    }
+
+    /**
+     * Called by a connection's writer once this frame has been written completely.
+     * @return the next frame to queue for the same connection, owned by the caller, or null if there is none
+     */
+    public SharedFrame next() {
+        return continuation == null ? null : continuation.get();
+    }
+
+    /**
+     * Gives the frame compressed for a connection that negotiated compression, compressing it if no connection has
+     * tried yet. A file region is read into the heap to be compressed.
+     * @param compressor the calling connection's compressor
+     * @return a view of the compressed frame with its own position, or null if the frame should be sent as it is
+     * @throws IOException if the file region cannot be read
+     */
+    public ByteBuffer compressed(FrameCompressor compressor) throws IOException {
+        if (!compressible || !compressor.accepts(size)) {
+            return null;
+        }
+
+        ByteBuffer result;
+
+        compressionLock.lock();
+
+        try {
+            if (!compressionTried) {
+                compressionTried = true;
+                long start = System.nanoTime();
+                byte[] bytes = file == null ? compressor.compress(checkBuffer().duplicate())
+                                            : compressor.compress(checkBuffer().duplicate(), readRegion());
+                compressed = bytes == null ? null : ByteBuffer.wrap(bytes);
+                ServerMetrics.frameCompressed(size, bytes == null ? size : bytes.length, System.nanoTime() - start);
+            }
+
+            result = compressed;
+        } finally {
+            compressionLock.unlock();
+        }
+
+        return result == null ? null : result.asReadOnlyBuffer();
+    }
+
+    private ByteBuffer readRegion() throws IOException {
+        var region = ByteBuffer.allocate(regionLength);
+
+        while (region.hasRemaining()) {
+            if (file.channel().read(region, regionPosition + region.position()) < 0) {
+                throw new EOFException("The file ended before all of its data was read");
+            }
+        }
+
+        return region.flip();
+    }
+
+    /**
+     * Transfers part of the file region to a channel.
+     * @param offset how much of the region has already been transferred
+     * @param channel
+     * @return the number of bytes transferred, which may be 0 for a non-blocking channel
+     * @throws IOException
+     */
+    public long transferRegion(long offset, WritableByteChannel channel) throws IOException {
+        checkBuffer();
+        return file.channel().transferTo(regionPosition + offset, regionLength - offset, channel);
+    }
+
+    /**
+     * Transfers the whole file region to a blocking channel.
+     * @param channel
+     * @throws IOException if the file is shorter than the region
+     */
+    public void transferRegionFully(WritableByteChannel channel) throws IOException {
+        checkBuffer();
+        ChatMessageFrames.transferFully(file.channel(), regionPosition, regionLength, channel);
+    }
+
+    /**
+     * Writes the whole frame to a stream. The caller is responsible for flushing.
+     * @param output
+     * @param channel the stream's channel, used to transfer a file region without copying it, or null
+     * @throws IOException
+     */
+    public void writeTo(DataOutputStream output, WritableByteChannel channel) throws IOException {
+        ByteBuffer b = checkBuffer();
+        output.write(b.array(), b.arrayOffset(), b.limit());
+
+        if (file != null) {
+            output.flush();
+
+            ChatMessageFrames.transferFully(file.channel(), regionPosition, regionLength,
+                    channel != null ? channel : Channels.newChannel(output));
+        }
+    }
+
+    private ByteBuffer checkBuffer() {
+        ByteBuffer b = buffer;
+
+        if (b == null) {
+            throw new IllegalStateException("Frame has already been released");
+        }
+
+        return b;
+    }
+}
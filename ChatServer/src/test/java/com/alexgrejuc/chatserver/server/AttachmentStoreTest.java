@@ -0,0 +1,126 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.Attachment;
+import com.alexgrejuc.chatmessage.AttachmentChunk;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AttachmentStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private static String hashOf(byte[] data) {
+        var digest = Attachment.newDigest();
+        digest.update(data);
+        return Attachment.toHash(digest);
+    }
+
+    private static String upload(AttachmentStore store, String text) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        String hash = hashOf(data);
+
+        var upload = store.beginUpload(hash, data.length);
+        upload.append(new AttachmentChunk(hash, 0, true, data));
+        assertTrue(upload.finish());
+        return hash;
+    }
+
+    @Test
+    void storesByHash() throws IOException {
+        var store = new AttachmentStore(directory, 1000);
+        String hash = upload(store, "hello");
+
+        assertTrue(store.contains(hash));
+
+        var file = store.open(hash);
+        var contents = ByteBuffer.allocate(5);
+        file.channel().read(contents);
+        file.release();
+        assertEquals("hello", new String(contents.array(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void rejectsWrongContents() throws IOException {
+        var store = new AttachmentStore(directory, 1000);
+        String hash = hashOf("hello".getBytes(StandardCharsets.UTF_8));
+
+        var upload = store.beginUpload(hash, 5);
+        upload.append(new AttachmentChunk(hash, 0, true, "jello".getBytes(StandardCharsets.UTF_8)));
+
+        assertFalse(upload.finish());
+        assertFalse(store.contains(hash));
+        assertNull(store.open(hash));
+    }
+
+    @Test
+    void rejectsChunksOutOfOrder() throws IOException {
+        var store = new AttachmentStore(directory, 1000);
+        String hash = hashOf(new byte[0]);
+
+        var upload = store.beginUpload(hash, 0);
+        assertThrows(StreamCorruptedException.class, () -> upload.append(new AttachmentChunk(hash, 1, true, new byte[0])));
+        upload.abandon();
+    }
+
+    @Test
+    void rejectsUploadsLargerThanAnnounced() throws IOException {
+        var store = new AttachmentStore(directory, 1000);
+        String hash = hashOf(new byte[0]);
+
+        var upload = store.beginUpload(hash, 8);
+        upload.append(new AttachmentChunk(hash, 0, false, new byte[8]));
+        assertThrows(StreamCorruptedException.class, () -> upload.append(new AttachmentChunk(hash, 1, true, new byte[1])));
+
+        // The partial file is gone, and nothing larger than the store can be started
+        try (var files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+
+        assertFalse(store.fits(1001));
+        assertThrows(IllegalArgumentException.class, () -> store.beginUpload(hash, 1001));
+    }
+
+    @Test
+    void rejectsMalformedHashes() {
+        assertFalse(AttachmentStore.isHash("../../etc/passwd"));
+        assertFalse(AttachmentStore.isHash(null));
+        assertTrue(AttachmentStore.isHash(hashOf(new byte[0])));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() throws IOException {
+        var store = new AttachmentStore(directory, 10);
+        String first = upload(store, "aaaa");
+        String second = upload(store, "bbbb");
+
+        // Using the first attachment makes the second the least recently used
+        assertTrue(store.contains(first));
+        String third = upload(store, "cccc");
+
+        assertTrue(store.contains(first));
+        assertFalse(store.contains(second));
+        assertTrue(store.contains(third));
+        assertEquals(8, store.bytes());
+        assertFalse(Files.exists(directory.resolve(second)));
+    }
+
+    @Test
+    void keepsAttachmentsAcrossRestarts() throws IOException {
+        String hash = upload(new AttachmentStore(directory, 1000), "hello");
+
+        var reopened = new AttachmentStore(directory, 1000);
+
+        assertTrue(reopened.contains(hash));
+        assertEquals(5, reopened.bytes());
+    }
+}
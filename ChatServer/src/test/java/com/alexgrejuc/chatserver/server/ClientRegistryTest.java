@@ -0,0 +1,82 @@
+package com.alexgrejuc.chatserver.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientRegistryTest {
+
+    // A class rather than a record, since connections are compared by identity
+    private static class StubConnection implements Connection {
+        private final String username;
+
+        StubConnection(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void deliver(SharedFrame frame) {
+            frame.release();
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return null;
+        }
+
+        @Override
+        public void closeAllResources() {}
+    }
+
+    @Test
+    void nameCollision() {
+        var registry = new ClientRegistry();
+        var alice = new StubConnection("Alice");
+        var impostor = new StubConnection("Alice");
+
+        assertTrue(registry.register(alice));
+        assertFalse(registry.register(impostor));
+
+        // The rejected client must not be able to remove the one that holds the name
+        assertFalse(registry.unregister(impostor));
+        assertSame(alice, registry.get("Alice"));
+
+        assertTrue(registry.unregister(alice));
+        assertFalse(registry.contains("Alice"));
+    }
+
+    @Test
+    void iterateWhileChanging() throws InterruptedException {
+        var registry = new ClientRegistry();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    var connection = new StubConnection(thread + "-" + i);
+                    registry.register(connection);
+
+                    for (Connection c : registry) {
+                        assertNotNull(c.getUsername());
+                    }
+
+                    registry.unregister(connection);
+                }
+            });
+        }
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,66 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageCodec;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterCodecTest {
+
+    @Test
+    void framesRoundTripInOrder() throws IOException {
+        var message = new ChatMessage("hi", "alice", new ArrayList<>(List.of("bob", "carol")), null);
+        var clientFrame = ByteBuffer.allocate(ChatMessageCodec.encodedSize(message));
+        ChatMessageCodec.encode(message, clientFrame);
+        clientFrame.flip();
+
+        var stream = new ByteArrayOutputStream();
+        stream.write(ClusterCodec.hello("node-ü"));
+        stream.write(ClusterCodec.presence(ClusterCodec.USERS_JOINED, List.of("alice", "bob")));
+        stream.write(ClusterCodec.forward(ClusterCodec.FORWARD_DIRECT, true, List.of("bob", "carol"), clientFrame));
+
+        var input = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+
+        var hello = ClusterCodec.read(input);
+        assertEquals(ClusterCodec.HELLO, hello.type());
+        assertEquals(ClusterCodec.VERSION, hello.flags());
+        assertEquals(List.of("node-ü"), hello.names());
+        assertEquals(0, hello.clientFrame().length);
+
+        var joined = ClusterCodec.read(input);
+        assertEquals(ClusterCodec.USERS_JOINED, joined.type());
+        assertEquals(List.of("alice", "bob"), joined.names());
+
+        var forward = ClusterCodec.read(input);
+        assertEquals(ClusterCodec.FORWARD_DIRECT, forward.type());
+        assertEquals(ClusterCodec.NOTICE, forward.flags() & ClusterCodec.NOTICE);
+        assertEquals(List.of("bob", "carol"), forward.names());
+
+        // The client frame is carried byte for byte, and the sender's buffer is left as it was
+        assertEquals(clientFrame, ByteBuffer.wrap(forward.clientFrame()));
+        assertEquals(0, clientFrame.position());
+
+        assertThrows(EOFException.class, () -> ClusterCodec.read(input));
+    }
+
+    @Test
+    void malformedFramesAreRejected() {
+        // A name longer than the rest of the payload
+        byte[] payload = {ClusterCodec.USERS_JOINED, 0, 1, 50, 'a'};
+        assertThrows(IOException.class, () -> ClusterCodec.decodePayload(ByteBuffer.wrap(payload)));
+
+        // More names than there are bytes left
+        byte[] count = {ClusterCodec.USERS_JOINED, 0, 9, 0};
+        assertThrows(IOException.class, () -> ClusterCodec.decodePayload(ByteBuffer.wrap(count)));
+    }
+}
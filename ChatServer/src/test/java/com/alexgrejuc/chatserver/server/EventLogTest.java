@@ -0,0 +1,119 @@
+package com.alexgrejuc.chatserver.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventLogTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void ringBufferRejectsWhenFull() {
+        var buffer = new RingBuffer<Integer>(4);
+        assertEquals(4, buffer.capacity());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+
+        assertFalse(buffer.offer(4));
+        assertEquals(0, buffer.poll());
+        assertTrue(buffer.offer(4));
+
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, buffer.poll());
+        }
+
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    void ringBufferKeepsEveryItemFromManyProducers() throws InterruptedException {
+        var buffer = new RingBuffer<Integer>(64);
+        int producers = 4;
+        int perProducer = 10_000;
+        var threads = new Thread[producers];
+
+        for (int p = 0; p < producers; p++) {
+            int first = p * perProducer;
+            threads[p] = new Thread(() -> {
+                for (int i = first; i < first + perProducer; i++) {
+                    while (!buffer.offer(i)) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        var seen = new HashSet<Integer>();
+
+        while (seen.size() < producers * perProducer) {
+            Integer item = buffer.poll();
+
+            if (item != null) {
+                assertTrue(seen.add(item), "duplicate " + item);
+            }
+        }
+
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    void repeatedErrorsAreSuppressedWithinAWindow() {
+        var window = new EventLog.ErrorWindow(1_000);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, window.admit(1_000 + i));
+        }
+
+        assertEquals(-1, window.admit(2_000));
+        assertEquals(-1, window.admit(3_000));
+
+        // The next window logs the first error along with how many were suppressed
+        assertEquals(2, window.admit(11_000));
+        assertEquals(0, window.admit(11_001));
+    }
+
+    @Test
+    void filesRotate() throws IOException {
+        try (var file = new EventLogFile(directory, 100, 3)) {
+            for (int i = 0; i < 10; i++) {
+                file.write("x".repeat(39) + i);
+            }
+        }
+
+        // Two 40 character lines fit in each file, so the last two files kept hold lines 6 to 9
+        assertEquals(List.of("x".repeat(39) + 8, "x".repeat(39) + 9), Files.readAllLines(directory.resolve("events.jsonl")));
+        assertEquals(List.of("x".repeat(39) + 6, "x".repeat(39) + 7), Files.readAllLines(directory.resolve("events.1.jsonl")));
+        assertTrue(Files.exists(directory.resolve("events.2.jsonl")));
+        assertFalse(Files.exists(directory.resolve("events.3.jsonl")));
+    }
+
+    @Test
+    void eventsAreOneLineOfJson() {
+        var event = new EventLog.Event(0, EventLog.Level.ERROR, "writer-a\"b", "client-write-failed", "line\nbreak",
+                new IOException("reset"), 3);
+        String json = EventLog.toJson(event, "trace\n\tat x");
+
+        assertFalse(json.contains("\n"));
+        assertTrue(json.startsWith("{\"time\":\"1970-01-01T00:00:00Z\",\"level\":\"ERROR\",\"thread\":\"writer-a\\\"b\""), json);
+        assertTrue(json.contains("\"message\":\"line\\nbreak\""), json);
+        assertTrue(json.contains("\"error\":\"java.io.IOException: reset\""), json);
+        assertTrue(json.contains("\"stack\":\"trace\\n\\tat x\""), json);
+        assertTrue(json.endsWith(",\"suppressed\":3}"), json);
+    }
+}
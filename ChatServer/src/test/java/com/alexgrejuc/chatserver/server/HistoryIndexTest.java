@@ -0,0 +1,127 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageFrames;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryIndexTest {
+
+    @TempDir
+    Path directory;
+
+    private MessageLog openLog() throws IOException {
+        return new MessageLog(directory.resolve("log"), 1 << 20, MessageLog.FsyncPolicy.OS, 100, 1 << 30, Duration.ofDays(1));
+    }
+
+    private HistoryIndex openIndex(MessageLog log) throws IOException {
+        // A long interval, so that the test decides when the log is indexed
+        return new HistoryIndex(directory.resolve("history"), log, 60_000);
+    }
+
+    private static void append(MessageLog log, String text, String sender, List<String> recipients, String room) throws IOException {
+        var recipientNames = recipients == null ? null : new ArrayList<>(recipients);
+        log.append(ByteBuffer.wrap(ChatMessageFrames.toFrame(new ChatMessage(text, sender, recipientNames, new ArrayList<>(), room))));
+    }
+
+    private static List<String> texts(List<MessageLog.Entry> entries) throws IOException {
+        var texts = new ArrayList<String>();
+
+        for (var entry : entries) {
+            texts.add(((ChatMessage) ChatMessageFrames.decode(ByteBuffer.wrap(entry.frame()))).message());
+        }
+
+        return texts;
+    }
+
+    @Test
+    void keysByConversation() {
+        var room = new ChatMessage("hi", "alice", null, new ArrayList<>(), "dev");
+        var broadcast = new ChatMessage("hi", "alice", null, new ArrayList<>());
+        var direct = new ChatMessage("hi", "bob", new ArrayList<>(List.of("alice")), new ArrayList<>());
+
+        assertEquals(List.of(HistoryIndex.roomKey("dev")), HistoryIndex.keys(room));
+        assertEquals(List.of(HistoryIndex.BROADCASTS), HistoryIndex.keys(broadcast));
+        assertEquals(List.of(HistoryIndex.userKey("bob"), HistoryIndex.userKey("alice"), HistoryIndex.directKey("alice", "bob")),
+                HistoryIndex.keys(direct));
+        assertEquals(HistoryIndex.directKey("alice", "bob"), HistoryIndex.directKey("bob", "alice"));
+        assertEquals("user.-2e2e", HistoryIndex.userKey(".."));
+    }
+
+    @Test
+    void skipsEntriesThatCannotBeIndexed() throws IOException {
+        try (var log = openLog(); var index = openIndex(log)) {
+            // Logged before messages were checked, with no sender to make keys from
+            append(log, "bad", null, List.of("bob"), null);
+            append(log, "good", "alice", List.of("bob"), null);
+
+            index.catchUp();
+
+            assertEquals(List.of("good"), texts(index.page(List.of(HistoryIndex.userKey("bob")), Long.MAX_VALUE, 10)));
+        }
+    }
+
+    @Test
+    void pagesBackwardsThroughAConversation() throws IOException {
+        try (var log = openLog(); var index = openIndex(log)) {
+            for (int i = 0; i < 10; i++) {
+                append(log, "dev " + i, "alice", null, "dev");
+                append(log, "dm " + i, "alice", List.of("bob"), null);
+            }
+
+            index.catchUp();
+
+            var newest = index.page(List.of(HistoryIndex.roomKey("dev")), Long.MAX_VALUE, 3);
+            assertEquals(List.of("dev 7", "dev 8", "dev 9"), texts(newest));
+
+            var older = index.page(List.of(HistoryIndex.roomKey("dev")), newest.get(0).offset(), 3);
+            assertEquals(List.of("dev 4", "dev 5", "dev 6"), texts(older));
+
+            var oldest = index.page(List.of(HistoryIndex.roomKey("dev")), 2, 3);
+            assertEquals(List.of("dev 0"), texts(oldest));
+
+            assertTrue(index.page(List.of(HistoryIndex.roomKey("ops")), Long.MAX_VALUE, 3).isEmpty());
+        }
+    }
+
+    @Test
+    void mergesConversationsByOffset() throws IOException {
+        try (var log = openLog(); var index = openIndex(log)) {
+            append(log, "everyone", "carol", null, null);
+            append(log, "to bob", "alice", List.of("bob"), null);
+            append(log, "to dave", "alice", List.of("dave"), null);
+            append(log, "in dev", "carol", null, "dev");
+            index.catchUp();
+
+            var keys = List.of(HistoryIndex.BROADCASTS, HistoryIndex.userKey("bob"), HistoryIndex.roomKey("dev"));
+            assertEquals(List.of("everyone", "to bob", "in dev"), texts(index.page(keys, Long.MAX_VALUE, 10)));
+            assertEquals(List.of("to bob", "in dev"), texts(index.page(keys, Long.MAX_VALUE, 2)));
+        }
+    }
+
+    @Test
+    void resumesFromCheckpoint() throws IOException {
+        try (var log = openLog()) {
+            try (var index = openIndex(log)) {
+                append(log, "first", "alice", null, null);
+                index.catchUp();
+            }
+
+            append(log, "second", "alice", null, null);
+
+            try (var index = openIndex(log)) {
+                index.catchUp();
+                assertEquals(List.of("first", "second"), texts(index.page(List.of(HistoryIndex.BROADCASTS), Long.MAX_VALUE, 10)));
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.alexgrejuc.chatserver.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void bucketsAreWithinOneSixteenth() {
+        for (long value : new long[] {0, 1, 15, 16, 17, 100, 1_000, 123_456, 10_000_000_000L, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucket(value);
+            long highest = LatencyHistogram.highestValue(bucket);
+
+            assertTrue(highest >= value, "bucket of " + value);
+            assertTrue(highest - value <= value / 16, "width of the bucket of " + value);
+
+            if (bucket > 0) {
+                assertTrue(LatencyHistogram.highestValue(bucket - 1) < value, "previous bucket of " + value);
+            }
+        }
+    }
+
+    @Test
+    void percentiles() {
+        var histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(99));
+
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertEquals(1000, histogram.count());
+        assertEquals(500_500, histogram.mean(), 0.001);
+        assertEquals(1_000_000, histogram.max());
+
+        long median = histogram.percentile(50);
+        assertTrue(median >= 500_000 && median <= 500_000 * 17 / 16, "median " + median);
+
+        long p99 = histogram.percentile(99);
+        assertTrue(p99 >= 990_000 && p99 <= 1_000_000, "p99 " + p99);
+
+        assertEquals(1_000_000, histogram.percentile(100));
+    }
+
+    @Test
+    void negativeLatenciesCountAsZero() {
+        var histogram = new LatencyHistogram();
+        histogram.record(-5);
+
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(1, histogram.count());
+    }
+}
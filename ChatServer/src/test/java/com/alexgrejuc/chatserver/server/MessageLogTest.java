@@ -0,0 +1,183 @@
+package com.alexgrejuc.chatserver.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageLogTest {
+
+    @TempDir
+    Path directory;
+
+    private MessageLog open(int segmentBytes, long retentionBytes) throws IOException {
+        return new MessageLog(directory, segmentBytes, MessageLog.FsyncPolicy.OS, 100, retentionBytes, Duration.ofDays(1));
+    }
+
+    private static ByteBuffer frame(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(MessageLog.Entry entry) {
+        return new String(entry.frame(), StandardCharsets.UTF_8);
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.toString().endsWith(".log")).count();
+        }
+    }
+
+    @Test
+    void appendsAndReads() throws IOException {
+        try (var log = open(4096, 1 << 20)) {
+            assertEquals(0, log.append(frame("hello")));
+            assertEquals(1, log.append(frame("world")));
+
+            var entries = log.read(0, 10);
+            assertEquals(2, entries.size());
+            assertEquals("hello", text(entries.get(0)));
+            assertEquals(1, entries.get(1).offset());
+            assertEquals("world", text(entries.get(1)));
+
+            assertEquals(1, log.read(1, 10).size());
+            assertEquals(1, log.read(0, 1).size());
+            assertTrue(log.read(2, 10).isEmpty());
+        }
+    }
+
+    @Test
+    void appendDoesNotConsumeFrame() throws IOException {
+        try (var log = open(4096, 1 << 20)) {
+            var frame = frame("hello");
+            log.append(frame);
+            assertEquals(5, frame.remaining());
+        }
+    }
+
+    @Test
+    void stampsOffsetBeforeCopying() throws IOException {
+        try (var log = open(4096, 1 << 20)) {
+            log.append(frame("first"));
+
+            var frame = ByteBuffer.allocate(8);
+            log.append(frame, (buffer, offset) -> buffer.putLong(0, offset));
+
+            assertEquals(1, frame.getLong(0));
+            assertEquals(1, ByteBuffer.wrap(log.read(1, 1).get(0).frame()).getLong());
+        }
+    }
+
+    @Test
+    void readsAcrossSegments() throws IOException {
+        try (var log = open(256, 1 << 20)) {
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, log.append(frame("message " + i)));
+            }
+
+            assertTrue(segmentCount() > 1);
+
+            var entries = log.read(37, 50);
+            assertEquals(50, entries.size());
+
+            for (int i = 0; i < 50; i++) {
+                assertEquals(37 + i, entries.get(i).offset());
+                assertEquals("message " + (37 + i), text(entries.get(i)));
+            }
+        }
+    }
+
+    @Test
+    void readsFromIndexedPosition() throws IOException {
+        try (var log = open(1 << 20, 1 << 20)) {
+            for (int i = 0; i < 5000; i++) {
+                log.append(frame("message " + i));
+            }
+
+            var entries = log.read(4321, 2);
+            assertEquals("message 4321", text(entries.get(0)));
+            assertEquals("message 4322", text(entries.get(1)));
+        }
+    }
+
+    @Test
+    void largeFrameGetsItsOwnSegment() throws IOException {
+        try (var log = open(256, 1 << 20)) {
+            log.append(frame("small"));
+            log.append(ByteBuffer.wrap(new byte[1000]));
+            log.append(frame("after"));
+
+            var entries = log.read(0, 10);
+            assertEquals(3, entries.size());
+            assertEquals(1000, entries.get(1).frame().length);
+            assertEquals("after", text(entries.get(2)));
+        }
+    }
+
+    @Test
+    void continuesAfterReopening() throws IOException {
+        try (var log = open(4096, 1 << 20)) {
+            log.append(frame("first"));
+            log.append(frame("second"));
+        }
+
+        try (var log = open(4096, 1 << 20)) {
+            assertEquals(2, log.nextOffset());
+            assertEquals(2, log.append(frame("third")));
+
+            var entries = log.read(0, 10);
+            assertEquals(3, entries.size());
+            assertEquals("first", text(entries.get(0)));
+            assertEquals("third", text(entries.get(2)));
+        }
+    }
+
+    @Test
+    void dropsCorruptRecordOnRecovery() throws IOException {
+        Path segment = directory.resolve(LogSegment.fileName(0, ".log"));
+
+        try (var log = open(4096, 1 << 20)) {
+            log.append(frame("kept"));
+            log.append(frame("torn"));
+        }
+
+        // Damage the second record's frame, as if the crash happened before it reached the disk
+        try (var file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(2L * LogSegment.HEADER_LENGTH + "kept".length());
+            file.write('x');
+        }
+
+        try (var log = open(4096, 1 << 20)) {
+            var entries = log.read(0, 10);
+            assertEquals(1, entries.size());
+            assertEquals("kept", text(entries.get(0)));
+            assertEquals(1, log.append(frame("next")));
+            assertEquals("next", text(log.read(1, 10).get(0)));
+        }
+    }
+
+    @Test
+    void deletesOldestSegmentsOverRetention() throws IOException {
+        try (var log = open(256, 1024)) {
+            for (int i = 0; i < 200; i++) {
+                log.append(frame("message " + i));
+            }
+
+            assertTrue(log.firstOffset() > 0);
+            assertTrue(segmentCount() * 256 <= 1024 + 2 * 256);
+            assertEquals(199, log.read(199, 10).get(0).offset());
+
+            // Messages that were deleted are skipped
+            assertEquals(log.firstOffset(), log.read(0, 1).get(0).offset());
+        }
+    }
+}
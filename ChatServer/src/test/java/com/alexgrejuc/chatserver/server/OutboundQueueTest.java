@@ -0,0 +1,195 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.ChatMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueueTest {
+
+    @TempDir
+    Path directory;
+
+    private static SharedFrame message(String text) {
+        return SharedFrame.encode(new ChatMessage(text, "Alice", new ArrayList<>(), new ArrayList<>()));
+    }
+
+    private static SharedFrame notice(String text) {
+        return SharedFrame.encodeNotice(new ChatMessage(text, "SERVER", new ArrayList<>(), new ArrayList<>()));
+    }
+
+    @Test
+    void dropOldest() {
+        var queue = new OutboundQueue(2, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        var first = message("one");
+        var second = message("two");
+        var third = message("three");
+
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertTrue(queue.offer(third));
+
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.dropped());
+        assertSame(second, queue.poll());
+        assertSame(third, queue.poll());
+    }
+
+    @Test
+    void disconnect() {
+        var queue = new OutboundQueue(1, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DISCONNECT);
+
+        assertTrue(queue.offer(message("one")));
+        assertFalse(queue.offer(message("two")));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    void coalesceNotices() {
+        var queue = new OutboundQueue(2, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.COALESCE_NOTICES);
+        var entered = notice("Bob has entered the chat.");
+        var chat = message("hi");
+        var reply = message("hello");
+
+        assertTrue(queue.offer(entered));
+        assertTrue(queue.offer(chat));
+
+        // The queued notice makes room for a chat message, but a new notice is dropped itself
+        assertTrue(queue.offer(reply));
+        assertTrue(queue.offer(notice("Bob has left the chat")));
+
+        assertEquals(2, queue.dropped());
+        assertSame(chat, queue.poll());
+        assertSame(reply, queue.poll());
+    }
+
+    @Test
+    void newerNoticeReplacesOneAboutTheSameSubject() {
+        var queue = new OutboundQueue(3, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.COALESCE_NOTICES);
+        var bobEntered = SharedFrame.encodeNotice(new ChatMessage("Bob has entered the chat.", "SERVER", null, null), "Bob");
+        var carolEntered = SharedFrame.encodeNotice(new ChatMessage("Carol has entered the chat.", "SERVER", null, null), "Carol");
+        var chat = message("hi");
+        var bobLeft = SharedFrame.encodeNotice(new ChatMessage("Bob has left the chat", "SERVER", null, null), "Bob");
+
+        assertTrue(queue.offer(bobEntered));
+        assertTrue(queue.offer(carolEntered));
+        assertTrue(queue.offer(chat));
+
+        // Carol's presence is kept, and only Bob's older notice makes room for his newer one
+        assertTrue(queue.offer(bobLeft));
+
+        assertEquals(1, queue.dropped());
+        assertSame(carolEntered, queue.poll());
+        assertSame(chat, queue.poll());
+        assertSame(bobLeft, queue.poll());
+    }
+
+    @Test
+    void streamChunksAreNeverDropped() throws IOException {
+        var path = Files.write(directory.resolve("attachment"), new byte[100]);
+        var file = new SharedFile(path);
+        var queue = new OutboundQueue(2, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        var chunk = SharedFrame.withFileRegion(new byte[8], file, 0, 50, () -> null, true);
+        var chat = message("hi");
+
+        assertTrue(queue.offer(chunk));
+        assertTrue(queue.offer(chat));
+
+        // The chat message makes room rather than the chunk, whose stream would end if it were dropped
+        assertTrue(queue.offer(message("hello")));
+        assertEquals(1, queue.dropped());
+        assertSame(chunk, queue.poll());
+        chunk.release();
+        file.release();
+    }
+
+    @Test
+    void disconnectsRatherThanDroppingEssentialFrames() {
+        var queue = new OutboundQueue(2, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.COALESCE_NOTICES);
+        var logged = message("one");
+        logged.setSequence(1);
+
+        assertTrue(queue.offer(logged));
+        assertTrue(queue.offer(message("two").essential()));
+
+        // A notice that does not fit is dropped, but a logged message the client would never be replayed is not
+        assertTrue(queue.offer(notice("Bob has entered the chat.")));
+
+        var next = message("three");
+        next.setSequence(3);
+        assertFalse(queue.offer(next));
+
+        assertEquals(1, queue.dropped());
+        assertEquals(2, queue.size());
+        assertSame(logged, queue.poll());
+    }
+
+    @Test
+    void byteLimit() {
+        var first = message("one");
+        var queue = new OutboundQueue(100, first.size(), OutboundQueue.OverflowPolicy.DROP_OLDEST);
+
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(message("two")));
+
+        assertEquals(1, queue.size());
+        assertEquals(1, queue.dropped());
+    }
+
+    @Test
+    void closeWakesWriter() throws InterruptedException {
+        var queue = new OutboundQueue(10, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(message("one"));
+        queue.close();
+
+        assertNull(queue.take());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void drainFillsBatch() {
+        var queue = new OutboundQueue(10, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        var first = message("one");
+        var second = message("two");
+        var third = message("three");
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(third);
+
+        var batch = new SharedFrame[3];
+        batch[0] = queue.poll();
+        assertEquals(3, queue.drainTo(batch, 1));
+        assertSame(first, batch[0]);
+        assertSame(second, batch[1]);
+        assertSame(third, batch[2]);
+        assertEquals(0, queue.bytes());
+
+        assertEquals(0, queue.drainTo(new SharedFrame[2], 0));
+    }
+
+    @Test
+    void pollWaitsUpToTimeout() throws InterruptedException {
+        var queue = new OutboundQueue(10, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+
+        var frame = message("one");
+        Thread.ofVirtual().start(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            queue.offer(frame);
+        });
+
+        assertSame(frame, queue.poll(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,203 @@
+package com.alexgrejuc.chatserver.server;
+
+import com.alexgrejuc.chatmessage.ChatMessage;
+import com.alexgrejuc.chatmessage.ChatMessageFrames;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplayerTest {
+
+    @TempDir
+    Path directory;
+
+    // A class rather than a record, since the replay checks that its connection is still the registered one
+    private static class StubConnection implements Connection {
+        private final String username;
+        private final OutboundQueue queue = new OutboundQueue(1000, Long.MAX_VALUE, OutboundQueue.OverflowPolicy.DISCONNECT);
+
+        StubConnection(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void deliver(SharedFrame frame) {
+            queue.offer(frame);
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return queue;
+        }
+
+        @Override
+        public void closeAllResources() {}
+
+        /**
+         * @return the next message the replay sent, waiting for it if need be
+         */
+        ChatMessage next() throws IOException, InterruptedException {
+            SharedFrame frame = queue.poll(5, TimeUnit.SECONDS);
+            assertNotNull(frame, "The replay sent nothing more");
+
+            try {
+                return (ChatMessage) ChatMessageFrames.decode(frame.duplicate());
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    private static byte[] frame(String sender, List<String> recipients, String room) {
+        return frame("hi", sender, recipients, room);
+    }
+
+    private static byte[] frame(String text, String sender, List<String> recipients, String room) {
+        var recipientNames = recipients == null ? null : new ArrayList<>(recipients);
+        return ChatMessageFrames.toFrame(new ChatMessage(text, sender, recipientNames, new ArrayList<>(), room));
+    }
+
+    private MessageLog openLog() throws IOException {
+        return new MessageLog(directory, 1 << 20, MessageLog.FsyncPolicy.OS, 100, 1 << 30, Duration.ofDays(1));
+    }
+
+    private static void assertMarker(long end, ChatMessage message) {
+        assertNull(message.message(), "Expected a replay marker");
+        assertEquals(end, message.sequence());
+    }
+
+    @Test
+    void replaysBroadcastsAndDirectMessages() {
+        assertTrue(Replayer.isAddressedTo(frame("alice", null, null), "bob"));
+        assertTrue(Replayer.isAddressedTo(frame("alice", List.of("carol", "bob"), null), "bob"));
+    }
+
+    @Test
+    void skipsOthersOwnAndRoomMessages() {
+        assertFalse(Replayer.isAddressedTo(frame("alice", List.of("carol"), null), "bob"));
+        assertFalse(Replayer.isAddressedTo(frame("bob", null, null), "bob"));
+        assertFalse(Replayer.isAddressedTo(frame("alice", null, "dev"), "bob"));
+    }
+
+    @Test
+    void skipsMalformedFrames() {
+        assertFalse(Replayer.isAddressedTo(new byte[] {3, 99, 0, 0}, "bob"));
+    }
+
+    @Test
+    void replaysMissedMessagesInOrderBetweenMarkers() throws Exception {
+        var bob = new StubConnection("replay-bob");
+
+        try (var log = openLog()) {
+            log.append(ByteBuffer.wrap(frame("one", "alice", null, null)));
+            log.append(ByteBuffer.wrap(frame("to carol", "alice", List.of("carol"), null)));
+            log.append(ByteBuffer.wrap(frame("two", "alice", List.of("replay-bob"), null)));
+            log.append(ByteBuffer.wrap(frame("in a room", "alice", null, "dev")));
+            log.append(ByteBuffer.wrap(frame("own", "replay-bob", null, null)));
+            log.append(ByteBuffer.wrap(frame("three", "alice", null, null)));
+
+            assertTrue(MessageRouter.clients.register(bob));
+
+            // Two entries a page, so the six entries take three pages
+            new Replayer(log, 2, 1).start(bob, ChatMessage.NO_SEQUENCE);
+
+            assertMarker(6, bob.next());
+            assertEquals("one", bob.next().message());
+            assertEquals("two", bob.next().message());
+            assertEquals("three", bob.next().message());
+            assertMarker(6, bob.next());
+            assertNull(bob.getOutboundQueue().poll(50, TimeUnit.MILLISECONDS));
+        } finally {
+            MessageRouter.clients.unregister(bob);
+        }
+    }
+
+    @Test
+    void resumesAfterTheLastMessageReceived() throws Exception {
+        var bob = new StubConnection("resume-bob");
+
+        try (var log = openLog()) {
+            for (String text : List.of("one", "two", "three")) {
+                log.append(ByteBuffer.wrap(frame(text, "alice", null, null)));
+            }
+
+            assertTrue(MessageRouter.clients.register(bob));
+            new Replayer(log, 10, 1).start(bob, 1);
+
+            assertMarker(3, bob.next());
+            assertEquals("three", bob.next().message());
+            assertMarker(3, bob.next());
+        } finally {
+            MessageRouter.clients.unregister(bob);
+        }
+    }
+
+    @Test
+    void waitsWhileThePreviousPageIsQueued() throws Exception {
+        var bob = new StubConnection("backlogged-bob");
+
+        try (var log = openLog()) {
+            for (int i = 0; i < 6; i++) {
+                log.append(ByteBuffer.wrap(frame("message " + i, "alice", null, null)));
+            }
+
+            assertTrue(MessageRouter.clients.register(bob));
+            new Replayer(log, 2, 1).start(bob, ChatMessage.NO_SEQUENCE);
+
+            // The opening marker and the first page, after which the queue holds a page's worth and the replay waits
+            Thread.sleep(200);
+            assertEquals(3, bob.getOutboundQueue().size());
+
+            assertMarker(6, bob.next());
+
+            for (int i = 0; i < 6; i++) {
+                assertEquals("message " + i, bob.next().message());
+            }
+
+            assertMarker(6, bob.next());
+        } finally {
+            MessageRouter.clients.unregister(bob);
+        }
+    }
+
+    @Test
+    void stopsWhenTheConnectionIsReplaced() throws Exception {
+        var bob = new StubConnection("replaced-bob");
+        var reconnected = new StubConnection("replaced-bob");
+
+        try (var log = openLog()) {
+            for (int i = 0; i < 5; i++) {
+                log.append(ByteBuffer.wrap(frame("message " + i, "alice", null, null)));
+            }
+
+            assertTrue(MessageRouter.clients.register(bob));
+            new Replayer(log, 1, 200).start(bob, ChatMessage.NO_SEQUENCE);
+
+            assertMarker(5, bob.next());
+            assertEquals("message 0", bob.next().message());
+
+            // The same user logs in again before the next page is due
+            MessageRouter.clients.unregister(bob);
+            assertTrue(MessageRouter.clients.register(reconnected));
+
+            assertNull(bob.getOutboundQueue().poll(500, TimeUnit.MILLISECONDS));
+            assertEquals(0, reconnected.getOutboundQueue().size());
+        } finally {
+            MessageRouter.clients.unregister(reconnected);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.alexgrejuc.chatserver.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoomRegistryTest {
+
+    private static class StubConnection implements Connection {
+        private final String username;
+
+        StubConnection(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void deliver(SharedFrame frame) {
+            frame.release();
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return null;
+        }
+
+        @Override
+        public void closeAllResources() {}
+    }
+
+    @Test
+    void joinAndLeave() {
+        var rooms = new RoomRegistry();
+        var alice = new StubConnection("Alice");
+        var bob = new StubConnection("Bob");
+
+        assertTrue(rooms.join("dev", alice));
+        assertFalse(rooms.join("dev", alice));
+        assertTrue(rooms.join("dev", bob));
+        assertTrue(rooms.join("random", alice));
+
+        assertEquals(Set.of(alice, bob), rooms.members("dev"));
+        assertEquals(Set.of("dev", "random"), rooms.roomsOf(alice));
+        assertTrue(rooms.isMember("dev", bob));
+
+        assertTrue(rooms.leave("dev", bob));
+        assertFalse(rooms.leave("dev", bob));
+        assertEquals(Set.of(alice), rooms.members("dev"));
+        assertEquals(Set.of(), rooms.roomsOf(bob));
+    }
+
+    @Test
+    void emptyRoomsDisappear() {
+        var rooms = new RoomRegistry();
+        var alice = new StubConnection("Alice");
+
+        rooms.join("dev", alice);
+        rooms.join("random", alice);
+        rooms.leaveAll(alice);
+
+        assertEquals(0, rooms.size("dev"));
+        assertEquals(Set.of(), rooms.members("random"));
+        assertEquals(Set.of(), rooms.roomsOf(alice));
+    }
+}